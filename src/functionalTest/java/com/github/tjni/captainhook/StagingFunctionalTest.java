@@ -6,14 +6,28 @@ import static org.assertj.core.api.Assertions.assertThat;
 import com.github.tjni.captainhook.helpers.GitHelper.GitStatus;
 import com.github.tjni.captainhook.helpers.GitHelper.GitStatusLine;
 import com.github.tjni.captainhook.helpers.GitRepository;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import one.util.streamex.StreamEx;
 import org.gradle.testkit.runner.BuildResult;
 import org.gradle.testkit.runner.BuildTask;
 import org.gradle.testkit.runner.GradleRunner;
 import org.gradle.testkit.runner.TaskOutcome;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
 
 final class StagingFunctionalTest {
   @Test
@@ -94,8 +108,10 @@ final class StagingFunctionalTest {
     assertThat(buildResult.task(":staging")).isNull();
   }
 
-  @Test
-  void staging_WhenStagingHasChanges_ShouldPreserveDeletions(@TempDir Path tempDir) {
+  @ParameterizedTest
+  @ValueSource(strings = {"stash", "tree"})
+  void staging_WhenStagingHasChanges_ShouldPreserveDeletions(
+      String snapshotStrategy, @TempDir Path tempDir) {
     // Given:
     GitRepository repository = new GitRepository(tempDir);
 
@@ -113,7 +129,7 @@ final class StagingFunctionalTest {
     // When:
     GradleRunner.create()
         .withProjectDir(tempDir.toFile())
-        .withArguments("staging", "-s")
+        .withArguments("staging", "-PcaptainHook.snapshotStrategy=" + snapshotStrategy, "-s")
         .withPluginClasspath()
         .build();
 
@@ -131,8 +147,10 @@ final class StagingFunctionalTest {
         .hasValue('D');
   }
 
-  @Test
-  void staging_WhenStagingTaskFails_ShouldRestoreState(@TempDir Path tempDir) {
+  @ParameterizedTest
+  @ValueSource(strings = {"stash", "tree"})
+  void staging_WhenStagingTaskFails_ShouldRestoreState(
+      String snapshotStrategy, @TempDir Path tempDir) {
     // Given:
     GitRepository repository = new GitRepository(tempDir);
 
@@ -160,7 +178,8 @@ final class StagingFunctionalTest {
     BuildResult buildResult =
         GradleRunner.create()
             .withProjectDir(tempDir.toFile())
-            .withArguments("staging", "fail", "-s")
+            .withArguments(
+                "staging", "fail", "-PcaptainHook.snapshotStrategy=" + snapshotStrategy, "-s")
             .withPluginClasspath()
             .buildAndFail();
 
@@ -203,9 +222,129 @@ final class StagingFunctionalTest {
     assertSnapshotDeleted(repository);
   }
 
+  @ParameterizedTest
+  @ValueSource(strings = {"stash", "tree"})
+  void staging_WhenStagingTaskChangesFilesAndFails_ShouldRestoreThem(
+      String snapshotStrategy, @TempDir Path tempDir) throws IOException {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(
+        APPLY_PLUGIN_SNIPPET,
+        "                                                  ",
+        "tasks.register(\"fail\") {                        ",
+        "  doLast {                                        ",
+        "    file(\"file1.txt\").writeText(\"formatted\")    ",
+        "    file(\"file2.txt\").writeText(\"formatted\")    ",
+        "    file(\"file3.txt\").delete()                   ",
+        "    throw RuntimeException()                      ",
+        "  }                                               ",
+        "}                                                 ");
+
+    repository.commitEmptyFiles("file%d.txt", 3);
+
+    repository.writeFile("file1.txt", "staged");
+    repository.git("add", "file1.txt");
+    repository.writeFile("file2.txt", "unstaged");
+    repository.writeFile("file3.txt", "staged");
+    repository.git("add", "file3.txt");
+    repository.writeFile("file3.txt", "unstaged");
+
+    // When:
+    GradleRunner.create()
+        .withProjectDir(tempDir.toFile())
+        .withArguments(
+            "staging", "fail", "-PcaptainHook.snapshotStrategy=" + snapshotStrategy, "-s")
+        .withPluginClasspath()
+        .buildAndFail();
+
+    // Then:
+    assertThat(read(tempDir.resolve("file1.txt"))).isEqualTo("staged\n");
+    assertThat(read(tempDir.resolve("file2.txt"))).isEqualTo("unstaged\n");
+    assertThat(read(tempDir.resolve("file3.txt"))).isEqualTo("unstaged\n");
+    assertThat(repository.git("show", ":file1.txt")).isEqualTo("staged");
+    assertThat(repository.git("show", ":file2.txt")).isEmpty();
+    assertThat(repository.git("show", ":file3.txt")).isEqualTo("staged");
+
+    assertSnapshotDeleted(repository);
+  }
+
   @Test
+  void staging_WhenStagingTaskPushesStash_ShouldOnlyDropBackupStash(@TempDir Path tempDir)
+      throws IOException {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(
+        APPLY_PLUGIN_SNIPPET,
+        "                                                       ",
+        "tasks.register<Exec>(\"pushStash\") {                  ",
+        "  commandLine(\"git\", \"stash\", \"store\", \"-m\", \"other\", \"HEAD\")",
+        "}                                                      ");
+
+    repository.writeFile("file1.txt", "staged");
+    repository.git("add", "file1.txt");
+    repository.writeFile("file1.txt", "unstaged");
+
+    // When:
+    GradleRunner.create()
+        .withProjectDir(tempDir.toFile())
+        .withArguments("staging", "pushStash", "-PcaptainHook.snapshotStrategy=stash", "-s")
+        .withPluginClasspath()
+        .build();
+
+    // Then:
+    assertThat(repository.git("stash", "list", "--format=%gs")).isEqualTo("other");
+    assertThat(read(tempDir.resolve("file1.txt"))).isEqualTo("unstaged\n");
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"stash", "tree"})
+  void staging_WhenStagingTaskChangesCleanTrackedFilesAndFails_ShouldRestoreThem(
+      String snapshotStrategy, @TempDir Path tempDir) throws IOException {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(
+        APPLY_PLUGIN_SNIPPET,
+        "                                                  ",
+        "tasks.register(\"fail\") {                        ",
+        "  doLast {                                        ",
+        "    file(\"file2.txt\").writeText(\"generated\")    ",
+        "    file(\"file3.txt\").delete()                   ",
+        "    throw RuntimeException()                      ",
+        "  }                                               ",
+        "}                                                 ");
+
+    repository.writeFile("file2.txt", "committed");
+    repository.writeFile("file3.txt", "committed");
+    repository.git("add", "file2.txt", "file3.txt");
+    repository.git("commit", "-m", "Add tracked files.");
+
+    repository.writeFile("file1.txt", "staged");
+    repository.git("add", "file1.txt");
+
+    // When:
+    GradleRunner.create()
+        .withProjectDir(tempDir.toFile())
+        .withArguments(
+            "staging", "fail", "-PcaptainHook.snapshotStrategy=" + snapshotStrategy, "-s")
+        .withPluginClasspath()
+        .buildAndFail();
+
+    // Then:
+    assertThat(read(tempDir.resolve("file1.txt"))).isEqualTo("staged\n");
+    assertThat(read(tempDir.resolve("file2.txt"))).isEqualTo("committed\n");
+    assertThat(read(tempDir.resolve("file3.txt"))).isEqualTo("committed\n");
+    assertThat(repository.git("status", "--porcelain", "--", "file2.txt", "file3.txt")).isEmpty();
+
+    assertSnapshotDeleted(repository);
+  }
+
+  @ParameterizedTest
+  @CsvSource({"stash, false", "tree, false", "stash, true", "tree, true"})
   void staging_WhenStagingTaskModifiesFiles_ShouldOnlyAddModifiedStagedFiles(
-      @TempDir Path tempDir) {
+      String snapshotStrategy, boolean pipePatches, @TempDir Path tempDir) {
     // Given:
     GitRepository repository = new GitRepository(tempDir);
 
@@ -225,12 +364,18 @@ final class StagingFunctionalTest {
     repository.git("add", "file1.txt");
     repository.writeFile("file2.txt", "intermediate");
     repository.writeFile("file3.txt", "final");
+    repository.writeFile("file4.txt", "untracked");
 
     // When:
     BuildResult buildResult =
         GradleRunner.create()
             .withProjectDir(tempDir.toFile())
-            .withArguments("staging", "modify", "-s")
+            .withArguments(
+                "staging",
+                "modify",
+                "-PcaptainHook.snapshotStrategy=" + snapshotStrategy,
+                "-PcaptainHook.pipePatches=" + pipePatches,
+                "-s")
             .withPluginClasspath()
             .build();
 
@@ -270,11 +415,18 @@ final class StagingFunctionalTest {
         .as("file3.txt working tree status")
         .hasValue('M');
 
+    assertThat(status.findByFilePath("file4.txt"))
+        .map(GitStatusLine::getWorkingTreeStatus)
+        .as("file4.txt working tree status")
+        .hasValue('?');
+
     assertSnapshotDeleted(repository);
   }
 
-  @Test
-  void staging_WhenStagingTaskUndoesModifications_ShouldReturnEmptyStatus(@TempDir Path tempDir) {
+  @ParameterizedTest
+  @ValueSource(strings = {"stash", "tree"})
+  void staging_WhenStagingTaskUndoesModifications_ShouldReturnEmptyStatus(
+      String snapshotStrategy, @TempDir Path tempDir) {
     // Given:
     GitRepository repository = new GitRepository(tempDir);
 
@@ -296,7 +448,8 @@ final class StagingFunctionalTest {
     BuildResult buildResult =
         GradleRunner.create()
             .withProjectDir(tempDir.toFile())
-            .withArguments("staging", "unmodify", "-s")
+            .withArguments(
+                "staging", "unmodify", "-PcaptainHook.snapshotStrategy=" + snapshotStrategy, "-s")
             .withPluginClasspath()
             .withDebug(true)
             .build();
@@ -312,6 +465,675 @@ final class StagingFunctionalTest {
     assertSnapshotDeleted(repository);
   }
 
+  @ParameterizedTest
+  @ValueSource(strings = {"stash", "tree"})
+  void staging_WhenStagingTaskUndoesModifications_ShouldKeepUntrackedFiles(
+      String snapshotStrategy, @TempDir Path tempDir) {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(
+        APPLY_PLUGIN_SNIPPET,
+        "                                                ",
+        "tasks.register(\"unmodify\") {                    ",
+        "  doLast {                                      ",
+        "    file(\"file1.txt\").writeText(\"\")         ",
+        "  }                                             ",
+        "}                                               ");
+
+    repository.commitEmptyFiles("file%d.txt", 1);
+
+    repository.writeFile("file1.txt", "modified");
+    repository.git("add", "file1.txt");
+    repository.writeFile("untracked.txt", "untracked");
+
+    // When:
+    GradleRunner.create()
+        .withProjectDir(tempDir.toFile())
+        .withArguments(
+            "staging", "unmodify", "-PcaptainHook.snapshotStrategy=" + snapshotStrategy, "-s")
+        .withPluginClasspath()
+        .build();
+
+    // Then:
+    GitStatus status = repository.status();
+
+    assertThat(status.findByFilePath("file1.txt")).as("file1.txt status").isEmpty();
+
+    assertThat(status.findByFilePath("untracked.txt"))
+        .map(GitStatusLine::getWorkingTreeStatus)
+        .as("untracked.txt working tree status")
+        .hasValue('?');
+
+    assertSnapshotDeleted(repository);
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"stash", "tree"})
+  void staging_WhenChangesetIsLarge_ShouldReportSnapshotTime(
+      String snapshotStrategy, @TempDir Path tempDir) {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(APPLY_PLUGIN_SNIPPET);
+
+    int fileCount = 50;
+    repository.commitEmptyFiles("file%d.txt", fileCount);
+
+    String content = StreamEx.constant("modified", 2048).joining(" ");
+    for (int i = 1; i <= fileCount; i++) {
+      repository.writeFile(String.format("file%d.txt", i), content);
+      repository.writeFile(String.format("untracked%d.txt", i), content);
+    }
+    repository.git("add", "file1.txt");
+
+    // When:
+    BuildResult buildResult =
+        GradleRunner.create()
+            .withProjectDir(tempDir.toFile())
+            .withArguments(
+                "staging",
+                "-PcaptainHook.snapshotStrategy=" + snapshotStrategy,
+                "-PcaptainHook.execMetrics",
+                "--info",
+                "-s")
+            .withPluginClasspath()
+            .build();
+
+    // Then:
+    assertThat(buildResult.getOutput()).containsPattern("Saved the snapshot in \\d+ ms");
+
+    // The snapshot runs a fixed number of commands, however many files changed.
+    Matcher commandCount =
+        Pattern.compile("Captain Hook ran (\\d+) commands").matcher(buildResult.getOutput());
+    assertThat(commandCount.find()).as("command metrics").isTrue();
+    assertThat(Integer.parseInt(commandCount.group(1))).isLessThan(fileCount / 2);
+
+    GitStatus status = repository.status();
+
+    assertThat(status.findByFilePath(String.format("file%d.txt", fileCount)))
+        .map(GitStatusLine::getWorkingTreeStatus)
+        .as("file%d.txt working tree status", fileCount)
+        .hasValue('M');
+
+    assertThat(status.findByFilePath(String.format("untracked%d.txt", fileCount)))
+        .map(GitStatusLine::getWorkingTreeStatus)
+        .as("untracked%d.txt working tree status", fileCount)
+        .hasValue('?');
+
+    assertSnapshotDeleted(repository);
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "false, false, Skipping the snapshot because there are no unstaged changes or untracked files.",
+    "true, false, Saving the snapshot in a stash without untracked files because there are none.",
+    "false, true, Saving the snapshot in a stash with untracked files.",
+    "true, true, Saving the snapshot in a stash with untracked files."
+  })
+  void staging_WhenWorkingTreeHasChanges_ShouldChooseCheapestSnapshot(
+      boolean hasUnstagedChanges,
+      boolean hasUntrackedFiles,
+      String expectedLogLine,
+      @TempDir Path tempDir) {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(
+        APPLY_PLUGIN_SNIPPET,
+        "                                                ",
+        "tasks.register(\"format\") {                    ",
+        "  doLast {                                      ",
+        "    file(\"file1.txt\").writeText(\"formatted\")  ",
+        "  }                                             ",
+        "}                                               ");
+
+    repository.commitEmptyFiles("file%d.txt", 2);
+
+    repository.writeFile("file1.txt", "modified");
+    repository.git("add", "file1.txt");
+    if (hasUnstagedChanges) {
+      repository.writeFile("file2.txt", "unstaged");
+    }
+    if (hasUntrackedFiles) {
+      repository.writeFile("untracked.txt", "untracked");
+    }
+
+    // When:
+    BuildResult buildResult =
+        GradleRunner.create()
+            .withProjectDir(tempDir.toFile())
+            .withArguments("staging", "format", "--info", "-s")
+            .withPluginClasspath()
+            .build();
+
+    // Then:
+    assertThat(StreamEx.split(buildResult.getOutput(), "\n").toList()).contains(expectedLogLine);
+
+    GitStatus status = repository.status();
+
+    assertThat(status.findByFilePath("file1.txt"))
+        .map(GitStatusLine::getIndexStatus)
+        .as("file1.txt index status")
+        .hasValue('M');
+    assertThat(repository.git("show", ":file1.txt")).isEqualTo("formatted");
+
+    assertThat(status.findByFilePath("file2.txt").map(GitStatusLine::getWorkingTreeStatus))
+        .as("file2.txt working tree status")
+        .isEqualTo(hasUnstagedChanges ? Optional.of('M') : Optional.empty());
+
+    assertThat(status.findByFilePath("untracked.txt").map(GitStatusLine::getWorkingTreeStatus))
+        .as("untracked.txt working tree status")
+        .isEqualTo(hasUntrackedFiles ? Optional.of('?') : Optional.empty());
+
+    assertSnapshotDeleted(repository);
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"stash", "tree"})
+  void staging_WhenUntrackedFilesAreFingerprinted_ShouldOnlyRestoreChangedUntrackedFiles(
+      String snapshotStrategy, @TempDir Path tempDir) throws IOException {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(
+        APPLY_PLUGIN_SNIPPET,
+        "                                                  ",
+        "captainHook {                                     ",
+        "  untrackedExcludes.set(listOf(\"scratch/\"))      ",
+        "}                                                 ",
+        "tasks.register(\"format\") {                      ",
+        "  doLast {                                        ",
+        "    check(file(\"untracked.txt\").exists())        ",
+        "    file(\"file1.txt\").writeText(\"formatted\")    ",
+        "    file(\"untracked.txt\").writeText(\"formatted\")",
+        "    file(\"scratch/data.txt\").writeText(\"formatted\")",
+        "  }                                               ",
+        "}                                                 ");
+
+    repository.commitEmptyFiles("file%d.txt", 2);
+
+    repository.writeFile("file1.txt", "modified");
+    repository.git("add", "file1.txt");
+    repository.writeFile("file2.txt", "unstaged");
+    repository.writeFile("untracked.txt", "untracked");
+    Files.createDirectories(tempDir.resolve("scratch"));
+    repository.writeFile("scratch/data.txt", "data");
+
+    // When:
+    GradleRunner.create()
+        .withProjectDir(tempDir.toFile())
+        .withArguments(
+            "staging",
+            "format",
+            "-PcaptainHook.snapshotStrategy=" + snapshotStrategy,
+            "-PcaptainHook.fingerprintUntracked",
+            "-s")
+        .withPluginClasspath()
+        .build();
+
+    // Then:
+    assertThat(repository.git("show", ":file1.txt")).isEqualTo("formatted");
+    assertThat(read(tempDir.resolve("file2.txt"))).isEqualTo("unstaged\n");
+    assertThat(read(tempDir.resolve("untracked.txt"))).isEqualTo("untracked\n");
+    assertThat(read(tempDir.resolve("scratch/data.txt"))).isEqualTo("formatted");
+
+    GitStatus status = repository.status();
+
+    assertThat(status.findByFilePath("untracked.txt"))
+        .map(GitStatusLine::getWorkingTreeStatus)
+        .as("untracked.txt working tree status")
+        .hasValue('?');
+
+    assertSnapshotDeleted(repository);
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"stash", "tree"})
+  void staging_WhenContentsAreUnchanged_ShouldKeepTimestampsAndIncrementalBuild(
+      String snapshotStrategy, @TempDir Path tempDir) throws IOException {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(APPLY_PLUGIN_SNIPPET, "apply(plugin = \"java\")");
+
+    repository.writeFile(".gitignore", ".gradle", "userHome", "build");
+    Files.createDirectories(tempDir.resolve("src/main/java"));
+    repository.writeFile("src/main/java/A.java", "class A {}");
+    repository.writeFile("src/main/java/B.java", "class B {}");
+    repository.git("add", ".");
+    repository.git("commit", "--message=sources");
+
+    repository.writeFile("src/main/java/A.java", "class A { int staged; }");
+    repository.git("add", "src/main/java/A.java");
+    repository.writeFile("src/main/java/B.java", "class B { int unstaged; }");
+    repository.writeFile("src/main/java/C.java", "class C {}");
+
+    // The files are dated back, so that rewriting them changes their timestamps on any file system.
+    List<Path> files =
+        StreamEx.of("A", "B", "C")
+            .map(name -> tempDir.resolve("src/main/java/" + name + ".java"))
+            .toList();
+    FileTime hourAgo = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+    for (Path file : files) {
+      Files.setLastModifiedTime(file, hourAgo);
+    }
+
+    GradleRunner.create()
+        .withProjectDir(tempDir.toFile())
+        .withArguments("compileJava", "-s")
+        .withPluginClasspath()
+        .build();
+
+    List<FileTime> lastModifiedTimes = getLastModifiedTimes(files);
+
+    // When:
+    GradleRunner.create()
+        .withProjectDir(tempDir.toFile())
+        .withArguments("staging", "-PcaptainHook.snapshotStrategy=" + snapshotStrategy, "-s")
+        .withPluginClasspath()
+        .build();
+
+    BuildResult buildResult =
+        GradleRunner.create()
+            .withProjectDir(tempDir.toFile())
+            .withArguments("compileJava", "-s")
+            .withPluginClasspath()
+            .build();
+
+    // Then:
+    assertThat(getLastModifiedTimes(files)).isEqualTo(lastModifiedTimes);
+
+    assertThat(Objects.requireNonNull(buildResult.task(":compileJava")).getOutcome())
+        .isEqualTo(TaskOutcome.UP_TO_DATE);
+
+    assertThat(repository.git("diff", "--name-only")).isEqualTo("src/main/java/B.java");
+    assertSnapshotDeleted(repository);
+  }
+
+  @Test
+  void staging_WhenSandboxIsEnabled_ShouldOnlyChangeIndex(@TempDir Path tempDir)
+      throws IOException {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(
+        APPLY_PLUGIN_SNIPPET,
+        "                                                       ",
+        "tasks.register(\"format\") {                           ",
+        "  doLast {                                             ",
+        "    @Suppress(\"UNCHECKED_CAST\")                       ",
+        "    val staging = project.extra[\"staging\"] as List<java.nio.file.Path>",
+        "    staging.forEach { it.toFile().writeText(\"formatted\") }",
+        "  }                                                    ",
+        "}                                                      ");
+
+    repository.commitEmptyFiles("file%d.txt", 2);
+
+    repository.writeFile("file1.txt", "staged");
+    repository.git("add", "file1.txt");
+    repository.writeFile("file1.txt", "unstaged");
+    repository.writeFile("untracked.txt", "untracked");
+
+    // When:
+    GradleRunner.create()
+        .withProjectDir(tempDir.toFile())
+        .withArguments("staging", "format", "-PcaptainHook.sandbox", "-s")
+        .withPluginClasspath()
+        .build();
+
+    // Then:
+    assertThat(repository.git("show", ":file1.txt")).isEqualTo("formatted");
+    assertThat(repository.git("show", ":file2.txt")).isEmpty();
+    assertThat(read(tempDir.resolve("file1.txt"))).isEqualTo("unstaged\n");
+    assertThat(read(tempDir.resolve("file2.txt"))).isEmpty();
+    assertThat(read(tempDir.resolve("untracked.txt"))).isEqualTo("untracked\n");
+    assertThat(tempDir.resolve("build/captain-hook/sandbox")).doesNotExist();
+
+    assertSnapshotDeleted(repository);
+  }
+
+  @Test
+  void staging_WhenVerifiedCacheIsEnabled_ShouldSkipVerifiedFiles(@TempDir Path tempDir)
+      throws IOException {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(
+        APPLY_PLUGIN_SNIPPET,
+        "                                                       ",
+        "tasks.register(\"check\") {                            ",
+        "  doLast {                                             ",
+        "    @Suppress(\"UNCHECKED_CAST\")                       ",
+        "    val staging = project.extra[\"staging\"] as List<java.nio.file.Path>",
+        "    println(\"Checking ${staging.size} files\")          ",
+        "  }                                                    ",
+        "}                                                      ");
+
+    repository.writeFile("file1.txt", "staged");
+    repository.writeFile("file2.txt", "staged");
+    repository.git("add", ".");
+
+    GradleRunner runner =
+        GradleRunner.create()
+            .withProjectDir(tempDir.toFile())
+            .withArguments("staging", "check", "-PcaptainHook.verifiedCache", "-s")
+            .withPluginClasspath();
+    BuildResult firstResult = runner.build();
+
+    repository.writeFile("file2.txt", "changed");
+    repository.git("add", "file2.txt");
+
+    // When:
+    BuildResult secondResult = runner.build();
+
+    // Then:
+    assertThat(firstResult.getOutput()).contains("Checking 2 files");
+    assertThat(secondResult.getOutput()).contains("Checking 1 files");
+
+    assertSnapshotDeleted(repository);
+  }
+
+  @Test
+  void staging_WhenLineRangesIsEnabled_ShouldPublishStagedLines(@TempDir Path tempDir)
+      throws IOException {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(
+        APPLY_PLUGIN_SNIPPET,
+        "                                                       ",
+        "tasks.register(\"lint\") {                             ",
+        "  doLast {                                             ",
+        "    val lineRanges = project.extra[\"stagingLineRanges\"] as Map<*, *>",
+        "    lineRanges.forEach { (file, ranges) -> println(\"$file $ranges\") }",
+        "  }                                                    ",
+        "}                                                      ");
+
+    repository.writeFile("file1.txt", "a", "b", "c", "d", "e");
+    repository.git("add", ".");
+    repository.git("commit", "-m", "Add file1.txt");
+
+    repository.writeFile("file1.txt", "a", "B", "c", "d", "e", "f", "g");
+    repository.git("add", "file1.txt");
+    repository.writeFile("file1.txt", "unstaged");
+
+    // When:
+    BuildResult result =
+        GradleRunner.create()
+            .withProjectDir(tempDir.toFile())
+            .withArguments("staging", "lint", "-PcaptainHook.lineRanges", "-s")
+            .withPluginClasspath()
+            .build();
+
+    // Then:
+    Path file = tempDir.toRealPath().resolve("file1.txt");
+    assertThat(result.getOutput())
+        .contains(file + " [LineRange{start=2, end=2}, LineRange{start=6, end=7}]");
+    assertThat(read(tempDir.resolve("build/captain-hook/staging-line-ranges.json")))
+        .contains("{\"start\": 2, \"end\": 2}, {\"start\": 6, \"end\": 7}");
+
+    assertSnapshotDeleted(repository);
+  }
+
+  @Test
+  void staging_WhenStagingTasksAreConfigured_ShouldOnlyRunMatchingTasks(@TempDir Path tempDir)
+      throws IOException {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(
+        APPLY_PLUGIN_SNIPPET,
+        "                                                       ",
+        "captainHook {                                          ",
+        "  stagingTasks.put(\"*.java\", listOf(\"formatJava\"))  ",
+        "  stagingTasks.put(\"*.sql\", listOf(\"formatSql\", \"lintSql\"))",
+        "}                                                      ",
+        "                                                       ",
+        "listOf(\"formatJava\", \"formatSql\", \"lintSql\").forEach { name ->",
+        "  tasks.register(name) {                               ",
+        "    println(\"Configuring $name\")                      ",
+        "    doLast {                                           ",
+        "      @Suppress(\"UNCHECKED_CAST\")                     ",
+        "      val staging = extra[\"staging\"] as List<java.nio.file.Path>",
+        "      println(\"Running $name on ${staging.map { it.fileName }}\")",
+        "    }                                                  ",
+        "  }                                                    ",
+        "}                                                      ");
+
+    repository.writeFile("schema.sql", "create table t;");
+    repository.writeFile("notes.txt", "notes");
+    repository.git("add", ".");
+
+    // When:
+    BuildResult result =
+        GradleRunner.create()
+            .withProjectDir(tempDir.toFile())
+            .withArguments("staging", "-s")
+            .withPluginClasspath()
+            .build();
+
+    // Then:
+    assertThat(result.getOutput())
+        .contains("Running formatSql on [schema.sql]", "Running lintSql on [schema.sql]")
+        .doesNotContain("Configuring formatJava");
+    assertThat(result.getOutput().indexOf("Running formatSql"))
+        .isLessThan(result.getOutput().indexOf("Running lintSql"));
+
+    assertSnapshotDeleted(repository);
+  }
+
+  @Test
+  void staging_WhenStagedExecTaskIsRouted_ShouldRunCommandOnMatchingFiles(@TempDir Path tempDir)
+      throws IOException {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(
+        APPLY_PLUGIN_SNIPPET,
+        "                                                       ",
+        "captainHook {                                          ",
+        "  stagingTasks.put(\"*.sh\", listOf(\"shellcheck\"))    ",
+        "}                                                      ",
+        "                                                       ",
+        "tasks.register<com.github.tjni.captainhook.tasks.StagedExecTask>(\"shellcheck\") {",
+        "  commandLine.set(listOf(\"sh\", \"-c\", \"for f; do echo checked ${'$'}(basename ${'$'}f); done\", \"sh\"))",
+        "  maxParallelForks.set(2)                              ",
+        "}                                                      ");
+
+    repository.writeFile("a.sh", "echo a");
+    repository.writeFile("b.sh", "echo b");
+    repository.writeFile("notes.txt", "notes");
+    repository.git("add", ".");
+
+    // When:
+    BuildResult result =
+        GradleRunner.create()
+            .withProjectDir(tempDir.toFile())
+            .withArguments("staging", "-s")
+            .withPluginClasspath()
+            .build();
+
+    // Then:
+    assertThat(result.getOutput())
+        .contains("[sh 1/2] checked a.sh", "[sh 2/2] checked b.sh")
+        .doesNotContain("notes.txt");
+
+    assertSnapshotDeleted(repository);
+  }
+
+  @Test
+  void staging_WhenStagedExecTaskIsInSubproject_ShouldReadStagingOfRootProject(
+      @TempDir Path tempDir) throws IOException {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(APPLY_PLUGIN_SNIPPET);
+    Files.createDirectories(tempDir.resolve("web"));
+    repository.writeFile("settings.gradle.kts", "include(\"web\")");
+    repository.writeFile(
+        "web/build.gradle.kts",
+        "tasks.register<com.github.tjni.captainhook.tasks.StagedExecTask>(\"prettier\") {",
+        "  commandLine.set(listOf(\"sh\", \"-c\", \"for f; do echo checked ${'$'}(basename ${'$'}f); done\", \"sh\"))",
+        "}                                                      ");
+    repository.git("add", ".");
+    repository.git("commit", "--message=subproject");
+
+    repository.writeFile("web/a.js", "a");
+    repository.git("add", "web/a.js");
+
+    // When:
+    BuildResult result =
+        GradleRunner.create()
+            .withProjectDir(tempDir.toFile())
+            .withArguments("staging", ":web:prettier", "-s")
+            .withPluginClasspath()
+            .build();
+
+    // Then:
+    assertThat(result.getOutput()).contains("[sh 1/1] checked a.js");
+
+    assertSnapshotDeleted(repository);
+  }
+
+  @Test
+  void staging_WhenProjectStagingIsEnabled_ShouldSplitFilesAmongProjects(@TempDir Path tempDir)
+      throws IOException {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(APPLY_PLUGIN_SNIPPET);
+    Files.createDirectories(tempDir.resolve("app/src"));
+    Files.createDirectories(tempDir.resolve("lib"));
+    repository.writeFile("settings.gradle.kts", "include(\"app\", \"lib\")");
+    String[] subprojectBuild = {
+      "tasks.register(\"check\") {                            ",
+      "  val staging = project.extra[\"staging\"] as FileCollection",
+      "  doLast {                                             ",
+      "    println(\"${project.name}: ${staging.files.map { it.name }.sorted()}\")",
+      "  }                                                    ",
+      "}                                                      "
+    };
+    repository.writeFile("app/build.gradle.kts", subprojectBuild);
+    repository.writeFile("lib/build.gradle.kts", subprojectBuild);
+    repository.git("add", ".");
+    repository.git("commit", "--message=subprojects");
+
+    repository.writeFile("app/src/A.java", "class A {}");
+    repository.writeFile("app/B.java", "class B {}");
+    repository.writeFile("lib/C.java", "class C {}");
+    repository.writeFile("D.java", "class D {}");
+    repository.git("add", ".");
+
+    // When:
+    BuildResult result =
+        GradleRunner.create()
+            .withProjectDir(tempDir.toFile())
+            .withArguments("staging", "check", "-PcaptainHook.projectStaging", "-s")
+            .withPluginClasspath()
+            .build();
+
+    // Then:
+    assertThat(result.getOutput()).contains("app: [A.java, B.java]", "lib: [C.java]");
+
+    assertSnapshotDeleted(repository);
+  }
+
+  @Test
+  void staging_WhenExecMetricsIsJson_ShouldWriteReport(@TempDir Path tempDir) throws IOException {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(APPLY_PLUGIN_SNIPPET);
+    repository.writeFile("file1.txt");
+    repository.git("add", ".");
+    // An untracked file makes sure that a stash is saved.
+    repository.writeFile("untracked.txt");
+
+    // When:
+    GradleRunner.create()
+        .withProjectDir(tempDir.toFile())
+        .withArguments("staging", "-PcaptainHook.execMetrics=json", "-s")
+        .withPluginClasspath()
+        .build();
+
+    // Then:
+    Path report = tempDir.resolve("build/reports/captain-hook/exec-metrics.json");
+    assertThat(new String(Files.readAllBytes(report), StandardCharsets.UTF_8))
+        .contains("\"command\": \"git stash\"");
+  }
+
+  @Test
+  void staging_WhenExecMetricsIsSetInExtension_ShouldWriteReport(@TempDir Path tempDir)
+      throws IOException {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(
+        APPLY_PLUGIN_SNIPPET,
+        "                                  ",
+        "captainHook {                     ",
+        "  execMetrics.set(true)           ",
+        "  execMetricsFormat.set(\"json\")  ",
+        "}                                 ");
+    repository.writeFile("file1.txt");
+    repository.git("add", ".");
+    // An untracked file makes sure that a stash is saved.
+    repository.writeFile("untracked.txt");
+
+    // When:
+    GradleRunner.create()
+        .withProjectDir(tempDir.toFile())
+        .withArguments("staging", "-s")
+        .withPluginClasspath()
+        .build();
+
+    // Then:
+    Path report = tempDir.resolve("build/reports/captain-hook/exec-metrics.json");
+    assertThat(new String(Files.readAllBytes(report), StandardCharsets.UTF_8))
+        .contains("\"command\": \"git stash\"");
+  }
+
+  @Test
+  void staging_WhenSandboxIsSetInExtension_ShouldFail(@TempDir Path tempDir) {
+    // Given:
+    GitRepository repository = new GitRepository(tempDir);
+
+    repository.commitBuild(
+        APPLY_PLUGIN_SNIPPET,
+        "                                  ",
+        "captainHook {                     ",
+        "  sandbox.set(true)               ",
+        "}                                 ");
+    repository.writeFile("file1.txt");
+    repository.git("add", ".");
+
+    // When:
+    BuildResult result =
+        GradleRunner.create()
+            .withProjectDir(tempDir.toFile())
+            .withArguments("staging", "-s")
+            .withPluginClasspath()
+            .buildAndFail();
+
+    // Then:
+    assertThat(result.getOutput()).contains("sandbox");
+    assertThat(tempDir.resolve("build/captain-hook/sandbox")).doesNotExist();
+    assertSnapshotDeleted(repository);
+  }
+
+  private static List<FileTime> getLastModifiedTimes(List<Path> files) throws IOException {
+    List<FileTime> lastModifiedTimes = new ArrayList<>();
+    for (Path file : files) {
+      lastModifiedTimes.add(Files.getLastModifiedTime(file));
+    }
+    return lastModifiedTimes;
+  }
+
+  private static String read(Path file) throws IOException {
+    return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+  }
+
   private static void assertSnapshotDeleted(GitRepository repository) {
     assertThat(repository.git("stash", "list")).as("git stash list").isEmpty();
   }
@@ -20,8 +20,10 @@ public class GitRepository {
     filesHelper = new FilesHelper();
 
     Project project = ProjectBuilder.builder().withProjectDir(directory.toFile()).build();
-    execHelper = new ExecHelper(project);
-    gitHelper = new GitHelper(execHelper);
+    execHelper = new ExecHelper(project, new ExecMetrics());
+    GitBatchHelper gitBatchHelper = new GitBatchHelper(execHelper);
+    gitHelper =
+        new GitHelper(execHelper, gitBatchHelper, new GitIndexHelper(execHelper, gitBatchHelper));
 
     init();
   }
@@ -37,7 +39,7 @@ public class GitRepository {
   public void commitBuild(String... lines) {
     writeFile("settings.gradle.kts");
     writeFile("build.gradle.kts", lines);
-    writeFile(".gitignore", ".gradle");
+    writeFile(".gitignore", ".gradle", "userHome");
     git("add", "settings.gradle.kts", "build.gradle.kts", ".gitignore");
     git("commit", "--message=build files");
   }
@@ -1,7 +1,12 @@
 package com.github.tjni.captainhook;
 
+import java.util.List;
 import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.MapProperty;
 import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.provider.ProviderFactory;
 
 /** Configuration for {@link CaptainHookPlugin}. */
 public class CaptainHookExtension {
@@ -19,6 +24,18 @@ public class CaptainHookExtension {
   public static final String EXTENSION_NAME = "captainHook";
 
   private final Property<Boolean> autoApplyGitHooks;
+  private final Property<String> snapshotStrategy;
+  private final Property<Boolean> pipePatches;
+  private final Property<Boolean> fingerprintUntracked;
+  private final Property<Boolean> sandbox;
+  private final Property<Boolean> lineRanges;
+  private final Property<Boolean> verifiedCache;
+  private final Property<Boolean> projectStaging;
+  private final Property<Boolean> execMetrics;
+  private final Property<String> execMetricsFormat;
+  private final ListProperty<String> untrackedExcludes;
+  private final ListProperty<String> verifiedCacheInputs;
+  private final MapProperty<String, List<String>> stagingTasks;
   private final Property<String> applypatchMsg;
   private final Property<String> preApplypatch;
   private final Property<String> postApplypatch;
@@ -40,9 +57,36 @@ public class CaptainHookExtension {
   private final Property<String> postRewrite;
   private final Property<String> sendemailValidate;
 
-  public CaptainHookExtension(ObjectFactory objectFactory) {
+  public CaptainHookExtension(ObjectFactory objectFactory, ProviderFactory providerFactory) {
     // noinspection UnstableApiUsage
     autoApplyGitHooks = objectFactory.property(Boolean.class).value(true);
+    snapshotStrategy =
+        objectFactory
+            .property(String.class)
+            .convention(
+                providerFactory
+                    .gradleProperty(EXTENSION_NAME + ".snapshotStrategy")
+                    .orElse("stash"));
+    pipePatches = booleanProperty(objectFactory, providerFactory, "pipePatches");
+    fingerprintUntracked = booleanProperty(objectFactory, providerFactory, "fingerprintUntracked");
+    sandbox = booleanProperty(objectFactory, providerFactory, "sandbox");
+    lineRanges = booleanProperty(objectFactory, providerFactory, "lineRanges");
+    verifiedCache = booleanProperty(objectFactory, providerFactory, "verifiedCache");
+    projectStaging = booleanProperty(objectFactory, providerFactory, "projectStaging");
+    execMetrics = booleanProperty(objectFactory, providerFactory, "execMetrics");
+    execMetricsFormat =
+        objectFactory
+            .property(String.class)
+            .convention(
+                providerFactory
+                    .gradleProperty(EXTENSION_NAME + ".execMetrics")
+                    .map(value -> value.equalsIgnoreCase("json") ? "json" : "text")
+                    .orElse("text"));
+    untrackedExcludes = objectFactory.listProperty(String.class).empty();
+    verifiedCacheInputs = objectFactory.listProperty(String.class).empty();
+    @SuppressWarnings("unchecked")
+    Class<List<String>> taskNamesClass = (Class<List<String>>) (Class<?>) List.class;
+    stagingTasks = objectFactory.mapProperty(String.class, taskNamesClass).empty();
     applypatchMsg = objectFactory.property(String.class);
     preApplypatch = objectFactory.property(String.class);
     postApplypatch = objectFactory.property(String.class);
@@ -79,6 +123,178 @@ public class CaptainHookExtension {
     return autoApplyGitHooks;
   }
 
+  /**
+   * How the {@code staging} task saves a snapshot of the changes that are not staged: {@code stash}
+   * to use {@code git stash}, or {@code tree} to record the index and the working tree as Git
+   * trees.
+   *
+   * <p>The snapshot is saved when the plugin is applied, before the rest of the build script is
+   * evaluated, so this can only be set with the {@code captainHook.snapshotStrategy} project
+   * property. It defaults to {@code stash}.
+   *
+   * @return how the snapshot of the changes that are not staged is saved
+   */
+  public Property<String> getSnapshotStrategy() {
+    return snapshotStrategy;
+  }
+
+  /**
+   * Whether the {@code staging} task pipes the patches of the changes that are not staged straight
+   * into {@code git apply} when they are restored, instead of writing them to files first.
+   *
+   * <p>This is read when the plugin is applied, so it can only be set with the {@code
+   * captainHook.pipePatches} project property. It defaults to whether that property is set to
+   * anything other than {@code false}.
+   *
+   * @return whether to pipe the patches of the changes that are not staged
+   */
+  public Property<Boolean> getPipePatches() {
+    return pipePatches;
+  }
+
+  /**
+   * Whether the {@code staging} task leaves untracked files in place and only restores the ones
+   * that the tasks changed or deleted, instead of saving them with the snapshot.
+   *
+   * <p>This is read when the plugin is applied, so it can only be set with the {@code
+   * captainHook.fingerprintUntracked} project property. It defaults to whether that property is set
+   * to anything other than {@code false}.
+   *
+   * @return whether to fingerprint untracked files
+   */
+  public Property<Boolean> getFingerprintUntracked() {
+    return fingerprintUntracked;
+  }
+
+  /**
+   * Whether the {@code staging} task exports the staged files into a sandbox under the build
+   * directory, instead of saving a snapshot and running the tasks in the working tree.
+   *
+   * <p>This is read when the plugin is applied, so it can only be set with the {@code
+   * captainHook.sandbox} project property. It defaults to whether that property is set to anything
+   * other than {@code false}.
+   *
+   * @return whether to run the tasks on a sandbox of the staged files
+   */
+  public Property<Boolean> getSandbox() {
+    return sandbox;
+  }
+
+  /**
+   * Whether the {@code staging} task publishes the ranges of staged lines of each staged file as
+   * the {@code stagingLineRanges} and {@code stagingLineRangesFile} properties.
+   *
+   * <p>This is read when the plugin is applied, so that the build script can use the properties,
+   * and can only be set with the {@code captainHook.lineRanges} project property. It defaults to
+   * whether that property is set to anything other than {@code false}.
+   *
+   * @return whether to publish the ranges of staged lines
+   */
+  public Property<Boolean> getLineRanges() {
+    return lineRanges;
+  }
+
+  /**
+   * Whether the {@code staging} task leaves files whose staged contents the tasks already verified
+   * out of the {@code staging} property.
+   *
+   * <p>This property defaults to whether the {@code captainHook.verifiedCache} project property is
+   * set to anything other than {@code false}.
+   *
+   * @return whether to skip files whose staged contents were already verified
+   * @see #getVerifiedCacheInputs()
+   */
+  public Property<Boolean> getVerifiedCache() {
+    return verifiedCache;
+  }
+
+  /**
+   * Whether the {@code staging} task sets the {@code staging} property of each subproject to only
+   * the staged files that belong to it.
+   *
+   * <p>This property defaults to whether the {@code captainHook.projectStaging} project property is
+   * set to anything other than {@code false}.
+   *
+   * @return whether to split the staged files among the projects
+   */
+  public Property<Boolean> getProjectStaging() {
+    return projectStaging;
+  }
+
+  /**
+   * Whether to report the commands that Captain Hook ran at the end of the build.
+   *
+   * <p>This property defaults to whether the {@code captainHook.execMetrics} project property is
+   * set to anything other than {@code false}.
+   *
+   * @return whether to report the commands that were run
+   * @see #getExecMetricsFormat()
+   */
+  public Property<Boolean> getExecMetrics() {
+    return execMetrics;
+  }
+
+  /**
+   * How the commands that Captain Hook ran are reported: {@code text} to print them, or {@code
+   * json} to write them to {@code build/reports/captain-hook/exec-metrics.json}.
+   *
+   * <p>This property defaults to {@code json} if the {@code captainHook.execMetrics} project
+   * property is set to {@code json}, and to {@code text} otherwise.
+   *
+   * @return how the commands that were run are reported
+   */
+  public Property<String> getExecMetricsFormat() {
+    return execMetricsFormat;
+  }
+
+  /**
+   * Patterns for untracked files that are never recorded by the {@code staging} task when untracked
+   * files are fingerprinted, such as large scratch directories or local data sets.
+   *
+   * <p>The patterns have the format of {@code .gitignore}. Untracked files that match them are left
+   * alone, but are not restored if the tasks change them.
+   *
+   * <p>This property defaults to an empty list.
+   *
+   * @return patterns for untracked files that are never recorded
+   */
+  public ListProperty<String> getUntrackedExcludes() {
+    return untrackedExcludes;
+  }
+
+  /**
+   * Configuration files of the tasks that run with the {@code staging} task, such as formatter or
+   * linter settings, whose contents decide whether files that the tasks already verified have to be
+   * checked again when the verified cache is enabled.
+   *
+   * <p>The paths are relative to the root project directory. The build script is always included.
+   *
+   * <p>This property defaults to an empty list.
+   *
+   * @return paths to configuration files of the tasks
+   */
+  public ListProperty<String> getVerifiedCacheInputs() {
+    return verifiedCacheInputs;
+  }
+
+  /**
+   * Globs mapped to the names of the tasks that the {@code staging} task runs on the staged files
+   * they match, such as {@code "*.java"} to {@code ["spotlessJavaApply"]}.
+   *
+   * <p>Only the tasks whose globs match a staged file are run, and each of them sees only the files
+   * it matches in its own {@code staging} extra property. The tasks of one glob run in the order
+   * they are listed, while the tasks of different globs are not ordered against each other. The
+   * globs have the format of {@code .gitignore} patterns relative to the root project directory.
+   *
+   * <p>This property defaults to an empty map, in which case the {@code staging} task runs nothing
+   * by itself and every task sees all staged files.
+   *
+   * @return globs mapped to the names of tasks in the project that applies the plugin
+   */
+  public MapProperty<String, List<String>> getStagingTasks() {
+    return stagingTasks;
+  }
+
   /**
    * The Git applypatch-msg hook.
    *
@@ -278,4 +494,19 @@ public class CaptainHookExtension {
   public Property<String> getSendemailValidate() {
     return sendemailValidate;
   }
+
+  /**
+   * Creates a flag that defaults to whether the project property of the same name under {@code
+   * captainHook} is set to anything other than {@code false}, such as with {@code
+   * -PcaptainHook.sandbox}.
+   */
+  private static Property<Boolean> booleanProperty(
+      ObjectFactory objectFactory, ProviderFactory providerFactory, String name) {
+    Provider<Boolean> isEnabled =
+        providerFactory
+            .gradleProperty(EXTENSION_NAME + "." + name)
+            .map(value -> !value.equalsIgnoreCase("false"))
+            .orElse(false);
+    return objectFactory.property(Boolean.class).convention(isEnabled);
+  }
 }
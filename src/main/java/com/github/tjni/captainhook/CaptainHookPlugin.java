@@ -29,7 +29,9 @@ public class CaptainHookPlugin implements Plugin<Project> {
   @VisibleForTesting
   void apply(ApplyPluginHelper applyPluginHelper) {
     applyPluginHelper.createApplyGitHooksTask();
+    applyPluginHelper.configureStagedExecTasks();
     applyPluginHelper.configureStaging();
     applyPluginHelper.maybeAutoApplyGitHooks();
+    applyPluginHelper.configureExecMetrics();
   }
 }
@@ -4,10 +4,16 @@ import com.github.tjni.captainhook.dagger.annotations.ProjectScope;
 import com.github.tjni.captainhook.dagger.modules.ProjectModule;
 import com.github.tjni.captainhook.dagger.modules.SingletonModule;
 import com.github.tjni.captainhook.helpers.ApplyGitHooksHelper;
+import com.github.tjni.captainhook.helpers.ExecMetrics;
 import com.github.tjni.captainhook.helpers.FilesHelper;
+import com.github.tjni.captainhook.helpers.GitBatchHelper;
 import com.github.tjni.captainhook.helpers.GitHelper;
 import com.github.tjni.captainhook.helpers.GradleHelper;
+import com.github.tjni.captainhook.helpers.SandboxHelper;
+import com.github.tjni.captainhook.helpers.StagedExecHelper;
 import com.github.tjni.captainhook.helpers.StagingHelper;
+import com.github.tjni.captainhook.helpers.StagingTasksHelper;
+import com.github.tjni.captainhook.helpers.VerifiedCacheHelper;
 import dagger.Component;
 import java.time.Clock;
 import javax.inject.Singleton;
@@ -20,11 +26,23 @@ public interface PluginComponent {
 
   GitHelper getGitHelper();
 
+  ExecMetrics getExecMetrics();
+
+  GitBatchHelper getGitBatchHelper();
+
   GradleHelper getGradleHelper();
 
   ApplyGitHooksHelper getApplyGitHooksHelper();
 
   StagingHelper getStagingHelper();
 
+  StagingTasksHelper getStagingTasksHelper();
+
+  StagedExecHelper getStagedExecHelper();
+
+  SandboxHelper getSandboxHelper();
+
+  VerifiedCacheHelper getVerifiedCacheHelper();
+
   Clock getClock();
 }
@@ -2,16 +2,34 @@ package com.github.tjni.captainhook.helpers;
 
 import com.github.tjni.captainhook.CaptainHookExtension;
 import com.github.tjni.captainhook.dagger.components.PluginComponent;
+import com.github.tjni.captainhook.helpers.GitHelper.LineRange;
+import com.github.tjni.captainhook.helpers.SandboxHelper.Sandbox;
 import com.github.tjni.captainhook.helpers.StagingHelper.Snapshot;
+import com.github.tjni.captainhook.helpers.StagingHelper.SnapshotOptions;
+import com.github.tjni.captainhook.helpers.StagingHelper.SnapshotStrategy;
+import com.github.tjni.captainhook.helpers.VerifiedCacheHelper.VerifiedCache;
 import com.github.tjni.captainhook.tasks.ApplyGitHooksTask;
+import com.github.tjni.captainhook.tasks.StagedExecTask;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import one.util.streamex.EntryStream;
+import one.util.streamex.StreamEx;
 import org.gradle.BuildResult;
+import org.gradle.api.GradleException;
 import org.gradle.api.Project;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
 import org.gradle.api.provider.Provider;
 import org.gradle.api.tasks.TaskContainer;
 
@@ -37,23 +55,306 @@ public class ApplyPluginHelper {
         .configure(this::configureApplyGitHooksTask);
   }
 
+  /**
+   * Gives the tasks that run external commands over the staged files what they need to run, in
+   * every project of the build.
+   */
+  public void configureStagedExecTasks() {
+    project.allprojects(
+        eachProject ->
+            eachProject
+                .getTasks()
+                .withType(StagedExecTask.class)
+                .configureEach(task -> task.setStagedExecHelper(component.getStagedExecHelper())));
+  }
+
   public void configureStaging() {
+    // The snapshot is saved before the rest of the build script is evaluated, so setting these
+    // there fails instead of being silently ignored.
+    StreamEx.<Property<?>>of(
+            extension.getSnapshotStrategy(),
+            extension.getPipePatches(),
+            extension.getFingerprintUntracked(),
+            extension.getSandbox(),
+            extension.getLineRanges())
+        .forEach(Property::finalizeValue);
+
     List<String> startTaskNames = project.getGradle().getStartParameter().getTaskNames();
     if (!startTaskNames.isEmpty() && startTaskNames.get(0).equals(STAGING_TASK_NAME)) {
       createStagingRootTask();
       if (component.getStagingHelper().isStagingEmpty()) {
         LOG.warn("Not running any tasks because the staging area is empty.");
         project.getGradle().getStartParameter().setExcludedTaskNames(startTaskNames);
+      } else if (extension.getSandbox().get()) {
+        configureSandbox();
       } else {
-        Snapshot snapshot = component.getStagingHelper().saveSnapshot();
+        SnapshotOptions options = getSnapshotOptions();
+        Snapshot snapshot = component.getStagingHelper().saveSnapshot(options);
         project.getExtensions().getExtraProperties().set("staging", snapshot.getStagedFiles());
+        configureLineRanges(snapshot.getStagedFiles(), snapshot.getStagedFiles());
+
+        AtomicReference<Snapshot> snapshotReference = new AtomicReference<>(snapshot);
+        if (options.isFingerprintUntrackedFiles()) {
+          // The excludes are configured by the build script, which is evaluated after the plugin
+          // is applied. The untracked files are left in place, so they can be recorded later.
+          project.afterEvaluate(
+              p ->
+                  snapshotReference.set(
+                      component
+                          .getStagingHelper()
+                          .fingerprintUntrackedFiles(
+                              snapshot, extension.getUntrackedExcludes().get())));
+        }
+        AtomicReference<VerifiedCache> verifiedCacheReference =
+            configureVerifiedCache(snapshot.getStagedFiles(), snapshot.getStagedFiles());
+        configureStagingTasks(snapshot.getStagedFiles(), snapshot.getStagedFiles());
+        configureProjectStaging(snapshot.getStagedFiles(), snapshot.getStagedFiles());
         project
             .getGradle()
-            .buildFinished(buildResult -> handleStagingBuildFinished(buildResult, snapshot));
+            .buildFinished(
+                buildResult ->
+                    handleStagingBuildFinished(
+                        buildResult, snapshotReference.get(), verifiedCacheReference.get()));
       }
+      project.getGradle().buildFinished(buildResult -> component.getGitBatchHelper().close());
+    }
+  }
+
+  /**
+   * Exports the staged files into a sandbox under the build directory and points the {@code
+   * staging} property at the exported copies, so that the working tree is left alone.
+   */
+  private void configureSandbox() {
+    Path sandboxDir = project.getBuildDir().toPath().resolve("captain-hook").resolve("sandbox");
+    Sandbox sandbox = component.getSandboxHelper().exportStagedFiles(sandboxDir);
+    project.getExtensions().getExtraProperties().set("staging", sandbox.getFiles());
+    configureLineRanges(sandbox.getStagedFiles(), sandbox.getFiles());
+    AtomicReference<VerifiedCache> verifiedCacheReference =
+        configureVerifiedCache(sandbox.getStagedFiles(), sandbox.getFiles());
+    configureStagingTasks(sandbox.getStagedFiles(), sandbox.getFiles());
+    configureProjectStaging(sandbox.getStagedFiles(), sandbox.getFiles());
+    project
+        .getGradle()
+        .buildFinished(
+            buildResult ->
+                handleSandboxBuildFinished(buildResult, sandbox, verifiedCacheReference.get()));
+  }
+
+  /**
+   * Publishes the ranges of staged lines of each staged file, keyed by its path in the {@code
+   * staging} property, as the {@code stagingLineRanges} property, and as JSON in the file of the
+   * {@code stagingLineRangesFile} property, if {@link CaptainHookExtension#getLineRanges()} is set.
+   *
+   * @param stagedFiles the staged files in the working tree
+   * @param stagingFiles the files that the {@code staging} property lists, in the same order
+   */
+  private void configureLineRanges(List<Path> stagedFiles, List<Path> stagingFiles) {
+    if (!extension.getLineRanges().get()) {
+      return;
+    }
+
+    Map<Path, List<LineRange>> stagedLineRanges =
+        component.getStagingHelper().getStagedLineRanges();
+    Map<Path, List<LineRange>> lineRanges =
+        EntryStream.zip(stagingFiles, stagedFiles)
+            .mapValues(
+                stagedFile -> stagedLineRanges.getOrDefault(stagedFile, Collections.emptyList()))
+            .toCustomMap(LinkedHashMap::new);
+
+    FilesHelper filesHelper = component.getFilesHelper();
+    Path outputDir =
+        filesHelper.createDirectories(project.getBuildDir().toPath().resolve("captain-hook"));
+    Path lineRangesFile =
+        filesHelper.write(
+            outputDir.resolve("staging-line-ranges.json"),
+            StagingHelper.formatLineRangesAsJson(lineRanges));
+
+    project.getExtensions().getExtraProperties().set("stagingLineRanges", lineRanges);
+    project.getExtensions().getExtraProperties().set("stagingLineRangesFile", lineRangesFile);
+  }
+
+  /**
+   * Removes the files whose staged contents were already verified from the {@code staging}
+   * property, if {@link CaptainHookExtension#getVerifiedCache()} is set.
+   *
+   * <p>The cache and the configuration files of the tasks are configured by the build script, which
+   * is evaluated after the plugin is applied, so the property is only narrowed down once the
+   * project has been evaluated.
+   *
+   * @param stagedFiles the staged files in the working tree
+   * @param stagingFiles the files that the {@code staging} property lists, in the same order
+   * @return a reference to the cache once it is opened, which stays empty if the cache is disabled
+   */
+  private AtomicReference<VerifiedCache> configureVerifiedCache(
+      List<Path> stagedFiles, List<Path> stagingFiles) {
+    AtomicReference<VerifiedCache> verifiedCacheReference = new AtomicReference<>();
+    project.afterEvaluate(
+        p -> {
+          if (!extension.getVerifiedCache().get()) {
+            return;
+          }
+
+          VerifiedCacheHelper verifiedCacheHelper = component.getVerifiedCacheHelper();
+          List<Path> inputFiles =
+              StreamEx.of(extension.getVerifiedCacheInputs().get())
+                  .map(input -> project.getRootDir().toPath().resolve(input))
+                  .prepend(project.getBuildFile().toPath())
+                  .toList();
+          VerifiedCache verifiedCache =
+              verifiedCacheHelper.open(
+                  verifiedCacheHelper.hashConfiguration(
+                      project.getGradle().getStartParameter().getTaskNames(), inputFiles));
+
+          Set<Path> unverifiedFiles =
+              new HashSet<>(verifiedCacheHelper.removeVerified(verifiedCache, stagedFiles));
+          project
+              .getExtensions()
+              .getExtraProperties()
+              .set(
+                  "staging",
+                  EntryStream.zip(stagedFiles, stagingFiles)
+                      .filterKeys(unverifiedFiles::contains)
+                      .values()
+                      .toList());
+          verifiedCacheReference.set(verifiedCache);
+        });
+    return verifiedCacheReference;
+  }
+
+  /**
+   * Makes the {@code staging} task depend on the tasks whose globs in {@link
+   * CaptainHookExtension#getStagingTasks()} match a staged file, and sets the {@code staging}
+   * property of each of those tasks to only the files it matches.
+   *
+   * <p>The globs are configured by the build script, so the tasks are only routed once the project
+   * has been evaluated, after the {@code staging} property may have been narrowed down by the
+   * verified cache. Tasks that no staged file is routed to are never configured.
+   *
+   * @param stagedFiles the staged files in the working tree
+   * @param stagingFiles the files that the {@code staging} property lists, in the same order
+   */
+  private void configureStagingTasks(List<Path> stagedFiles, List<Path> stagingFiles) {
+    project.afterEvaluate(
+        p -> {
+          Map<String, List<String>> stagingTasks = extension.getStagingTasks().get();
+          if (stagingTasks.isEmpty()) {
+            return;
+          }
+
+          Set<?> remainingFiles =
+              new HashSet<>((List<?>) project.getExtensions().getExtraProperties().get("staging"));
+          Map<String, List<Path>> routes =
+              component
+                  .getStagingTasksHelper()
+                  .route(
+                      stagingTasks,
+                      EntryStream.zip(stagedFiles, stagingFiles)
+                          .filterValues(remainingFiles::contains)
+                          .toCustomMap(LinkedHashMap::new));
+
+          routes.forEach(
+              (taskName, files) ->
+                  tasks
+                      .named(taskName)
+                      .configure(
+                          task -> task.getExtensions().getExtraProperties().set("staging", files)));
+          // Like the commands of a glob in lint-staged, the tasks of a glob run one after another.
+          StreamEx.ofValues(stagingTasks)
+              .forEach(
+                  taskNames ->
+                      StreamEx.of(taskNames)
+                          .filter(routes::containsKey)
+                          .forPairs(
+                              (before, after) ->
+                                  tasks.named(after).configure(task -> task.mustRunAfter(before))));
+          tasks
+              .named(STAGING_TASK_NAME)
+              .configure(task -> task.dependsOn(new ArrayList<>(routes.keySet())));
+          LOG.info("Routed the staged files to {}.", routes.keySet());
+        });
+  }
+
+  /**
+   * Sets the {@code staging} property of each subproject to a file collection of only the staged
+   * files that belong to it, if {@link CaptainHookExtension#getProjectStaging()} is set. A file
+   * belongs to the deepest project whose directory contains it.
+   *
+   * <p>Subprojects are evaluated after the root project, so the files are split up once the root
+   * project has been evaluated, after the {@code staging} property may have been narrowed down by
+   * the verified cache. The {@code staging} property of the root project keeps all staged files.
+   *
+   * @param stagedFiles the staged files in the working tree
+   * @param stagingFiles the files that the {@code staging} property lists, in the same order
+   */
+  private void configureProjectStaging(List<Path> stagedFiles, List<Path> stagingFiles) {
+    project.afterEvaluate(
+        p -> {
+          if (!extension.getProjectStaging().get()) {
+            return;
+          }
+
+          PathTrie<Project> projectTrie = new PathTrie<>();
+          for (Project each : project.getAllprojects()) {
+            projectTrie.put(toRealPath(each.getProjectDir().toPath()), each);
+          }
+
+          Set<?> remainingFiles =
+              new HashSet<>((List<?>) project.getExtensions().getExtraProperties().get("staging"));
+          Map<Project, List<Path>> projectFiles = new HashMap<>();
+          EntryStream.zip(stagedFiles, stagingFiles)
+              .filterValues(remainingFiles::contains)
+              .forKeyValue(
+                  (stagedFile, stagingFile) ->
+                      projectTrie
+                          .findLongestPrefix(stagedFile)
+                          .ifPresent(
+                              owner ->
+                                  projectFiles
+                                      .computeIfAbsent(owner, o -> new ArrayList<>())
+                                      .add(stagingFile)));
+
+          for (Project subproject : project.getSubprojects()) {
+            subproject
+                .getExtensions()
+                .getExtraProperties()
+                .set(
+                    "staging",
+                    subproject.files(
+                        projectFiles.getOrDefault(subproject, Collections.emptyList())));
+          }
+          LOG.info(
+              "Split the staged files among {} of {} projects.",
+              projectFiles.size(),
+              project.getAllprojects().size());
+        });
+  }
+
+  /** Resolves symbolic links in a directory, so that it can be compared with paths from Git. */
+  private static Path toRealPath(Path dir) {
+    try {
+      return dir.toRealPath();
+    } catch (IOException e) {
+      return dir.toAbsolutePath().normalize();
     }
   }
 
+  /**
+   * Reports the commands that were run at the end of the build, if {@link
+   * CaptainHookExtension#getExecMetrics()} is set. The report is written as JSON under {@code
+   * build/reports/captain-hook} if {@link CaptainHookExtension#getExecMetricsFormat()} is {@code
+   * json}, and is printed otherwise.
+   */
+  public void configureExecMetrics() {
+    project
+        .getGradle()
+        .buildFinished(
+            buildResult -> {
+              if (extension.getExecMetrics().get()) {
+                reportExecMetrics(extension.getExecMetricsFormat().get());
+              }
+            });
+  }
+
   public void maybeAutoApplyGitHooks() {
     project.afterEvaluate(p -> doMaybeAutoApplyGitHooks());
   }
@@ -136,11 +437,67 @@ public class ApplyPluginHelper {
     getGitHooks().forEach(task.getGitHooks()::put);
   }
 
+  /** Returns the snapshot strategy and the other snapshot options set in the extension. */
+  private SnapshotOptions getSnapshotOptions() {
+    return ImmutableSnapshotOptions.builder()
+        .setStrategy(getSnapshotStrategy())
+        .setIsPipePatches(extension.getPipePatches().get())
+        .setIsFingerprintUntrackedFiles(extension.getFingerprintUntracked().get())
+        .build();
+  }
+
+  private SnapshotStrategy getSnapshotStrategy() {
+    String strategy = extension.getSnapshotStrategy().get();
+    return StreamEx.of(SnapshotStrategy.values())
+        .findFirst(value -> value.name().equalsIgnoreCase(strategy))
+        .orElseThrow(
+            () ->
+                new GradleException(
+                    String.format(
+                        "Unknown snapshot strategy \"%s\"; expected one of %s.",
+                        strategy,
+                        StreamEx.of(SnapshotStrategy.values())
+                            .map(value -> value.name().toLowerCase(Locale.ROOT))
+                            .joining(", "))));
+  }
+
   private void createStagingRootTask() {
     tasks.register(STAGING_TASK_NAME);
   }
 
-  private void handleStagingBuildFinished(BuildResult buildResult, Snapshot snapshot) {
+  private void reportExecMetrics(String format) {
+    ExecMetrics execMetrics = component.getExecMetrics();
+    if (execMetrics.isEmpty()) {
+      return;
+    }
+
+    if (format.equals("json")) {
+      FilesHelper filesHelper = component.getFilesHelper();
+      Path reportsDir =
+          filesHelper.createDirectories(
+              project.getBuildDir().toPath().resolve("reports").resolve("captain-hook"));
+      Path report =
+          filesHelper.write(reportsDir.resolve("exec-metrics.json"), execMetrics.toJson());
+      LOG.lifecycle("Captain Hook wrote command metrics to {}.", report);
+    } else {
+      LOG.lifecycle(execMetrics.formatSummaries());
+    }
+  }
+
+  private void handleSandboxBuildFinished(
+      BuildResult buildResult, Sandbox sandbox, VerifiedCache verifiedCache) {
+    try {
+      if (buildResult.getFailure() == null) {
+        component.getSandboxHelper().applyModifications(sandbox);
+        recordVerified(verifiedCache);
+      }
+    } finally {
+      component.getSandboxHelper().deleteSandbox(sandbox);
+    }
+  }
+
+  private void handleStagingBuildFinished(
+      BuildResult buildResult, Snapshot snapshot, VerifiedCache verifiedCache) {
     if (buildResult.getFailure() == null) {
       try {
         component.getStagingHelper().applyModifications(snapshot);
@@ -153,5 +510,15 @@ public class ApplyPluginHelper {
     }
 
     component.getStagingHelper().deleteSnapshot(snapshot);
+
+    if (buildResult.getFailure() == null) {
+      recordVerified(verifiedCache);
+    }
+  }
+
+  private void recordVerified(VerifiedCache verifiedCache) {
+    if (verifiedCache != null) {
+      component.getVerifiedCacheHelper().recordUnchanged(verifiedCache);
+    }
   }
 }
@@ -1,17 +1,39 @@
 package com.github.tjni.captainhook.helpers;
 
 import com.github.tjni.captainhook.annotations.ImmutableStyle;
+import com.github.tjni.captainhook.annotations.VisibleForTesting;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
 import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import one.util.streamex.StreamEx;
@@ -19,54 +41,291 @@ import org.gradle.api.Project;
 import org.immutables.value.Value.Default;
 import org.immutables.value.Value.Immutable;
 
-/** A helper for executing commands. */
+/**
+ * A helper for executing commands.
+ *
+ * <p>The standard streams of a process are serviced concurrently so that a process that fills one
+ * pipe while we are reading another cannot block forever. They are serviced by a small pool of
+ * daemon threads, which are reused across commands. When more commands run at once than the pool
+ * has threads for, the extra streams are serviced by daemon threads of their own rather than
+ * queued, because a queued stream could block its process. Every command that runs to completion is
+ * recorded in {@link ExecMetrics}.
+ *
+ * <p>This class is thread-safe, so independent commands can be run at the same time, for example
+ * with {@link #runConcurrently(Runnable...)}.
+ */
 @Singleton
 public class ExecHelper {
+  /** The maximum number of bytes of standard error that are kept for a single command. */
+  @VisibleForTesting static final int MAX_STDERR_LENGTH = 64 * 1024;
+
+  private static final int BUFFER_SIZE = 8192;
+  private static final long EXIT_GRACE_MILLIS = 1000;
+
+  /**
+   * Each command that runs at once needs a thread for standard input and one for standard error.
+   */
+  @VisibleForTesting
+  static final int MAX_POOLED_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+  private final ExecutorService executor = newStreamExecutor();
   private final Path workingDir;
+  private final ExecMetrics execMetrics;
 
   @Inject
-  public ExecHelper(Project project) {
+  public ExecHelper(Project project, ExecMetrics execMetrics) {
     workingDir = project.getRootDir().toPath();
+    this.execMetrics = execMetrics;
   }
 
   public String exec(String executable, String... args) {
-    ExecResult result = rawExec(executable, args);
+    return exec(ImmutableExecRequest.builder().setExecutable(executable).setArgs(args).build());
+  }
+
+  /**
+   * Executes a command, writing the request's standard input to the process.
+   *
+   * @param request the command to execute, its standard input and its environment
+   * @return the trimmed standard output of the command
+   * @throws ExecException if the command exits with a non-zero exit code
+   */
+  public String exec(ExecRequest request) {
+    ExecResult result = rawExec(request, stream -> readStream(stream, Integer.MAX_VALUE).trim());
 
     if (result.getExitCode() != 0) {
       throw new ExecException(
-          String.join(" ", getCommand(executable, args)), result.getExitCode(), result.getStderr());
+          String.join(" ", getCommand(request.getExecutable(), request.getArgs())),
+          result.getExitCode(),
+          result.getStderr());
     }
 
     return result.getStdout();
   }
 
   public ExecResult rawExec(String executable, String... args) {
-    return rawExec(ImmutableExecRequest.builder().setExecutable(executable).setArgs(args).build());
+    return rawExec(
+        ImmutableExecRequest.builder().setExecutable(executable).setArgs(args).build(),
+        stream -> readStream(stream, Integer.MAX_VALUE).trim());
   }
 
-  private ExecResult rawExec(ExecRequest request) {
-    List<String> command = getCommand(request.getExecutable(), request.getArgs());
-    ProcessBuilder processBuilder = new ProcessBuilder(command).directory(workingDir.toFile());
+  /**
+   * Executes a command and passes each line of its standard output to a consumer as it is read.
+   *
+   * <p>Unlike {@link #exec(String, String...)}, the output is never held in memory as a whole, so
+   * memory use is proportional to what the consumer keeps rather than to the size of the output.
+   *
+   * @param lineConsumer receives each line of standard output, without its line terminator
+   * @param executable the executable to run
+   * @param args arguments to the executable
+   * @return the trimmed standard error of the command
+   * @throws ExecException if the command exits with a non-zero exit code
+   */
+  public String stream(Consumer<String> lineConsumer, String executable, String... args) {
+    return stream(lineConsumer, process -> {}, executable, args);
+  }
 
-    Process process;
+  /**
+   * Executes a command like {@link #stream(Consumer, String, String...)}, and also passes the
+   * started process to a consumer, so that another thread can destroy it.
+   *
+   * @param lineConsumer receives each line of standard output, without its line terminator
+   * @param processConsumer receives the process once it is started, on another thread
+   * @param executable the executable to run
+   * @param args arguments to the executable
+   * @return the trimmed standard error of the command
+   * @throws ExecException if the command exits with a non-zero exit code
+   */
+  public String stream(
+      Consumer<String> lineConsumer,
+      Consumer<Process> processConsumer,
+      String executable,
+      String... args) {
+    ExecRequest request =
+        ImmutableExecRequest.builder().setExecutable(executable).setArgs(args).build();
+    ExecResult result =
+        rawExec(
+            request,
+            process -> {
+              processConsumer.accept(process);
+              writeStdin(process, request);
+            },
+            stream -> {
+              readLines(stream, lineConsumer);
+              return "";
+            });
+
+    checkExitCode(request, result);
+    return result.getStderr();
+  }
+
+  /**
+   * Starts a long-lived process whose standard input and output are managed by the caller.
+   *
+   * <p>Standard error is drained in the background and discarded. The caller is responsible for
+   * closing standard input and waiting for the process to exit.
+   *
+   * @param executable the executable to start
+   * @param args arguments to the executable
+   * @return the started process
+   */
+  public Process start(String executable, String... args) {
+    Process process = startProcess(getCommand(executable, args), Collections.emptyMap());
+    executor.execute(() -> readStream(process.getErrorStream(), 0));
+    return process;
+  }
+
+  /**
+   * Executes a command and passes each delimited record of its standard output to a consumer as it
+   * is read.
+   *
+   * <p>Records are passed as raw bytes and are never decoded by this method, which makes it
+   * suitable for parsing the NUL-delimited output that many Git commands print with {@code -z}.
+   *
+   * @param delimiter the byte that terminates each record
+   * @param recordConsumer receives each record, without its delimiter
+   * @param executable the executable to run
+   * @param args arguments to the executable
+   * @throws ExecException if the command exits with a non-zero exit code
+   */
+  public void streamRecords(
+      byte delimiter, RecordConsumer recordConsumer, String executable, String... args) {
+    ExecResult result =
+        rawExec(
+            ImmutableExecRequest.builder().setExecutable(executable).setArgs(args).build(),
+            stream -> {
+              readRecords(stream, delimiter, recordConsumer);
+              return "";
+            });
+
+    if (result.getExitCode() != 0) {
+      throw new ExecException(
+          String.join(" ", getCommand(executable, args)), result.getExitCode(), result.getStderr());
+    }
+  }
+
+  /**
+   * Runs tasks that execute commands at the same time, and waits for all of them to finish.
+   *
+   * <p>The tasks must not depend on each other. Even if a task fails, the others are waited for, so
+   * that no command is still running when this method returns.
+   *
+   * @param tasks the tasks to run
+   * @throws RuntimeException the exception thrown by the first task that failed, in argument order
+   */
+  public void runConcurrently(Runnable... tasks) {
+    if (tasks.length == 1) {
+      tasks[0].run();
+      return;
+    }
+
+    List<CompletableFuture<Void>> futures =
+        StreamEx.of(tasks).map(task -> CompletableFuture.runAsync(task, executor)).toList();
     try {
-      process = processBuilder.start();
-    } catch (IOException e) {
-      throw new UncheckedIOException(e);
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+    } catch (CompletionException e) {
+      // Rethrown below in argument order.
+    }
+    futures.forEach(ExecHelper::join);
+  }
+
+  /**
+   * Pipes the standard output of one command into the standard input of another, without holding
+   * the output in memory.
+   *
+   * <p>The second command is only started if the first command prints something other than
+   * whitespace, which is checked from the stream as it is read.
+   *
+   * @param source the command whose standard output is piped
+   * @param sink the command that reads the output of the source; its own standard input is ignored
+   * @return whether the sink was run
+   * @throws ExecException if either command exits with a non-zero exit code
+   */
+  public boolean pipe(ExecRequest source, ExecRequest sink) {
+    List<ExecResult> sinkResults = new ArrayList<>(1);
+    ExecResult sourceResult =
+        rawExec(
+            source,
+            process -> writeStdin(process, source),
+            stream -> {
+              Optional<InputStream> output = skipIfBlank(stream);
+              if (output.isPresent()) {
+                sinkResults.add(
+                    rawExec(
+                        sink,
+                        process -> copyStdin(process, output.get()),
+                        sinkStream -> readStream(sinkStream, Integer.MAX_VALUE).trim()));
+              }
+              // Drain whatever the sink did not read, so that the source can exit.
+              readStream(stream, 0);
+              return "";
+            });
+
+    checkExitCode(source, sourceResult);
+    sinkResults.forEach(sinkResult -> checkExitCode(sink, sinkResult));
+    return !sinkResults.isEmpty();
+  }
+
+  private static void checkExitCode(ExecRequest request, ExecResult result) {
+    if (result.getExitCode() != 0) {
+      throw new ExecException(
+          String.join(" ", getCommand(request.getExecutable(), request.getArgs())),
+          result.getExitCode(),
+          result.getStderr());
     }
+  }
+
+  private ExecResult rawExec(ExecRequest request, Function<InputStream, String> stdoutReader) {
+    return rawExec(request, process -> writeStdin(process, request), stdoutReader);
+  }
 
-    writeStdin(process, request.getStdin());
+  private ExecResult rawExec(
+      ExecRequest request,
+      Consumer<Process> stdinWriter,
+      Function<InputStream, String> stdoutReader) {
+    long startNanos = System.nanoTime();
+    Process process =
+        startProcess(
+            getCommand(request.getExecutable(), request.getArgs()), request.getEnvironment());
 
-    String stdout = readStream(process.getInputStream()).trim();
-    String stderr = readStream(process.getErrorStream()).trim();
+    CountingInputStream stdoutStream = new CountingInputStream(process.getInputStream());
+    CountingInputStream stderrStream = new CountingInputStream(process.getErrorStream());
+
+    CompletableFuture<Void> stdinFuture =
+        CompletableFuture.runAsync(() -> stdinWriter.accept(process), executor);
+    CompletableFuture<String> stderrFuture =
+        CompletableFuture.supplyAsync(() -> readStream(stderrStream, MAX_STDERR_LENGTH), executor);
+
+    // Standard output is read on this thread while the other streams are serviced by the
+    // executor, so waiting for the process to exit overlaps with draining standard error.
+    String stdout;
+    try {
+      stdout = stdoutReader.apply(stdoutStream);
+    } catch (RuntimeException e) {
+      process.destroy();
+      throw e;
+    }
 
     int exitCode;
     try {
       exitCode = process.waitFor();
     } catch (InterruptedException e) {
+      process.destroy();
+      Thread.currentThread().interrupt();
       throw new RuntimeException("The thread waiting for the process was interrupted.", e);
     }
 
+    join(stdinFuture);
+    String stderr = join(stderrFuture).trim();
+
+    execMetrics.record(
+        ImmutableExecRecord.builder()
+            .setCommand(ExecMetrics.getCommandName(request.getExecutable(), request.getArgs()))
+            .setDurationNanos(System.nanoTime() - startNanos)
+            .setExitCode(exitCode)
+            .setStdoutBytes(stdoutStream.getCount())
+            .setStderrBytes(stderrStream.getCount())
+            .build());
+
     return ImmutableExecResult.builder()
         .setExitCode(exitCode)
         .setStdout(stdout)
@@ -74,35 +333,211 @@ public class ExecHelper {
         .build();
   }
 
-  private static void writeStdin(Process process, String stdin) {
-    if (!stdin.isEmpty()) {
-      OutputStream stream = process.getOutputStream();
-      try (Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8)) {
-        writer.write(stdin);
-      } catch (IOException e) {
+  private Process startProcess(List<String> command, Map<String, String> environment) {
+    ProcessBuilder processBuilder = new ProcessBuilder(command).directory(workingDir.toFile());
+    processBuilder.environment().putAll(environment);
+    try {
+      return processBuilder.start();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void writeStdin(Process process, ExecRequest request) {
+    OutputStream stream = process.getOutputStream();
+    try (Writer writer =
+        new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+      writer.write(request.getStdin());
+      for (String record : request.getStdinRecords()) {
+        writer.write(record);
+        writer.write('\0');
+      }
+    } catch (IOException e) {
+      // The process exited without reading all of its input, which is reflected in its exit code.
+      boolean hasStdin = !request.getStdin().isEmpty() || !request.getStdinRecords().isEmpty();
+      if (hasStdin && !hasExited(process)) {
         throw new UncheckedIOException(e);
       }
     }
   }
 
-  private static String readStream(InputStream stream) {
+  private static void copyStdin(Process process, InputStream input) {
+    try (OutputStream stream = process.getOutputStream()) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int length;
+      while ((length = input.read(buffer)) != -1) {
+        stream.write(buffer, 0, length);
+      }
+    } catch (IOException e) {
+      // The process exited without reading all of its input, which is reflected in its exit code.
+      if (!hasExited(process)) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Checks whether a process exited after its standard input was closed on the writer, which can
+   * happen a moment before the process is reaped.
+   */
+  private static boolean hasExited(Process process) {
+    try {
+      return process.waitFor(EXIT_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Reads a stream up to its first byte that would not be removed by {@link String#trim()}.
+   *
+   * @return a stream with the whole content, or empty if the stream only contains whitespace
+   */
+  private static Optional<InputStream> skipIfBlank(InputStream stream) {
+    ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+    try {
+      int b;
+      while ((b = stream.read()) != -1) {
+        prefix.write(b);
+        if (b > ' ') {
+          // SequenceInputStream closes each stream it exhausts, but the caller still drains this
+          // one after the sink exits.
+          InputStream unclosableStream =
+              new FilterInputStream(stream) {
+                @Override
+                public void close() {}
+              };
+          return Optional.of(
+              new SequenceInputStream(
+                  new ByteArrayInputStream(prefix.toByteArray()), unclosableStream));
+        }
+      }
+      return Optional.empty();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Reads a stream until it is exhausted, keeping at most {@code maxLength} bytes.
+   *
+   * <p>The stream is always read to the end so that the process writing to it does not block on a
+   * full pipe.
+   */
+  private static String readStream(InputStream stream, int maxLength) {
     ByteArrayOutputStream result = new ByteArrayOutputStream();
+    boolean truncated = false;
 
     try {
-      byte[] buffer = new byte[1024];
+      byte[] buffer = new byte[BUFFER_SIZE];
       int length;
       while ((length = stream.read(buffer)) != -1) {
-        result.write(buffer, 0, length);
+        int remaining = maxLength - result.size();
+        if (length > remaining) {
+          truncated = true;
+        }
+        result.write(buffer, 0, Math.min(length, remaining));
       }
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
 
+    if (!truncated) {
+      try {
+        return result.toString(StandardCharsets.UTF_8.name());
+      } catch (UnsupportedEncodingException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    byte[] bytes = result.toByteArray();
+    String str = new String(bytes, 0, getCodePointBoundary(bytes), StandardCharsets.UTF_8);
+    return str + System.lineSeparator() + "[truncated]";
+  }
+
+  /**
+   * Finds the length of UTF-8 bytes without a trailing incomplete sequence, so that truncated
+   * output does not end with a split character.
+   */
+  private static int getCodePointBoundary(byte[] bytes) {
+    // A sequence is at most four bytes, and continuation bytes have the form 10xxxxxx.
+    int start = bytes.length;
+    while (start > 0 && bytes.length - start < 4 && (bytes[start - 1] & 0xC0) == 0x80) {
+      start--;
+    }
+    if (start == 0) {
+      return bytes.length;
+    }
+
+    int lead = bytes[start - 1] & 0xFF;
+    int sequenceLength = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+    return bytes.length - (start - 1) >= sequenceLength ? bytes.length : start - 1;
+  }
+
+  private static void readLines(InputStream stream, Consumer<String> lineConsumer) {
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8), BUFFER_SIZE);
     try {
-      return result.toString(StandardCharsets.UTF_8.name());
-    } catch (UnsupportedEncodingException e) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineConsumer.accept(line);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @VisibleForTesting
+  static void readRecords(InputStream stream, byte delimiter, RecordConsumer recordConsumer) {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int start = 0;
+    int end = 0;
+
+    try {
+      while (true) {
+        if (end == buffer.length) {
+          if (start > 0) {
+            // Move the partial record at the end of the buffer to the front.
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+          } else {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+          }
+        }
+
+        int length = stream.read(buffer, end, buffer.length - end);
+        if (length == -1) {
+          break;
+        }
+
+        for (int i = end; i < end + length; i++) {
+          if (buffer[i] == delimiter) {
+            recordConsumer.accept(buffer, start, i - start);
+            start = i + 1;
+          }
+        }
+        end += length;
+      }
+    } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
+
+    if (start < end) {
+      recordConsumer.accept(buffer, start, end - start);
+    }
+  }
+
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
   }
 
   private static List<String> getCommand(String executable, String... args) {
@@ -120,6 +555,15 @@ public class ExecHelper {
     default String getStdin() {
       return "";
     }
+
+    /**
+     * Records that are written to standard input after {@link #getStdin()}, each followed by a NUL
+     * byte. They are encoded while the process reads them, rather than joined in memory first.
+     */
+    List<String> getStdinRecords();
+
+    /** Variables that are added to the environment of the process. */
+    Map<String, String> getEnvironment();
   }
 
   @Immutable
@@ -132,15 +576,88 @@ public class ExecHelper {
     String getStderr();
   }
 
+  /** Receives records that are read from the output of a command. */
+  @FunctionalInterface
+  public interface RecordConsumer {
+    /**
+     * Receives a record. The buffer is reused after this method returns.
+     *
+     * @param buffer the buffer that contains the record
+     * @param offset the offset of the record in the buffer
+     * @param length the length of the record
+     */
+    void accept(byte[] buffer, int offset, int length);
+  }
+
+  /** Counts the bytes read from a stream. */
+  private static class CountingInputStream extends FilterInputStream {
+    private volatile long count;
+
+    CountingInputStream(InputStream stream) {
+      super(stream);
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int result = super.read(buffer, offset, length);
+      if (result > 0) {
+        count += result;
+      }
+      return result;
+    }
+  }
+
+  private static ExecutorService newStreamExecutor() {
+    ThreadFactory threadFactory = new StreamThreadFactory();
+    return new ThreadPoolExecutor(
+        0,
+        MAX_POOLED_THREADS,
+        60,
+        TimeUnit.SECONDS,
+        new SynchronousQueue<>(),
+        threadFactory,
+        (runnable, pool) -> threadFactory.newThread(runnable).start());
+  }
+
+  private static class StreamThreadFactory implements ThreadFactory {
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "captain-hook-exec-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
   public static class ExecException extends RuntimeException {
+    private final int exitCode;
     private final String error;
 
     public ExecException(String command, int exitCode, String error) {
       super(
           String.format("Command %s exited with code %d and error %s.", command, exitCode, error));
+      this.exitCode = exitCode;
       this.error = error;
     }
 
+    public int getExitCode() {
+      return exitCode;
+    }
+
     public String getError() {
       return error;
     }
@@ -0,0 +1,203 @@
+package com.github.tjni.captainhook.helpers;
+
+import com.github.tjni.captainhook.annotations.ImmutableStyle;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import one.util.streamex.EntryStream;
+import one.util.streamex.LongStreamEx;
+import one.util.streamex.StreamEx;
+import org.immutables.value.Value;
+
+/**
+ * Records every command run by {@link ExecHelper} and aggregates them per subcommand.
+ *
+ * <p>Commands are grouped by their executable and first argument that is not an option, such as
+ * {@code git stash}, so that the time spent in each kind of Git call can be compared.
+ */
+@Singleton
+public class ExecMetrics {
+  private final Map<String, List<ExecRecord>> recordsByCommand = new LinkedHashMap<>();
+
+  @Inject
+  public ExecMetrics() {}
+
+  /**
+   * Records a command that has exited.
+   *
+   * @param record the command and how it ran
+   */
+  public synchronized void record(ExecRecord record) {
+    recordsByCommand.computeIfAbsent(record.getCommand(), command -> new ArrayList<>()).add(record);
+  }
+
+  /**
+   * Returns the aggregated metrics of each subcommand, in the order they were first run.
+   *
+   * @return the aggregated metrics of each subcommand
+   */
+  public synchronized List<ExecSummary> getSummaries() {
+    return EntryStream.of(recordsByCommand).mapKeyValue(ExecMetrics::summarize).toList();
+  }
+
+  /**
+   * Formats the aggregated metrics as a table for the build log.
+   *
+   * @return the formatted metrics
+   */
+  public String formatSummaries() {
+    List<ExecSummary> summaries = getSummaries();
+    long count = StreamEx.of(summaries).mapToLong(ExecSummary::getCount).sum();
+    long totalMillis = StreamEx.of(summaries).mapToLong(ExecSummary::getTotalMillis).sum();
+
+    StringBuilder builder =
+        new StringBuilder(
+            String.format(
+                Locale.ROOT, "Captain Hook ran %d commands in %d ms.%n", count, totalMillis));
+    builder.append(
+        String.format(
+            Locale.ROOT,
+            "%-24s %6s %7s %10s %8s %8s %8s %12s %12s%n",
+            "command",
+            "count",
+            "failed",
+            "total ms",
+            "p50 ms",
+            "p95 ms",
+            "max ms",
+            "stdout B",
+            "stderr B"));
+    for (ExecSummary summary : summaries) {
+      builder.append(
+          String.format(
+              Locale.ROOT,
+              "%-24s %6d %7d %10d %8d %8d %8d %12d %12d%n",
+              summary.getCommand(),
+              summary.getCount(),
+              summary.getFailureCount(),
+              summary.getTotalMillis(),
+              summary.getP50Millis(),
+              summary.getP95Millis(),
+              summary.getMaxMillis(),
+              summary.getStdoutBytes(),
+              summary.getStderrBytes()));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Formats the aggregated metrics as JSON, for reports that are compared across builds.
+   *
+   * @return the metrics as a JSON document
+   */
+  public String toJson() {
+    return StreamEx.of(getSummaries())
+        .map(
+            summary ->
+                String.format(
+                    Locale.ROOT,
+                    "    {\"command\": \"%s\", \"count\": %d, \"failureCount\": %d,"
+                        + " \"totalMillis\": %d, \"p50Millis\": %d, \"p95Millis\": %d,"
+                        + " \"maxMillis\": %d, \"stdoutBytes\": %d, \"stderrBytes\": %d}",
+                    Json.escape(summary.getCommand()),
+                    summary.getCount(),
+                    summary.getFailureCount(),
+                    summary.getTotalMillis(),
+                    summary.getP50Millis(),
+                    summary.getP95Millis(),
+                    summary.getMaxMillis(),
+                    summary.getStdoutBytes(),
+                    summary.getStderrBytes()))
+        .joining(",\n", "{\n  \"commands\": [\n", "\n  ]\n}\n");
+  }
+
+  /**
+   * Returns the name that a command is grouped under.
+   *
+   * @param executable the executable that was run
+   * @param args arguments to the executable
+   * @return the executable and its first argument that is not an option
+   */
+  static String getCommandName(String executable, String... args) {
+    return StreamEx.of(args)
+        .findFirst(arg -> !arg.startsWith("-"))
+        .map(subcommand -> executable + " " + subcommand)
+        .orElse(executable);
+  }
+
+  private static ExecSummary summarize(String command, List<ExecRecord> records) {
+    long[] sortedMillis =
+        StreamEx.of(records)
+            .mapToLong(record -> TimeUnit.NANOSECONDS.toMillis(record.getDurationNanos()))
+            .sorted()
+            .toArray();
+
+    return ImmutableExecSummary.builder()
+        .setCommand(command)
+        .setCount(records.size())
+        .setFailureCount(StreamEx.of(records).filter(record -> record.getExitCode() != 0).count())
+        .setTotalMillis(LongStreamEx.of(sortedMillis).sum())
+        .setP50Millis(percentile(sortedMillis, 50))
+        .setP95Millis(percentile(sortedMillis, 95))
+        .setMaxMillis(sortedMillis[sortedMillis.length - 1])
+        .setStdoutBytes(StreamEx.of(records).mapToLong(ExecRecord::getStdoutBytes).sum())
+        .setStderrBytes(StreamEx.of(records).mapToLong(ExecRecord::getStderrBytes).sum())
+        .build();
+  }
+
+  /** Returns a percentile of sorted values with the nearest-rank method. */
+  private static long percentile(long[] sortedValues, int percentile) {
+    int rank = (int) Math.ceil(percentile / 100.0 * sortedValues.length);
+    return sortedValues[Math.max(rank, 1) - 1];
+  }
+
+  /**
+   * Returns whether no commands have been recorded.
+   *
+   * @return whether no commands have been recorded
+   */
+  public synchronized boolean isEmpty() {
+    return recordsByCommand.isEmpty();
+  }
+
+  @Value.Immutable
+  @ImmutableStyle
+  public interface ExecRecord {
+    String getCommand();
+
+    long getDurationNanos();
+
+    int getExitCode();
+
+    long getStdoutBytes();
+
+    long getStderrBytes();
+  }
+
+  @Value.Immutable
+  @ImmutableStyle
+  public interface ExecSummary {
+    String getCommand();
+
+    long getCount();
+
+    long getFailureCount();
+
+    long getTotalMillis();
+
+    long getP50Millis();
+
+    long getP95Millis();
+
+    long getMaxMillis();
+
+    long getStdoutBytes();
+
+    long getStderrBytes();
+  }
+}
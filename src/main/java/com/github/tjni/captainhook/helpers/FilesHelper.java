@@ -1,19 +1,34 @@
 package com.github.tjni.captainhook.helpers;
 
+import com.github.tjni.captainhook.annotations.ImmutableStyle;
+import java.io.BufferedInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.UncheckedIOException;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import org.immutables.value.Value;
 
 /** Helper for file system operations. */
 @Singleton
@@ -33,6 +48,28 @@ public class FilesHelper {
     return Files.exists(path);
   }
 
+  /**
+   * Tests whether a path is a directory, without following symbolic links.
+   *
+   * @param path the path to test
+   * @return {@code true} if the path is a directory; {@code false} otherwise
+   * @see Files#isDirectory(Path, LinkOption...)
+   */
+  public boolean isDirectory(Path path) {
+    return Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+  }
+
+  /**
+   * Tests whether a path is a symbolic link.
+   *
+   * @param path the path to test
+   * @return {@code true} if the path is a symbolic link; {@code false} otherwise
+   * @see Files#isSymbolicLink(Path)
+   */
+  public boolean isSymbolicLink(Path path) {
+    return Files.isSymbolicLink(path);
+  }
+
   /**
    * Reads all characters from a file into a {@link String}.
    *
@@ -64,6 +101,68 @@ public class FilesHelper {
     }
   }
 
+  /**
+   * Writes a string to a temporary file next to a file and then moves it into place, so that
+   * readers of the file never see it partly written.
+   *
+   * @param file the path to the file
+   * @param str the string to write
+   * @return the path to the file
+   * @throws UncheckedIOException if an I/O error occurs
+   * @see StandardCopyOption#ATOMIC_MOVE
+   */
+  public Path writeAtomically(Path file, String str) {
+    Path tempFile = null;
+    try {
+      tempFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+      Files.write(tempFile, str.getBytes(StandardCharsets.UTF_8));
+      Path movedFile =
+          Files.move(
+              tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      tempFile = null;
+      return movedFile;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      if (tempFile != null) {
+        deleteIfExists(tempFile);
+      }
+    }
+  }
+
+  /**
+   * Writes bytes to a file.
+   *
+   * @param file the path to the file
+   * @param bytes the bytes to write
+   * @return the path to the file
+   * @throws UncheckedIOException if an I/O error occurs
+   */
+  public Path writeBytes(Path file, byte[] bytes) {
+    try {
+      return Files.write(file, bytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Copies a file, replacing the target if it exists.
+   *
+   * @param source the path to the file to copy
+   * @param target the path to the copy
+   * @return the path to the copy
+   * @throws UncheckedIOException if an I/O error occurs
+   * @see Files#copy(Path, Path, java.nio.file.CopyOption...)
+   */
+  public Path copy(Path source, Path target) {
+    try {
+      return Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
   /**
    * Deletes a file.
    *
@@ -107,6 +206,43 @@ public class FilesHelper {
     }
   }
 
+  /**
+   * Deletes a directory and everything in it, if it exists. Symbolic links are deleted rather than
+   * followed.
+   *
+   * @param dir the path to the directory
+   * @throws UncheckedIOException if an I/O error occurs
+   */
+  public void deleteRecursively(Path dir) {
+    if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+      return;
+    }
+
+    try {
+      Files.walkFileTree(
+          dir,
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                throws IOException {
+              Files.delete(file);
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+              if (e != null) {
+                throw e;
+              }
+              Files.delete(dir);
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
   /**
    * Checks if a file is empty.
    *
@@ -123,11 +259,108 @@ public class FilesHelper {
   /**
    * Checks if the file is empty after its contents have been trimmed.
    *
+   * <p>The file is only read up to its first character that is not trimmed, so large files are
+   * never loaded into memory.
+   *
    * @param file the path to the file
    * @return {@code true} if the file is empty after its contents have been trimmed
+   * @throws UncheckedIOException if an I/O error occurs
+   * @see String#trim()
    */
   public boolean isTrimmedFileEmpty(Path file) {
-    return isFileEmpty(file) || toString(file).trim().isEmpty();
+    if (isFileEmpty(file)) {
+      return true;
+    }
+    try (InputStream stream = new BufferedInputStream(Files.newInputStream(file))) {
+      int b;
+      while ((b = stream.read()) != -1) {
+        // Bytes of multi-byte UTF-8 characters are never trimmed.
+        if (b > ' ') {
+          return false;
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Reads the metadata of a file that changes whenever the file is written, without following
+   * symbolic links.
+   *
+   * @param file the path to the file
+   * @return the fingerprint of the file without a content hash, or empty if the file does not exist
+   * @throws UncheckedIOException if an I/O error occurs
+   */
+  public Optional<FileFingerprint> getFingerprint(Path file) {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    return Optional.of(
+        ImmutableFileFingerprint.builder()
+            .setSize(attributes.size())
+            .setLastModifiedNanos(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS))
+            .setFileKey(Optional.ofNullable(attributes.fileKey()))
+            .build());
+  }
+
+  /**
+   * Sets the modification time of a file.
+   *
+   * @param file the path to the file
+   * @param lastModifiedNanos the modification time, in nanoseconds since the epoch
+   * @return the path to the file
+   * @throws UncheckedIOException if an I/O error occurs
+   */
+  public Path setLastModifiedNanos(Path file, long lastModifiedNanos) {
+    try {
+      return Files.setLastModifiedTime(
+          file, FileTime.from(lastModifiedNanos, TimeUnit.NANOSECONDS));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Hashes the contents of a file, or the target of a symbolic link.
+   *
+   * @param file the path to the file
+   * @return the hexadecimal SHA-256 hash
+   * @throws UncheckedIOException if an I/O error occurs
+   */
+  public String hash(Path file) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    try {
+      if (Files.isSymbolicLink(file)) {
+        digest.update(Files.readSymbolicLink(file).toString().getBytes(StandardCharsets.UTF_8));
+      } else {
+        try (InputStream stream = Files.newInputStream(file)) {
+          byte[] buffer = new byte[8192];
+          int length;
+          while ((length = stream.read(buffer)) != -1) {
+            digest.update(buffer, 0, length);
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    byte[] hash = digest.digest();
+    return GitIndex.toHex(hash, 0, hash.length);
   }
 
   /**
@@ -195,4 +428,22 @@ public class FilesHelper {
       throw new UncheckedIOException(e);
     }
   }
+
+  /**
+   * The metadata that identifies a version of a file, and optionally a hash of its contents for
+   * when the metadata may not have changed even though the contents did.
+   */
+  @Value.Immutable
+  @ImmutableStyle
+  public interface FileFingerprint {
+    long getSize();
+
+    long getLastModifiedNanos();
+
+    /** The inode of the file, or the equivalent on other file systems, if there is one. */
+    Optional<Object> getFileKey();
+
+    /** The hash of the contents, as returned by {@link FilesHelper#hash(Path)}. */
+    Optional<String> getContentHash();
+  }
 }
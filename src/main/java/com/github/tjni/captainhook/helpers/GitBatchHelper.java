@@ -0,0 +1,238 @@
+package com.github.tjni.captainhook.helpers;
+
+import com.github.tjni.captainhook.annotations.ImmutableStyle;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.immutables.value.Value;
+
+/**
+ * Helper for answering read-only Git object queries through long-lived Git processes.
+ *
+ * <p>Starting a Git process is expensive in large repositories. Queries that fit the batch
+ * protocols of {@code git cat-file} are written to a single process that is started on first use
+ * and kept until {@link #close()} is called at the end of the build.
+ *
+ * @see <a href="https://git-scm.com/docs/git-cat-file#_batch_output">batch output</a>
+ */
+@Singleton
+public class GitBatchHelper implements AutoCloseable {
+  private static final Logger LOG = Logging.getLogger(GitBatchHelper.class);
+
+  private final BatchProcess batchCheckProcess;
+  private final BatchProcess batchProcess;
+
+  @Inject
+  public GitBatchHelper(ExecHelper execHelper) {
+    batchCheckProcess = new BatchProcess(execHelper, "--batch-check");
+    batchProcess = new BatchProcess(execHelper, "--batch");
+  }
+
+  /**
+   * Looks up the type and size of an object.
+   *
+   * @param revision any revision understood by {@code git rev-parse}, without newlines
+   * @return information about the object, or empty if the object does not exist
+   */
+  public Optional<GitObjectInfo> findObject(String revision) {
+    return batchCheckProcess.query(revision).map(BatchResponse::getInfo);
+  }
+
+  /**
+   * Reads the contents of an object.
+   *
+   * @param revision any revision understood by {@code git rev-parse}, without newlines
+   * @return the object, or empty if the object does not exist
+   */
+  public Optional<GitObject> readObject(String revision) {
+    return batchProcess
+        .query(revision)
+        .map(
+            response ->
+                ImmutableGitObject.builder()
+                    .setInfo(response.getInfo())
+                    .setContent(response.getContent())
+                    .build());
+  }
+
+  /**
+   * Returns the number of queries answered without starting a new process.
+   *
+   * @return the number of process starts avoided
+   */
+  public int getAvoidedProcessStarts() {
+    return batchCheckProcess.getAvoidedProcessStarts() + batchProcess.getAvoidedProcessStarts();
+  }
+
+  /** Stops the Git processes. They are started again if another query is made. */
+  @Override
+  public void close() {
+    int avoidedProcessStarts = getAvoidedProcessStarts();
+    batchCheckProcess.close();
+    batchProcess.close();
+    if (avoidedProcessStarts > 0) {
+      LOG.info("Captain Hook avoided {} Git process starts.", avoidedProcessStarts);
+    }
+  }
+
+  @Value.Immutable
+  @ImmutableStyle
+  public interface GitObjectInfo {
+    String getObjectId();
+
+    String getType();
+
+    long getSize();
+  }
+
+  @Value.Immutable
+  @ImmutableStyle
+  public interface GitObject {
+    GitObjectInfo getInfo();
+
+    byte[] getContent();
+  }
+
+  @Value.Immutable
+  @ImmutableStyle
+  interface BatchResponse {
+    GitObjectInfo getInfo();
+
+    @Value.Default
+    default byte[] getContent() {
+      return new byte[0];
+    }
+  }
+
+  private static class BatchProcess {
+    private final ExecHelper execHelper;
+    private final String mode;
+    private final boolean hasContent;
+
+    private Process process;
+    private InputStream stdout;
+    private OutputStream stdin;
+    private int queryCount;
+    private int processStartCount;
+
+    BatchProcess(ExecHelper execHelper, String mode) {
+      this.execHelper = execHelper;
+      this.mode = mode;
+      hasContent = mode.equals("--batch");
+    }
+
+    synchronized Optional<BatchResponse> query(String revision) {
+      if (revision.indexOf('\n') != -1) {
+        throw new IllegalArgumentException("Revisions cannot contain newlines: " + revision);
+      }
+
+      ensureStarted();
+      queryCount++;
+
+      try {
+        stdin.write((revision + "\n").getBytes(StandardCharsets.UTF_8));
+        stdin.flush();
+
+        // A missing or ambiguous object is reported after the revision, which may contain spaces,
+        // so the suffix is checked before the header is split.
+        String header = readLine();
+        if (header.endsWith(" missing") || header.endsWith(" ambiguous")) {
+          return Optional.empty();
+        }
+        String[] fields = header.split(" ");
+        if (fields.length != 3) {
+          throw new IllegalStateException("Unexpected reply from git cat-file: " + header);
+        }
+
+        GitObjectInfo info =
+            ImmutableGitObjectInfo.builder()
+                .setObjectId(fields[0])
+                .setType(fields[1])
+                .setSize(Long.parseLong(fields[2]))
+                .build();
+
+        ImmutableBatchResponse.Builder builder = ImmutableBatchResponse.builder().setInfo(info);
+        if (hasContent) {
+          builder.setContent(readContent(Math.toIntExact(info.getSize())));
+        }
+        return Optional.of(builder.build());
+      } catch (IOException e) {
+        close();
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    synchronized int getAvoidedProcessStarts() {
+      return queryCount - processStartCount;
+    }
+
+    synchronized void close() {
+      if (process == null) {
+        return;
+      }
+
+      try {
+        stdin.close();
+        if (!process.waitFor(5, TimeUnit.SECONDS)) {
+          process.destroy();
+        }
+      } catch (IOException e) {
+        process.destroy();
+      } catch (InterruptedException e) {
+        process.destroy();
+        Thread.currentThread().interrupt();
+      } finally {
+        process = null;
+      }
+    }
+
+    private void ensureStarted() {
+      if (process == null) {
+        process = execHelper.start("git", "cat-file", mode);
+        stdout = new BufferedInputStream(process.getInputStream());
+        stdin = process.getOutputStream();
+        processStartCount++;
+      }
+    }
+
+    private String readLine() throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b;
+      while ((b = stdout.read()) != '\n') {
+        if (b == -1) {
+          throw new EOFException("git cat-file " + mode + " exited unexpectedly.");
+        }
+        line.write(b);
+      }
+      return line.toString(StandardCharsets.UTF_8.name());
+    }
+
+    private byte[] readContent(int size) throws IOException {
+      byte[] content = new byte[size];
+      int offset = 0;
+      while (offset < size) {
+        int length = stdout.read(content, offset, size - offset);
+        if (length == -1) {
+          throw new EOFException("git cat-file " + mode + " exited unexpectedly.");
+        }
+        offset += length;
+      }
+      // Each object is followed by a newline.
+      if (stdout.read() != '\n') {
+        throw new IOException("Unexpected output from git cat-file " + mode + ".");
+      }
+      return content;
+    }
+  }
+}
@@ -1,35 +1,60 @@
 package com.github.tjni.captainhook.helpers;
 
 import com.github.tjni.captainhook.annotations.ImmutableStyle;
+import com.github.tjni.captainhook.annotations.VisibleForTesting;
+import com.github.tjni.captainhook.helpers.ExecHelper.ExecRequest;
+import com.github.tjni.captainhook.helpers.ExecHelper.RecordConsumer;
+import com.github.tjni.captainhook.helpers.GitBatchHelper.GitObject;
+import com.github.tjni.captainhook.helpers.GitBatchHelper.GitObjectInfo;
+import com.github.tjni.captainhook.helpers.GitIndex.UnsupportedIndexException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import one.util.streamex.IntStreamEx;
 import one.util.streamex.StreamEx;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
 import org.immutables.value.Value;
 
 /**
  * Helper for running common Git commands.
  *
  * <p>This implementation caches responses from Git that do not change for a single repository.
+ * Object lookups are routed through {@link GitBatchHelper} so that they do not start new processes,
+ * and questions about the index are answered by {@link GitIndexHelper} where it can.
  */
 @Singleton
 public class GitHelper {
+  private static final Logger LOG = Logging.getLogger(GitHelper.class);
+
   private final RepositoryCache repositoryCache =
       ImmutableRepositoryCache.builder()
-          .setCommonDirectorySupplier(this::getCommonDirectoryFromGit)
-          .setTopLevelDirectorySupplier(this::getTopLevelDirectoryFromGit)
+          .setDirectoriesSupplier(this::getRepositoryDirectoriesFromGit)
           .build();
 
   private final ExecHelper execHelper;
+  private final GitBatchHelper gitBatchHelper;
+  private final GitIndexHelper gitIndexHelper;
 
   @Inject
-  public GitHelper(ExecHelper execHelper) {
+  public GitHelper(
+      ExecHelper execHelper, GitBatchHelper gitBatchHelper, GitIndexHelper gitIndexHelper) {
     this.execHelper = execHelper;
+    this.gitBatchHelper = gitBatchHelper;
+    this.gitIndexHelper = gitIndexHelper;
   }
 
   public String git(String command, String... options) {
@@ -37,6 +62,101 @@ public class GitHelper {
     return execHelper.exec("git", args);
   }
 
+  /**
+   * Runs a Git command with another index file than the index of the repository.
+   *
+   * @param indexFile the index file to use
+   * @param command the Git command
+   * @param options options to the Git command
+   * @return the trimmed standard output of the command
+   * @see <a href="https://git-scm.com/docs/git#Documentation/git.txt-codeGITINDEXFILEcode">
+   *     GIT_INDEX_FILE</a>
+   */
+  public String gitWithIndexFile(Path indexFile, String command, String... options) {
+    return execHelper.exec(
+        ImmutableExecRequest.builder()
+            .setExecutable("git")
+            .setArgs(StreamEx.of(command).append(options).toArray(String.class))
+            .putEnvironment("GIT_INDEX_FILE", indexFile.toString())
+            .build());
+  }
+
+  /**
+   * Runs a Git command that reads NUL-delimited paths from its standard input.
+   *
+   * <p>The paths are streamed to the command, so there is no limit on their number like there is
+   * for arguments on the command line.
+   *
+   * @param paths the paths to write to standard input
+   * @param command the Git command
+   * @param options options to the Git command, which should include {@code -z} and {@code --stdin}
+   *     or equivalents
+   * @return the trimmed standard output of the command
+   */
+  public String gitWithPaths(Collection<Path> paths, String command, String... options) {
+    return execHelper.exec(
+        ImmutableExecRequest.builder()
+            .setExecutable("git")
+            .setArgs(StreamEx.of(command).append(options).toArray(String.class))
+            .addAllStdinRecords(StreamEx.of(paths).map(Path::toString).toList())
+            .build());
+  }
+
+  /**
+   * Stages files from a directory that mirrors the layout of the working tree, as if they were in
+   * the working tree, without reading or changing the working tree itself. Files that are missing
+   * from the directory are removed from the index.
+   *
+   * @param workTree the directory to read the files from
+   * @param relativePaths the paths of the files, relative to the directory
+   */
+  public void updateIndexFrom(Path workTree, Collection<Path> relativePaths) {
+    execHelper.exec(
+        ImmutableExecRequest.builder()
+            .setExecutable("git")
+            .setArgs(
+                "--work-tree=" + workTree, "update-index", "--add", "--remove", "-z", "--stdin")
+            .addAllStdinRecords(
+                StreamEx.of(relativePaths)
+                    .map(path -> path.toString().replace(File.separatorChar, '/'))
+                    .toList())
+            .build());
+  }
+
+  /**
+   * Pipes the standard output of one Git command into the standard input of another.
+   *
+   * @param source the Git command and options whose output is piped
+   * @param sink the Git command and options that read the output
+   * @return whether the sink was run, which it is not if the source prints only whitespace
+   * @see ExecHelper#pipe(ExecRequest, ExecRequest)
+   */
+  public boolean gitPipe(List<String> source, List<String> sink) {
+    return execHelper.pipe(
+        ImmutableExecRequest.builder()
+            .setExecutable("git")
+            .setArgs(source.toArray(new String[0]))
+            .build(),
+        ImmutableExecRequest.builder()
+            .setExecutable("git")
+            .setArgs(sink.toArray(new String[0]))
+            .build());
+  }
+
+  /**
+   * Runs a Git command that prints NUL-delimited records, and passes each record to a consumer as
+   * it is read.
+   *
+   * @param recordConsumer receives each record
+   * @param command the Git command
+   * @param options options to the Git command, which should include {@code -z} or an equivalent
+   * @see ExecHelper#streamRecords(byte, RecordConsumer, String, String...)
+   */
+  public void streamRecords(RecordConsumer recordConsumer, String command, String... options) {
+    String[] args = StreamEx.of(command).append(options).toArray(String.class);
+    execHelper.streamRecords((byte) 0, recordConsumer, "git", args);
+  }
+
   public String stash(String subCommand, String... options) {
     String[] args = StreamEx.of(subCommand).append(options).toArray(String.class);
     return git("stash", args);
@@ -55,11 +175,6 @@ public class GitHelper {
     return repositoryCache.getCommonDirectory();
   }
 
-  private Path getCommonDirectoryFromGit() {
-    String relativeGitCommonDir = git("rev-parse", "--git-common-dir");
-    return getTopLevelDirectory().resolve(relativeGitCommonDir);
-  }
-
   /**
    * Returns the absolute path to the top-level directory for the repository.
    *
@@ -71,62 +186,343 @@ public class GitHelper {
     return repositoryCache.getTopLevelDirectory();
   }
 
-  private Path getTopLevelDirectoryFromGit() {
-    return Paths.get(git("rev-parse", "--show-toplevel"));
+  /**
+   * Returns the absolute path to the Git directory of the working tree, which holds its index.
+   *
+   * <p>This differs from {@link #getCommonDirectory()} in linked working trees.
+   *
+   * @return the absolute path to the Git directory of the working tree
+   * @see <a
+   *     href="https://git-scm.com/docs/git-rev-parse#Documentation/git-rev-parse.txt---git-dir">--git-dir</a>
+   */
+  public Path getGitDirectory() {
+    return repositoryCache.getGitDirectory();
+  }
+
+  private RepositoryDirectories getRepositoryDirectoriesFromGit() {
+    // All directories are resolved with a single process.
+    String[] lines =
+        git("rev-parse", "--show-toplevel", "--git-common-dir", "--git-dir").split("\n");
+    Path topLevelDir = Paths.get(lines[0]);
+    return ImmutableRepositoryDirectories.builder()
+        .setTopLevelDirectory(topLevelDir)
+        .setCommonDirectory(topLevelDir.resolve(lines[1]))
+        .setGitDirectory(topLevelDir.resolve(lines[2]))
+        .build();
+  }
+
+  /**
+   * Resolves a revision to the ID of the object it names.
+   *
+   * @param revision any revision understood by {@code git rev-parse}
+   * @return the object ID, or empty if the revision does not name an object
+   */
+  public Optional<String> resolve(String revision) {
+    return gitBatchHelper.findObject(revision).map(GitObjectInfo::getObjectId);
+  }
+
+  /**
+   * Writes the contents of files to the object database as blobs, with at most two {@code git
+   * hash-object} processes.
+   *
+   * <p>The contents are written as they are, without filters such as line ending conversion, so
+   * that the files can be restored exactly. The files are first only hashed, and only the blobs
+   * that are not in the object database yet are written, so that files whose contents were written
+   * before, such as by an earlier run of a hook, are not written again.
+   *
+   * @param files absolute paths of files, none of which may contain a line feed
+   * @return the IDs of the blobs, in the order of the files
+   */
+  public List<String> writeBlobs(List<Path> files) {
+    List<String> objectIds = hashBlobs(files);
+    List<Integer> missingIndexes =
+        IntStreamEx.ofIndices(objectIds)
+            .remove(i -> gitBatchHelper.findObject(objectIds.get(i)).isPresent())
+            .boxed()
+            .toList();
+    if (missingIndexes.isEmpty()) {
+      return objectIds;
+    }
+
+    // The IDs of the written blobs are used, in case a file changed after it was hashed.
+    List<String> writtenObjectIds =
+        hashObjects(StreamEx.of(missingIndexes).map(files::get).toList(), true);
+    List<String> allObjectIds = new ArrayList<>(objectIds);
+    for (int i = 0; i < missingIndexes.size(); i++) {
+      allObjectIds.set(missingIndexes.get(i), writtenObjectIds.get(i));
+    }
+    LOG.info("Wrote {} of {} blobs.", missingIndexes.size(), files.size());
+    return allObjectIds;
+  }
+
+  /**
+   * Hashes the contents of files as blobs without writing them, with a single {@code git
+   * hash-object} process. As with {@link #writeBlobs(List)}, no filters are applied.
+   *
+   * @param files absolute paths of files, none of which may contain a line feed
+   * @return the IDs of the blobs, in the order of the files
+   */
+  public List<String> hashBlobs(List<Path> files) {
+    return hashObjects(files, false);
+  }
+
+  private List<String> hashObjects(List<Path> files, boolean write) {
+    String objectIds =
+        execHelper.exec(
+            ImmutableExecRequest.builder()
+                .setExecutable("git")
+                .setArgs(
+                    write
+                        ? new String[] {"hash-object", "-w", "--no-filters", "--stdin-paths"}
+                        : new String[] {"hash-object", "--no-filters", "--stdin-paths"})
+                .setStdin(StreamEx.of(files).map(Path::toString).joining("\n", "", "\n"))
+                .build());
+    return Arrays.asList(objectIds.split("\n"));
+  }
+
+  /**
+   * Reads the contents of a blob.
+   *
+   * @param objectId the ID of the blob
+   * @return the contents of the blob, or empty if it does not exist
+   */
+  public Optional<byte[]> readBlob(String objectId) {
+    return gitBatchHelper
+        .readObject(objectId)
+        .filter(object -> object.getInfo().getType().equals("blob"))
+        .map(GitObject::getContent);
+  }
+
+  /**
+   * Returns the paths that differ between two trees.
+   *
+   * <p>Renames are not detected, so every path is reported as added ({@code A}), deleted ({@code
+   * D}), modified ({@code M}) or changed in type ({@code T}).
+   *
+   * @param fromTree the ID of the tree to compare from
+   * @param toTree the ID of the tree to compare to
+   * @return the absolute path of each changed file mapped to how it changed, in path order
+   */
+  public Map<Path, Character> diffTrees(String fromTree, String toTree) {
+    Map<Path, Character> changes = new LinkedHashMap<>();
+    streamRecords(
+        new TreeChangeRecordConsumer(getTopLevelDirectory(), changes),
+        "diff-tree",
+        "-r",
+        "-z",
+        "--no-renames",
+        "--name-status",
+        fromTree,
+        toTree);
+    return changes;
+  }
+
+  /**
+   * Returns the message of a commit.
+   *
+   * @param revision any revision understood by {@code git rev-parse} that names a commit
+   * @return the message of the commit, or empty if the revision does not name a commit
+   */
+  public Optional<String> getCommitMessage(String revision) {
+    return gitBatchHelper
+        .readObject(revision)
+        .filter(object -> object.getInfo().getType().equals("commit"))
+        .map(object -> new String(object.getContent(), StandardCharsets.UTF_8))
+        .map(commit -> commit.substring(commit.indexOf("\n\n") + 2).trim());
   }
 
   /**
    * Returns the output of {@code git status --porcelain}.
    *
+   * <p>The output is read in the NUL-delimited format, so file names are never quoted.
+   *
    * @param options options to {@code git status}
    * @return the output of {@code git status --porcelain}
    */
   GitStatus status(String... options) {
-    String[] args = StreamEx.of("--porcelain").append(options).toArray(String.class);
-    String output = git("status", args);
-    List<GitStatusLine> statusLines;
-    if (output.isEmpty()) {
-      statusLines = Collections.emptyList();
-    } else {
-      statusLines =
-          StreamEx.of(output.split("\n")).<GitStatusLine>map(ImmutableGitStatusLine::of).toList();
-    }
+    String[] args = StreamEx.of("--porcelain", "-z").append(options).toArray(String.class);
+    List<GitStatusLine> statusLines = new ArrayList<>();
+    streamRecords(new StatusRecordConsumer(statusLines), "status", args);
     return ImmutableGitStatus.of(statusLines);
   }
 
+  /**
+   * Returns absolute paths of files that are added, copied, modified or renamed in the index.
+   *
+   * @return absolute paths of files from {@code git diff --staged --diff-filter=ACMR}
+   */
+  List<Path> getStagedFiles() {
+    return readIndexOrElse(
+        gitIndexHelper -> gitIndexHelper.findStagedPaths(getGitDirectory()),
+        () -> resolveAll("diff", "--staged", "--diff-filter=ACMR", "--name-only"));
+  }
+
+  /**
+   * Returns the IDs of the blobs that are staged for the files that are added, copied or modified
+   * in the index.
+   *
+   * @return absolute paths of files from {@code git diff --staged --diff-filter=ACM} mapped to the
+   *     IDs of their blobs in the index, in path order
+   */
+  Map<Path, String> getStagedBlobs() {
+    Map<Path, String> stagedBlobs = new LinkedHashMap<>();
+    streamRecords(
+        new StagedBlobRecordConsumer(getTopLevelDirectory(), stagedBlobs),
+        "diff",
+        "--staged",
+        "--raw",
+        "-z",
+        "--no-renames",
+        "--no-abbrev",
+        "--diff-filter=ACM");
+    return stagedBlobs;
+  }
+
+  /**
+   * Returns the ranges of lines that are added or modified in the index compared to {@code HEAD}.
+   *
+   * <p>The patch is parsed as it is read with no context lines, so only the hunk headers are kept
+   * in memory. Files without any added lines, such as binary files or files whose lines were only
+   * deleted, are left out.
+   *
+   * @return absolute paths of files from {@code git diff --staged --diff-filter=AM} mapped to the
+   *     ranges of their added lines, in path order
+   */
+  Map<Path, List<LineRange>> getStagedLineRanges() {
+    Map<Path, List<LineRange>> lineRanges = new LinkedHashMap<>();
+    execHelper.streamRecords(
+        (byte) '\n',
+        new LineRangeRecordConsumer(getTopLevelDirectory(), lineRanges),
+        "git",
+        "diff",
+        "--staged",
+        "--unified=0",
+        "--no-color",
+        "--no-ext-diff",
+        "--no-textconv",
+        "--no-relative",
+        "--no-renames",
+        "--no-prefix",
+        "--ignore-submodules",
+        "--diff-filter=AM");
+    return lineRanges;
+  }
+
   /**
    * Returns absolute paths of files from {@code git ls-files}.
    *
+   * <p>Listing modified or deleted files is answered from the index without running Git when the
+   * index can be read.
+   *
    * @param options options to {@code git ls-files}
    * @return absolute paths of files from {@code git ls-files}
    */
   List<Path> lsFiles(String... options) {
-    String output = git("ls-files", options);
-    if (output.isEmpty()) {
-      return Collections.emptyList();
+    if (options.length == 1 && options[0].equals("--modified")) {
+      return readIndexOrElse(
+          gitIndexHelper ->
+              gitIndexHelper.findModifiedPaths(getGitDirectory(), getTopLevelDirectory()),
+          () -> resolveAll("ls-files", options));
     }
-    return StreamEx.of(output.split("\n")).map(getTopLevelDirectory()::resolve).toImmutableList();
+    if (options.length == 1 && options[0].equals("--deleted")) {
+      return readIndexOrElse(
+          gitIndexHelper ->
+              gitIndexHelper.findDeletedPaths(getGitDirectory(), getTopLevelDirectory()),
+          () -> resolveAll("ls-files", options));
+    }
+    return resolveAll("ls-files", options);
+  }
+
+  /**
+   * Stages files that are already in the index without running {@code git add}, when the index can
+   * be read.
+   *
+   * @param files absolute paths of files in the working tree
+   * @return absolute paths of the files that were not staged, which should be staged with {@code
+   *     git add}
+   * @see GitIndexHelper#updateIndex(Path, Path, List)
+   */
+  List<Path> updateIndex(List<Path> files) {
+    Path topLevelDir = getTopLevelDirectory();
+    List<String> relativePaths =
+        StreamEx.of(files)
+            .map(file -> topLevelDir.relativize(file).toString().replace(File.separatorChar, '/'))
+            .toList();
+    return readIndexOrElse(
+        gitIndexHelper -> gitIndexHelper.updateIndex(getGitDirectory(), topLevelDir, relativePaths),
+        () -> files);
+  }
+
+  private List<Path> readIndexOrElse(
+      Function<GitIndexHelper, List<String>> indexQuery, Supplier<List<Path>> gitQuery) {
+    List<String> relativePaths;
+    try {
+      relativePaths = indexQuery.apply(gitIndexHelper);
+    } catch (UnsupportedIndexException e) {
+      LOG.info("{} Falling back to running Git.", e.getMessage());
+      return gitQuery.get();
+    }
+
+    GitPathList.Builder builder = new GitPathList.Builder();
+    for (String relativePath : relativePaths) {
+      byte[] bytes = relativePath.getBytes(StandardCharsets.UTF_8);
+      builder.accept(bytes, 0, bytes.length);
+    }
+    return builder.build(getTopLevelDirectory());
+  }
+
+  /**
+   * Runs a Git command that prints paths relative to the top-level directory, and returns the
+   * absolute paths.
+   *
+   * <p>The command is run with {@code -z} so that file names are never quoted. The paths are kept
+   * in a compact form and are only resolved into {@link Path} objects when they are accessed.
+   *
+   * @param command the Git command
+   * @param options options to the Git command
+   * @return the absolute paths printed by the command
+   */
+  List<Path> resolveAll(String command, String... options) {
+    GitPathList.Builder builder = new GitPathList.Builder();
+    String[] args = StreamEx.of(options).append("-z").toArray(String.class);
+    streamRecords(builder, command, args);
+    return builder.build(getTopLevelDirectory());
   }
 
   @Value.Immutable
   @ImmutableStyle
   abstract static class RepositoryCache {
 
-    abstract Supplier<Path> commonDirectorySupplier();
-
-    abstract Supplier<Path> topLevelDirectorySupplier();
+    abstract Supplier<RepositoryDirectories> directoriesSupplier();
 
     @Value.Lazy
+    RepositoryDirectories getDirectories() {
+      return directoriesSupplier().get();
+    }
+
     Path getCommonDirectory() {
-      return commonDirectorySupplier().get();
+      return getDirectories().getCommonDirectory();
     }
 
-    @Value.Lazy
     Path getTopLevelDirectory() {
-      return topLevelDirectorySupplier().get();
+      return getDirectories().getTopLevelDirectory();
+    }
+
+    Path getGitDirectory() {
+      return getDirectories().getGitDirectory();
     }
   }
 
+  @Value.Immutable
+  @ImmutableStyle
+  interface RepositoryDirectories {
+    Path getCommonDirectory();
+
+    Path getTopLevelDirectory();
+
+    Path getGitDirectory();
+  }
+
   @Value.Immutable(builder = false)
   @ImmutableStyle
   public abstract static class GitStatus {
@@ -168,5 +564,195 @@ public class GitHelper {
     public boolean isIgnored() {
       return getIndexStatus() == '!' && getWorkingTreeStatus() == '!';
     }
+
+    /**
+     * Returns whether the file was renamed or copied, in which case Git also prints its original
+     * path.
+     *
+     * @return whether the file was renamed or copied
+     */
+    public boolean isRenamedOrCopied() {
+      return "RC".indexOf(getIndexStatus()) != -1 || "RC".indexOf(getWorkingTreeStatus()) != -1;
+    }
+  }
+
+  /** A range of lines in a file, counting from 1 and including both ends. */
+  @Value.Immutable(builder = false)
+  @ImmutableStyle
+  public interface LineRange {
+    @Value.Parameter
+    int getStart();
+
+    @Value.Parameter
+    int getEnd();
+
+    default boolean contains(int line) {
+      return getStart() <= line && line <= getEnd();
+    }
+  }
+
+  /** Parses the records printed by {@code git status --porcelain -z}. */
+  private static class StatusRecordConsumer implements RecordConsumer {
+    private final List<GitStatusLine> statusLines;
+    private boolean isOriginalPathNext;
+
+    StatusRecordConsumer(List<GitStatusLine> statusLines) {
+      this.statusLines = statusLines;
+    }
+
+    @Override
+    public void accept(byte[] buffer, int offset, int length) {
+      if (isOriginalPathNext) {
+        // Renames and copies are followed by a record with the original path.
+        isOriginalPathNext = false;
+        return;
+      }
+
+      GitStatusLine statusLine =
+          ImmutableGitStatusLine.of(new String(buffer, offset, length, StandardCharsets.UTF_8));
+      isOriginalPathNext = statusLine.isRenamedOrCopied();
+      statusLines.add(statusLine);
+    }
+  }
+
+  /** Parses the records printed by {@code git diff --raw -z}. */
+  private static class StagedBlobRecordConsumer implements RecordConsumer {
+    private final Path topLevelDir;
+    private final Map<Path, String> stagedBlobs;
+    private String objectId;
+
+    StagedBlobRecordConsumer(Path topLevelDir, Map<Path, String> stagedBlobs) {
+      this.topLevelDir = topLevelDir;
+      this.stagedBlobs = stagedBlobs;
+    }
+
+    @Override
+    public void accept(byte[] buffer, int offset, int length) {
+      // Each change is printed as a record of the modes, object IDs and status, followed by a path
+      // record. The ID of the staged blob is the fourth field.
+      if (objectId == null) {
+        String[] fields = new String(buffer, offset, length, StandardCharsets.UTF_8).split(" ");
+        objectId = fields[3];
+      } else {
+        String path = new String(buffer, offset, length, StandardCharsets.UTF_8);
+        stagedBlobs.put(topLevelDir.resolve(path), objectId);
+        objectId = null;
+      }
+    }
+  }
+
+  /** Parses the records printed by {@code git diff-tree --name-status -z}. */
+  private static class TreeChangeRecordConsumer implements RecordConsumer {
+    private final Path topLevelDir;
+    private final Map<Path, Character> changes;
+    private char status;
+
+    TreeChangeRecordConsumer(Path topLevelDir, Map<Path, Character> changes) {
+      this.topLevelDir = topLevelDir;
+      this.changes = changes;
+    }
+
+    @Override
+    public void accept(byte[] buffer, int offset, int length) {
+      // Each change is printed as a status record followed by a path record.
+      if (status == 0) {
+        status = (char) buffer[offset];
+      } else {
+        String path = new String(buffer, offset, length, StandardCharsets.UTF_8);
+        changes.put(topLevelDir.resolve(path), status);
+        status = 0;
+      }
+    }
+  }
+
+  /** Parses the lines printed by {@code git diff --unified=0 --no-prefix}. */
+  @VisibleForTesting
+  static class LineRangeRecordConsumer implements RecordConsumer {
+    private final Path topLevelDir;
+    private final Map<Path, List<LineRange>> lineRanges;
+    private Path file;
+    private int remainingHunkLines;
+
+    LineRangeRecordConsumer(Path topLevelDir, Map<Path, List<LineRange>> lineRanges) {
+      this.topLevelDir = topLevelDir;
+      this.lineRanges = lineRanges;
+    }
+
+    @Override
+    public void accept(byte[] buffer, int offset, int length) {
+      // The lines of a hunk are skipped by count, so that an added line that looks like a header
+      // is never mistaken for one. Lines such as "\ No newline at end of file" are not counted.
+      if (remainingHunkLines > 0 && length > 0 && buffer[offset] != '\\') {
+        remainingHunkLines--;
+        return;
+      }
+
+      String line = new String(buffer, offset, length, StandardCharsets.UTF_8);
+      if (line.startsWith("diff ")) {
+        file = null;
+      } else if (line.startsWith("+++ ")) {
+        file = topLevelDir.resolve(unquotePath(buffer, offset + 4, length - 4));
+      } else if (line.startsWith("@@ ") && file != null) {
+        // The header of a hunk is "@@ -start[,count] +start[,count] @@", where a missing count
+        // means a single line.
+        String[] fields = line.split(" ");
+        int deletedCount = parseCount(fields[1]);
+        int addedStart = parseStart(fields[2]);
+        int addedCount = parseCount(fields[2]);
+        // A file is only put once it has added lines, so that files whose lines were only deleted
+        // are left out.
+        if (addedCount > 0) {
+          lineRanges
+              .computeIfAbsent(file, key -> new ArrayList<>())
+              .add(ImmutableLineRange.of(addedStart, addedStart + addedCount - 1));
+        }
+        remainingHunkLines = deletedCount + addedCount;
+      }
+    }
+
+    private static int parseStart(String field) {
+      int comma = field.indexOf(',');
+      return Integer.parseInt(field.substring(1, comma == -1 ? field.length() : comma));
+    }
+
+    private static int parseCount(String field) {
+      int comma = field.indexOf(',');
+      return comma == -1 ? 1 : Integer.parseInt(field.substring(comma + 1));
+    }
+
+    /**
+     * Decodes a path from a patch header. Git appends a tab to paths that contain spaces, and
+     * quotes paths with unusual characters in C style, with octal escapes for the bytes of
+     * non-ASCII characters.
+     */
+    @VisibleForTesting
+    static String unquotePath(byte[] buffer, int offset, int length) {
+      if (length > 0 && buffer[offset + length - 1] == '\t') {
+        length--;
+      }
+      if (length < 2 || buffer[offset] != '"' || buffer[offset + length - 1] != '"') {
+        return new String(buffer, offset, length, StandardCharsets.UTF_8);
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(length);
+      int end = offset + length - 1;
+      for (int i = offset + 1; i < end; i++) {
+        byte b = buffer[i];
+        if (b != '\\' || i + 1 == end) {
+          bytes.write(b);
+          continue;
+        }
+
+        byte escaped = buffer[++i];
+        if (escaped >= '0' && escaped <= '7' && i + 2 < end) {
+          bytes.write(Integer.parseInt(new String(buffer, i, 3, StandardCharsets.US_ASCII), 8));
+          i += 2;
+        } else {
+          int index = "abtnvfr".indexOf(escaped);
+          bytes.write(index == -1 ? escaped : "\u0007\b\t\n\u000b\f\r".charAt(index));
+        }
+      }
+      return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
   }
 }
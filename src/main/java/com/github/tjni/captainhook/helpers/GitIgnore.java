@@ -0,0 +1,515 @@
+package com.github.tjni.captainhook.helpers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import one.util.streamex.EntryStream;
+import one.util.streamex.IntStreamEx;
+
+/**
+ * The compiled patterns of one source of ignore rules, such as a {@code .gitignore} file.
+ *
+ * <p>Patterns follow the rules of Git, including that the last matching pattern in a file wins.
+ * They are indexed by their literal parts so that most lookups only try a few patterns: patterns
+ * without wildcards by file name, patterns such as {@code *.class} by extension, and patterns that
+ * contain a slash by their first directory.
+ *
+ * @see <a href="https://git-scm.com/docs/gitignore#_pattern_format">pattern format</a>
+ */
+final class GitIgnore {
+  static final GitIgnore EMPTY = parse("", "");
+
+  private final String baseDir;
+  private final List<Rule> rules;
+  private final Map<String, int[]> literalIndex;
+  private final Map<String, int[]> extensionIndex;
+  private final Map<String, int[]> prefixIndex;
+  private final int[] otherRules;
+
+  private GitIgnore(String baseDir, List<Rule> rules) {
+    this.baseDir = baseDir;
+    this.rules = rules;
+
+    Map<String, List<Integer>> literals = new HashMap<>();
+    Map<String, List<Integer>> extensions = new HashMap<>();
+    Map<String, List<Integer>> prefixes = new HashMap<>();
+    List<Integer> others = new ArrayList<>();
+
+    for (int i = 0; i < rules.size(); i++) {
+      Rule rule = rules.get(i);
+      String extension = rule.isBasenameOnly() ? rule.getExtension() : null;
+      String firstDirectory = rule.isBasenameOnly() ? null : rule.getFirstDirectory();
+      if (rule.isBasenameOnly() && rule.isLiteral()) {
+        literals.computeIfAbsent(rule.pattern, key -> new ArrayList<>()).add(i);
+      } else if (extension != null) {
+        extensions.computeIfAbsent(extension, key -> new ArrayList<>()).add(i);
+      } else if (firstDirectory != null) {
+        prefixes.computeIfAbsent(firstDirectory, key -> new ArrayList<>()).add(i);
+      } else {
+        others.add(i);
+      }
+    }
+
+    literalIndex = toArrays(literals);
+    extensionIndex = toArrays(extensions);
+    prefixIndex = toArrays(prefixes);
+    otherRules = IntStreamEx.of(others).toArray();
+  }
+
+  /**
+   * Parses the contents of an ignore file.
+   *
+   * @param baseDir the directory that contains the file, relative to the top-level directory and
+   *     without a trailing slash, or empty for files whose patterns are relative to the top-level
+   *     directory
+   * @param content the contents of the file
+   * @return the compiled patterns
+   */
+  static GitIgnore parse(String baseDir, String content) {
+    if (content.startsWith("\uFEFF")) {
+      content = content.substring(1);
+    }
+
+    List<Rule> rules = new ArrayList<>();
+    for (String line : content.split("\n")) {
+      if (line.endsWith("\r")) {
+        line = line.substring(0, line.length() - 1);
+      }
+      if (line.startsWith("#")) {
+        continue;
+      }
+      line = trimTrailingSpaces(line);
+      if (!line.isEmpty()) {
+        rules.add(new Rule(line));
+      }
+    }
+    return new GitIgnore(baseDir, rules);
+  }
+
+  /**
+   * Finds the last pattern that matches a path.
+   *
+   * @param path the path relative to the top-level directory, which must be under the base
+   *     directory of these patterns
+   * @param isDirectory whether the path is a directory
+   * @return {@code true} if the path is ignored, {@code false} if it is explicitly not ignored, or
+   *     {@code null} if no pattern matches
+   */
+  Boolean match(String path, boolean isDirectory) {
+    if (rules.isEmpty()) {
+      return null;
+    }
+
+    String relativePath = baseDir.isEmpty() ? path : path.substring(baseDir.length() + 1);
+    String basename = relativePath.substring(relativePath.lastIndexOf('/') + 1);
+
+    int lastMatch =
+        findLastMatch(literalIndex.get(basename), relativePath, basename, isDirectory, -1);
+
+    int dot = basename.lastIndexOf('.');
+    if (dot != -1) {
+      int[] candidates = extensionIndex.get(basename.substring(dot + 1));
+      lastMatch = findLastMatch(candidates, relativePath, basename, isDirectory, lastMatch);
+    }
+
+    int slash = relativePath.indexOf('/');
+    String firstSegment = slash == -1 ? relativePath : relativePath.substring(0, slash);
+    int[] candidates = prefixIndex.get(firstSegment);
+    lastMatch = findLastMatch(candidates, relativePath, basename, isDirectory, lastMatch);
+
+    lastMatch = findLastMatch(otherRules, relativePath, basename, isDirectory, lastMatch);
+
+    return lastMatch == -1 ? null : !rules.get(lastMatch).isNegative();
+  }
+
+  /** Returns the highest index of a matching rule, or {@code lowerBound} if none is higher. */
+  private int findLastMatch(
+      int[] candidates, String relativePath, String basename, boolean isDirectory, int lowerBound) {
+    if (candidates == null) {
+      return lowerBound;
+    }
+    for (int i = candidates.length - 1; i >= 0 && candidates[i] > lowerBound; i--) {
+      if (rules.get(candidates[i]).matches(relativePath, basename, isDirectory)) {
+        return candidates[i];
+      }
+    }
+    return lowerBound;
+  }
+
+  private static Map<String, int[]> toArrays(Map<String, List<Integer>> index) {
+    return EntryStream.of(index).mapValues(indices -> IntStreamEx.of(indices).toArray()).toMap();
+  }
+
+  /** Removes trailing spaces that are not escaped with a backslash. */
+  private static String trimTrailingSpaces(String line) {
+    int lastSpace = -1;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == ' ') {
+        if (lastSpace == -1) {
+          lastSpace = i;
+        }
+      } else {
+        if (c == '\\' && ++i == line.length()) {
+          return line;
+        }
+        lastSpace = -1;
+      }
+    }
+    return lastSpace == -1 ? line : line.substring(0, lastSpace);
+  }
+
+  private static boolean isWildcard(char c) {
+    return c == '*' || c == '?' || c == '[' || c == '\\';
+  }
+
+  /** Returns the length of the pattern before its first wildcard. */
+  private static int getLiteralLength(String pattern) {
+    for (int i = 0; i < pattern.length(); i++) {
+      if (isWildcard(pattern.charAt(i))) {
+        return i;
+      }
+    }
+    return pattern.length();
+  }
+
+  /** A single pattern. */
+  private static final class Rule {
+    private final String pattern;
+    private final boolean negative;
+    private final boolean directoryOnly;
+    private final boolean basenameOnly;
+    private final int literalLength;
+
+    Rule(String line) {
+      negative = line.startsWith("!");
+      String pattern = negative ? line.substring(1) : line;
+
+      directoryOnly = pattern.endsWith("/");
+      if (directoryOnly) {
+        pattern = pattern.substring(0, pattern.length() - 1);
+      }
+
+      // Patterns without a slash match the file name at any depth. Other patterns are relative to
+      // the directory of the file they are in.
+      basenameOnly = pattern.indexOf('/') == -1;
+      if (pattern.startsWith("/")) {
+        pattern = pattern.substring(1);
+      }
+
+      this.pattern = pattern;
+      literalLength = getLiteralLength(pattern);
+    }
+
+    boolean isNegative() {
+      return negative;
+    }
+
+    boolean isBasenameOnly() {
+      return basenameOnly;
+    }
+
+    boolean isLiteral() {
+      return literalLength == pattern.length();
+    }
+
+    /** Returns the extension of a pattern such as {@code *.class}, or {@code null}. */
+    String getExtension() {
+      if (!isEndsWith()) {
+        return null;
+      }
+      int dot = pattern.lastIndexOf('.');
+      return dot == -1 ? null : pattern.substring(dot + 1);
+    }
+
+    /** Returns the first directory of a pattern such as {@code build/libs}, or {@code null}. */
+    String getFirstDirectory() {
+      int slash = pattern.indexOf('/');
+      if (slash == -1 || slash > literalLength) {
+        return isLiteral() ? pattern : null;
+      }
+      return pattern.substring(0, slash);
+    }
+
+    /** Returns whether the pattern is a wildcard followed by a literal suffix. */
+    private boolean isEndsWith() {
+      return pattern.startsWith("*")
+          && getLiteralLength(pattern.substring(1)) == pattern.length() - 1;
+    }
+
+    boolean matches(String relativePath, String basename, boolean isDirectory) {
+      if (directoryOnly && !isDirectory) {
+        return false;
+      }
+
+      if (basenameOnly) {
+        if (isLiteral()) {
+          return basename.equals(pattern);
+        }
+        if (isEndsWith()) {
+          return basename.endsWith(pattern.substring(1));
+        }
+        return WildMatch.matches(pattern, basename, false);
+      }
+
+      if (!relativePath.regionMatches(0, pattern, 0, literalLength)) {
+        return false;
+      }
+      if (isLiteral()) {
+        return relativePath.length() == pattern.length();
+      }
+      return WildMatch.matches(pattern, relativePath, true);
+    }
+  }
+
+  /**
+   * A port of the wildcard matching in Git.
+   *
+   * @see <a href="https://github.com/git/git/blob/master/wildmatch.c">wildmatch.c</a>
+   */
+  static final class WildMatch {
+    private static final int MATCH = 0;
+    private static final int NO_MATCH = 1;
+    private static final int ABORT_ALL = -1;
+    private static final int ABORT_TO_STAR_STAR = -2;
+
+    private WildMatch() {}
+
+    /**
+     * Matches text against a pattern.
+     *
+     * @param pattern the pattern
+     * @param text the text to match
+     * @param pathname whether wildcards other than {@code **} stop at slashes
+     * @return whether the text matches
+     */
+    static boolean matches(String pattern, String text, boolean pathname) {
+      return match(pattern.toCharArray(), 0, text.toCharArray(), 0, pathname) == MATCH;
+    }
+
+    private static char at(char[] chars, int index) {
+      return index < chars.length ? chars[index] : '\0';
+    }
+
+    private static int match(char[] p, int pi, char[] text, int ti, boolean pathname) {
+      for (; pi < p.length; ti++, pi++) {
+        char pCh = p[pi];
+        char tCh = at(text, ti);
+        if (tCh == '\0' && pCh != '*') {
+          return ABORT_ALL;
+        }
+
+        switch (pCh) {
+          case '\\':
+            // Match the next character literally.
+            pCh = at(p, ++pi);
+            if (tCh != pCh) {
+              return NO_MATCH;
+            }
+            continue;
+
+          case '?':
+            if (pathname && tCh == '/') {
+              return NO_MATCH;
+            }
+            continue;
+
+          case '*':
+            boolean matchSlash;
+            if (at(p, ++pi) == '*') {
+              int prevPi = pi - 2;
+              while (at(p, ++pi) == '*') {}
+              if (pathname
+                  && (prevPi < 0 || p[prevPi] == '/')
+                  && (at(p, pi) == '\0'
+                      || at(p, pi) == '/'
+                      || (at(p, pi) == '\\' && at(p, pi + 1) == '/'))) {
+                // "**/" may match no directories at all.
+                if (at(p, pi) == '/' && match(p, pi + 1, text, ti, true) == MATCH) {
+                  return MATCH;
+                }
+                matchSlash = true;
+              } else {
+                matchSlash = false;
+              }
+            } else {
+              matchSlash = !pathname;
+            }
+
+            if (at(p, pi) == '\0') {
+              // A trailing "**" matches everything, and a trailing "*" matches up to a slash.
+              if (!matchSlash && indexOf(text, ti, '/') != -1) {
+                return NO_MATCH;
+              }
+              return MATCH;
+            } else if (!matchSlash && at(p, pi) == '/') {
+              // A single "*" followed by a slash matches the rest of one directory name.
+              int slash = indexOf(text, ti, '/');
+              if (slash == -1) {
+                return NO_MATCH;
+              }
+              ti = slash;
+              break;
+            }
+
+            while (true) {
+              if (tCh == '\0') {
+                break;
+              }
+              // Skip ahead to the next occurrence of a literal that follows the wildcard.
+              char next = at(p, pi);
+              if (!isWildcard(next)) {
+                while ((tCh = at(text, ti)) != '\0' && (matchSlash || tCh != '/')) {
+                  if (tCh == next) {
+                    break;
+                  }
+                  ti++;
+                }
+                if (tCh != next) {
+                  return NO_MATCH;
+                }
+              }
+              int matched = match(p, pi, text, ti, pathname);
+              if (matched != NO_MATCH) {
+                if (!matchSlash || matched != ABORT_TO_STAR_STAR) {
+                  return matched;
+                }
+              } else if (!matchSlash && tCh == '/') {
+                return ABORT_TO_STAR_STAR;
+              }
+              tCh = at(text, ++ti);
+            }
+            return ABORT_ALL;
+
+          case '[':
+            pCh = at(p, ++pi);
+            if (pCh == '^') {
+              pCh = '!';
+            }
+            boolean negated = pCh == '!';
+            if (negated) {
+              pCh = at(p, ++pi);
+            }
+            char prevCh = '\0';
+            boolean matched = false;
+            do {
+              if (pCh == '\0') {
+                return ABORT_ALL;
+              }
+              if (pCh == '\\') {
+                pCh = at(p, ++pi);
+                if (pCh == '\0') {
+                  return ABORT_ALL;
+                }
+                if (tCh == pCh) {
+                  matched = true;
+                }
+              } else if (pCh == '-'
+                  && prevCh != '\0'
+                  && at(p, pi + 1) != '\0'
+                  && at(p, pi + 1) != ']') {
+                pCh = at(p, ++pi);
+                if (pCh == '\\') {
+                  pCh = at(p, ++pi);
+                  if (pCh == '\0') {
+                    return ABORT_ALL;
+                  }
+                }
+                if (tCh <= pCh && tCh >= prevCh) {
+                  matched = true;
+                }
+                pCh = '\0'; // This makes prevCh get set to '\0'.
+              } else if (pCh == '[' && at(p, pi + 1) == ':') {
+                int start = pi + 2;
+                int end = start;
+                while (at(p, end) != '\0' && at(p, end) != ']') {
+                  end++;
+                }
+                if (at(p, end) == '\0') {
+                  return ABORT_ALL;
+                }
+                if (end == start || at(p, end - 1) != ':') {
+                  // Not a character class, so treat the "[" literally.
+                  if (tCh == '[') {
+                    matched = true;
+                  }
+                } else {
+                  String className = new String(p, start, end - 1 - start);
+                  Boolean inClass = isInClass(className, tCh);
+                  if (inClass == null) {
+                    return ABORT_ALL;
+                  }
+                  if (inClass) {
+                    matched = true;
+                  }
+                  pi = end;
+                  pCh = '\0'; // This makes prevCh get set to '\0'.
+                }
+              } else if (tCh == pCh) {
+                matched = true;
+              }
+              prevCh = pCh;
+              pCh = at(p, ++pi);
+            } while (pCh != ']');
+            if (matched == negated || (pathname && tCh == '/')) {
+              return NO_MATCH;
+            }
+            continue;
+
+          default:
+            if (tCh != pCh) {
+              return NO_MATCH;
+            }
+            continue;
+        }
+      }
+      return ti < text.length ? NO_MATCH : MATCH;
+    }
+
+    private static int indexOf(char[] chars, int from, char c) {
+      for (int i = from; i < chars.length; i++) {
+        if (chars[i] == c) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /** Returns whether a character is in a POSIX class, or {@code null} for an unknown class. */
+    private static Boolean isInClass(String className, char c) {
+      switch (className) {
+        case "alnum":
+          return isAscii(c) && Character.isLetterOrDigit(c);
+        case "alpha":
+          return isAscii(c) && Character.isLetter(c);
+        case "blank":
+          return c == ' ' || c == '\t';
+        case "cntrl":
+          return c < 0x20 || c == 0x7F;
+        case "digit":
+          return c >= '0' && c <= '9';
+        case "graph":
+          return c > 0x20 && c < 0x7F;
+        case "lower":
+          return c >= 'a' && c <= 'z';
+        case "print":
+          return c >= 0x20 && c < 0x7F;
+        case "punct":
+          return c > 0x20 && c < 0x7F && !Character.isLetterOrDigit(c);
+        case "space":
+          return c == ' ' || (c >= '\t' && c <= '\r');
+        case "upper":
+          return c >= 'A' && c <= 'Z';
+        case "xdigit":
+          return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+        default:
+          return null;
+      }
+    }
+
+    private static boolean isAscii(char c) {
+      return c < 0x80;
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package com.github.tjni.captainhook.helpers;
+
+import com.github.tjni.captainhook.annotations.VisibleForTesting;
+import com.github.tjni.captainhook.helpers.ExecHelper.ExecException;
+import com.github.tjni.captainhook.helpers.ExecHelper.ExecResult;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import one.util.streamex.StreamEx;
+import org.gradle.api.Project;
+
+/**
+ * Decides whether paths are ignored by Git without starting a Git process per path.
+ *
+ * <p>Patterns are read from the {@code .gitignore} files in the working tree, from {@code
+ * info/exclude} in the Git directory, and from the file configured as {@code core.excludesFile}.
+ * Each file is read once, when a path under its directory is first checked, so {@code .gitignore}
+ * files under ignored directories are never read.
+ *
+ * <p>Like {@code git check-ignore --no-index}, only the patterns are considered; tracked files that
+ * match a pattern are reported as ignored.
+ *
+ * @see <a href="https://git-scm.com/docs/gitignore">gitignore</a>
+ */
+@Singleton
+public class GitIgnoreHelper {
+  private final Project project;
+  private final ExecHelper execHelper;
+  private final FilesHelper filesHelper;
+  private final GitHelper gitHelper;
+
+  private final Map<String, GitIgnore> gitIgnoreByDirectory = new ConcurrentHashMap<>();
+  private volatile List<GitIgnore> globalGitIgnores;
+
+  @Inject
+  public GitIgnoreHelper(
+      Project project, ExecHelper execHelper, FilesHelper filesHelper, GitHelper gitHelper) {
+    this.project = project;
+    this.execHelper = execHelper;
+    this.filesHelper = filesHelper;
+    this.gitHelper = gitHelper;
+  }
+
+  /**
+   * Returns whether a path is ignored by Git.
+   *
+   * @param path the path, relative to the root project directory; a trailing slash marks it as a
+   *     directory even if it does not exist yet
+   * @return whether the path is ignored
+   */
+  public boolean isIgnored(String path) {
+    Path file = project.getRootDir().toPath().resolve(path);
+    return isIgnored(file, path.endsWith("/") || Files.isDirectory(file));
+  }
+
+  /**
+   * Returns whether a path is ignored by Git.
+   *
+   * @param path the absolute path
+   * @param isDirectory whether the path is a directory
+   * @return whether the path is ignored, which is {@code false} for paths outside the working tree
+   */
+  public boolean isIgnored(Path path, boolean isDirectory) {
+    Path topLevelDir = gitHelper.getTopLevelDirectory();
+    Path relativePath = topLevelDir.relativize(toRealPath(path));
+    if (relativePath.toString().isEmpty() || relativePath.startsWith("..")) {
+      return false;
+    }
+    return isIgnored(relativePath.toString().replace(File.separatorChar, '/'), isDirectory);
+  }
+
+  /**
+   * Removes the paths that are ignored by Git.
+   *
+   * @param paths absolute paths
+   * @return the paths that are not ignored, in their original order
+   */
+  public List<Path> removeIgnored(Collection<Path> paths) {
+    return StreamEx.of(paths).remove(path -> isIgnored(path, Files.isDirectory(path))).toList();
+  }
+
+  /**
+   * Returns whether a path is ignored by Git.
+   *
+   * <p>A path is ignored if it or any of its parent directories is ignored. Files under an ignored
+   * directory cannot be included again, which is also why the directories are checked first.
+   *
+   * @param path the path, relative to the top-level directory and separated by slashes
+   * @param isDirectory whether the path is a directory
+   * @return whether the path is ignored
+   */
+  @VisibleForTesting
+  boolean isIgnored(String path, boolean isDirectory) {
+    for (int slash = path.indexOf('/'); slash != -1; slash = path.indexOf('/', slash + 1)) {
+      if (Boolean.TRUE.equals(match(path.substring(0, slash), true))) {
+        return true;
+      }
+    }
+    return Boolean.TRUE.equals(match(path, isDirectory));
+  }
+
+  /** Returns the result of the most specific pattern that matches a path, or {@code null}. */
+  private Boolean match(String path, boolean isDirectory) {
+    // Patterns in deeper .gitignore files take precedence over shallower ones, which take
+    // precedence over info/exclude, which takes precedence over core.excludesFile.
+    for (int slash = path.lastIndexOf('/'); ; slash = path.lastIndexOf('/', slash - 1)) {
+      String dir = slash == -1 ? "" : path.substring(0, slash);
+      Boolean result = getGitIgnore(dir).match(path, isDirectory);
+      if (result != null) {
+        return result;
+      }
+      if (slash == -1) {
+        break;
+      }
+    }
+
+    for (GitIgnore gitIgnore : getGlobalGitIgnores()) {
+      Boolean result = gitIgnore.match(path, isDirectory);
+      if (result != null) {
+        return result;
+      }
+    }
+    return null;
+  }
+
+  private GitIgnore getGitIgnore(String dir) {
+    return gitIgnoreByDirectory.computeIfAbsent(
+        dir,
+        key -> {
+          Path topLevelDir = gitHelper.getTopLevelDirectory();
+          Path file =
+              (key.isEmpty() ? topLevelDir : topLevelDir.resolve(key)).resolve(".gitignore");
+          return read(key, file);
+        });
+  }
+
+  private List<GitIgnore> getGlobalGitIgnores() {
+    if (globalGitIgnores == null) {
+      Path excludeFile = gitHelper.getCommonDirectory().resolve("info").resolve("exclude");
+      globalGitIgnores =
+          StreamEx.of(excludeFile, getExcludesFile()).map(file -> read("", file)).toList();
+    }
+    return globalGitIgnores;
+  }
+
+  /** Returns the file configured as {@code core.excludesFile}, or its default location. */
+  private Path getExcludesFile() {
+    // git config exits with 1 if the option is not set.
+    ExecResult result = execHelper.rawExec("git", "config", "--path", "--get", "core.excludesFile");
+    if (result.getExitCode() == 0) {
+      return project.getRootDir().toPath().resolve(result.getStdout().trim());
+    }
+    if (result.getExitCode() != 1) {
+      throw new ExecException(
+          "git config --path --get core.excludesFile", result.getExitCode(), result.getStderr());
+    }
+
+    String configHome = System.getenv("XDG_CONFIG_HOME");
+    Path configDir =
+        configHome == null || configHome.isEmpty()
+            ? Paths.get(System.getProperty("user.home"), ".config")
+            : Paths.get(configHome);
+    return configDir.resolve("git").resolve("ignore");
+  }
+
+  private GitIgnore read(String dir, Path file) {
+    return Files.isRegularFile(file)
+        ? GitIgnore.parse(dir, filesHelper.toString(file))
+        : GitIgnore.EMPTY;
+  }
+
+  /**
+   * Resolves symbolic links in the parent directories of a path, so that it can be compared with
+   * the top-level directory. A symbolic link at the path itself is kept, because Git tracks links
+   * rather than their targets.
+   */
+  private static Path toRealPath(Path path) {
+    Path absolutePath = path.toAbsolutePath().normalize();
+    for (Path existing = absolutePath.getParent();
+        existing != null;
+        existing = existing.getParent()) {
+      if (Files.exists(existing)) {
+        try {
+          return existing.toRealPath().resolve(existing.relativize(absolutePath));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    }
+    return absolutePath;
+  }
+}
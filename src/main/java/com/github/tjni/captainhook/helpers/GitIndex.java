@@ -0,0 +1,453 @@
+package com.github.tjni.captainhook.helpers;
+
+import com.github.tjni.captainhook.annotations.ImmutableStyle;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import org.immutables.value.Value;
+
+/**
+ * The contents of a Git index file, read without starting a Git process.
+ *
+ * <p>Index versions 2, 3 and 4 are supported, as are split indexes. The cache tree extension is
+ * read, and other optional extensions such as the untracked cache are skipped. Anything else that
+ * affects the meaning of the index causes an {@link UnsupportedIndexException}, so that callers can
+ * fall back to asking Git.
+ *
+ * @see <a href="https://git-scm.com/docs/index-format">index format</a>
+ */
+@Value.Immutable
+@ImmutableStyle
+abstract class GitIndex {
+  private static final int SIGNATURE = 0x44495243; // "DIRC"
+  private static final int HASH_LENGTH = 20;
+
+  private static final int ASSUME_VALID_FLAG = 0x8000;
+  private static final int EXTENDED_FLAG = 0x4000;
+  private static final int SKIP_WORKTREE_FLAG = 0x4000;
+  private static final int INTENT_TO_ADD_FLAG = 0x2000;
+  private static final int NAME_MASK = 0x0FFF;
+
+  /**
+   * Returns the time the index file was last modified, which Git uses to detect entries whose stat
+   * data cannot be trusted.
+   *
+   * @return the time the index file was last modified
+   */
+  abstract FileTime getTimestamp();
+
+  /**
+   * Returns the entries of the index, sorted by path and stage.
+   *
+   * @return the entries of the index
+   */
+  abstract List<Entry> getEntries();
+
+  /**
+   * Returns the cached tree object IDs of directories in the index.
+   *
+   * @return the root of the cache tree, if the index has one
+   */
+  abstract Optional<CacheTree> getCacheTree();
+
+  /**
+   * Reads an index file.
+   *
+   * @param indexFile the path to the index file, usually {@code $GIT_DIR/index}
+   * @return the contents of the index, which are empty if the file does not exist
+   * @throws UnsupportedIndexException if the index uses a feature that is not supported
+   * @throws UncheckedIOException if an I/O error occurs
+   */
+  static GitIndex read(Path indexFile) {
+    try {
+      return doRead(indexFile, true);
+    } catch (NoSuchFileException e) {
+      return ImmutableGitIndex.builder().setTimestamp(FileTime.fromMillis(0)).build();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      throw new UnsupportedIndexException("The index " + indexFile + " could not be parsed.", e);
+    }
+  }
+
+  private static GitIndex doRead(Path indexFile, boolean allowSplit) throws IOException {
+    FileTime timestamp = Files.getLastModifiedTime(indexFile);
+
+    // The index is read onto the heap rather than mapped, because a mapping keeps the file locked
+    // on Windows until it is garbage collected, which would stop Git from replacing the index.
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+
+    if (buffer.getInt() != SIGNATURE) {
+      throw new UnsupportedIndexException(indexFile + " is not an index file.");
+    }
+
+    int version = buffer.getInt();
+    if (version < 2 || version > 4) {
+      throw new UnsupportedIndexException("Index version " + version + " is not supported.");
+    }
+
+    int numEntries = buffer.getInt();
+    List<Entry> entries = new ArrayList<>(numEntries);
+    byte[] previousPath = new byte[0];
+    for (int i = 0; i < numEntries; i++) {
+      Entry entry = readEntry(buffer, version, previousPath);
+      previousPath = entry.getPath().getBytes(StandardCharsets.UTF_8);
+      entries.add(entry);
+    }
+
+    ImmutableGitIndex.Builder builder = ImmutableGitIndex.builder().setTimestamp(timestamp);
+    SplitIndexLink link = null;
+
+    int extensionsEnd = buffer.limit() - HASH_LENGTH;
+    while (buffer.position() < extensionsEnd) {
+      byte[] signature = new byte[4];
+      buffer.get(signature);
+      int size = buffer.getInt();
+
+      ByteBuffer extension = buffer.slice();
+      extension.limit(size);
+      buffer.position(buffer.position() + size);
+
+      String name = new String(signature, StandardCharsets.US_ASCII);
+      if (name.equals("TREE")) {
+        builder.setCacheTree(readCacheTree(extension, ""));
+      } else if (name.equals("link") && allowSplit) {
+        link = readSplitIndexLink(extension);
+      } else if (signature[0] < 'A' || signature[0] > 'Z') {
+        // Extensions whose signature does not start with an uppercase letter must be understood.
+        throw new UnsupportedIndexException("Index extension " + name + " is not supported.");
+      }
+    }
+
+    if (link != null) {
+      Path sharedIndexFile = indexFile.resolveSibling("sharedindex." + link.getSharedIndexId());
+      try {
+        entries = mergeSplitIndex(doRead(sharedIndexFile, false).getEntries(), entries, link);
+      } catch (NoSuchFileException e) {
+        throw new UnsupportedIndexException("The shared index " + sharedIndexFile + " is missing.");
+      }
+    }
+
+    return builder.addAllEntries(entries).build();
+  }
+
+  private static Entry readEntry(ByteBuffer buffer, int version, byte[] previousPath) {
+    int start = buffer.position();
+
+    ImmutableEntry.Builder builder =
+        ImmutableEntry.builder()
+            .setCtimeSeconds(buffer.getInt())
+            .setCtimeNanoseconds(buffer.getInt())
+            .setMtimeSeconds(buffer.getInt())
+            .setMtimeNanoseconds(buffer.getInt())
+            .setDevice(buffer.getInt())
+            .setInode(buffer.getInt())
+            .setMode(buffer.getInt())
+            .setUserId(buffer.getInt())
+            .setGroupId(buffer.getInt())
+            .setSize(buffer.getInt())
+            .setObjectId(readObjectId(buffer));
+
+    int flags = buffer.getShort() & 0xFFFF;
+    int extendedFlags = 0;
+    if ((flags & EXTENDED_FLAG) != 0) {
+      if (version < 3) {
+        throw new UnsupportedIndexException("Extended flags require index version 3.");
+      }
+      extendedFlags = buffer.getShort() & 0xFFFF;
+    }
+
+    builder
+        .setStage((flags >> 12) & 0x3)
+        .setIsAssumeValid((flags & ASSUME_VALID_FLAG) != 0)
+        .setIsSkipWorktree((extendedFlags & SKIP_WORKTREE_FLAG) != 0)
+        .setIsIntentToAdd((extendedFlags & INTENT_TO_ADD_FLAG) != 0);
+
+    byte[] path;
+    if (version == 4) {
+      // The path is stored as the number of bytes to remove from the end of the previous path,
+      // followed by the NUL-terminated bytes to append to it.
+      int removeLength = readOffset(buffer);
+      byte[] suffix = readNulTerminated(buffer);
+      int prefixLength = previousPath.length - removeLength;
+      path = Arrays.copyOf(previousPath, prefixLength + suffix.length);
+      System.arraycopy(suffix, 0, path, prefixLength, suffix.length);
+    } else {
+      int nameLength = flags & NAME_MASK;
+      if (nameLength < NAME_MASK) {
+        path = new byte[nameLength];
+        buffer.get(path);
+      } else {
+        path = readNulTerminated(buffer);
+        buffer.position(buffer.position() - 1);
+      }
+      // Entries are padded with one to eight NUL bytes to a multiple of eight bytes.
+      int entryLength = buffer.position() - start;
+      buffer.position(start + ((entryLength + 8) & ~7));
+    }
+
+    return builder.setPath(new String(path, StandardCharsets.UTF_8)).build();
+  }
+
+  /** Reads a variable-width integer in the offset encoding used by index version 4. */
+  private static int readOffset(ByteBuffer buffer) {
+    int b = buffer.get() & 0xFF;
+    int value = b & 0x7F;
+    while ((b & 0x80) != 0) {
+      b = buffer.get() & 0xFF;
+      value = ((value + 1) << 7) | (b & 0x7F);
+    }
+    return value;
+  }
+
+  private static byte[] readNulTerminated(ByteBuffer buffer) {
+    int start = buffer.position();
+    int end = start;
+    while (buffer.get(end) != 0) {
+      end++;
+    }
+    byte[] bytes = new byte[end - start];
+    buffer.get(bytes);
+    buffer.get(); // the NUL byte
+    return bytes;
+  }
+
+  private static String readObjectId(ByteBuffer buffer) {
+    byte[] objectId = new byte[HASH_LENGTH];
+    buffer.get(objectId);
+    return toHex(objectId, 0, HASH_LENGTH);
+  }
+
+  static String toHex(byte[] bytes, int offset, int length) {
+    char[] hex = new char[length * 2];
+    for (int i = 0; i < length; i++) {
+      int b = bytes[offset + i] & 0xFF;
+      hex[i * 2] = Character.forDigit(b >> 4, 16);
+      hex[i * 2 + 1] = Character.forDigit(b & 0xF, 16);
+    }
+    return new String(hex);
+  }
+
+  private static CacheTree readCacheTree(ByteBuffer buffer, String path) {
+    String name = new String(readNulTerminated(buffer), StandardCharsets.UTF_8);
+    int entryCount = Integer.parseInt(readAscii(buffer, ' '));
+    int subtreeCount = Integer.parseInt(readAscii(buffer, '\n'));
+
+    ImmutableCacheTree.Builder builder =
+        ImmutableCacheTree.builder().setPath(path).setEntryCount(entryCount);
+    if (entryCount >= 0) {
+      builder.setObjectId(readObjectId(buffer));
+    }
+
+    Map<String, CacheTree> subtrees = new TreeMap<>();
+    for (int i = 0; i < subtreeCount; i++) {
+      // Subtrees are read ahead of their names, so peek at the name to build the path.
+      int start = buffer.position();
+      String subtreeName = new String(readNulTerminated(buffer), StandardCharsets.UTF_8);
+      buffer.position(start);
+      String subtreePath = path.isEmpty() ? subtreeName : path + "/" + subtreeName;
+      subtrees.put(subtreeName, readCacheTree(buffer, subtreePath));
+    }
+
+    return builder.setName(name).putAllSubtrees(subtrees).build();
+  }
+
+  private static String readAscii(ByteBuffer buffer, char terminator) {
+    StringBuilder builder = new StringBuilder();
+    char c;
+    while ((c = (char) buffer.get()) != terminator) {
+      builder.append(c);
+    }
+    return builder.toString();
+  }
+
+  private static SplitIndexLink readSplitIndexLink(ByteBuffer buffer) {
+    ImmutableSplitIndexLink.Builder builder =
+        ImmutableSplitIndexLink.builder().setSharedIndexId(readObjectId(buffer));
+    if (buffer.hasRemaining()) {
+      builder.setDeleteBitmap(readEwahBitmap(buffer));
+      builder.setReplaceBitmap(readEwahBitmap(buffer));
+    }
+    return builder.build();
+  }
+
+  /**
+   * Reads a bitmap in the compressed EWAH format that Git uses for split indexes.
+   *
+   * @see <a href="https://git-scm.com/docs/bitmap-format">bitmap format</a>
+   */
+  private static BitSet readEwahBitmap(ByteBuffer buffer) {
+    buffer.getInt(); // the number of bits
+    int wordCount = buffer.getInt();
+
+    BitSet bitmap = new BitSet();
+    int bitPosition = 0;
+    int wordIndex = 0;
+    while (wordIndex < wordCount) {
+      // A run-length word is followed by the literal words that it counts.
+      long runLengthWord = buffer.getLong();
+      wordIndex++;
+
+      boolean runningBit = (runLengthWord & 1) != 0;
+      long runningLength = (runLengthWord >>> 1) & 0xFFFFFFFFL;
+      long literalWordCount = runLengthWord >>> 33;
+
+      int runningBits = Math.toIntExact(runningLength * 64);
+      if (runningBit) {
+        bitmap.set(bitPosition, bitPosition + runningBits);
+      }
+      bitPosition += runningBits;
+
+      for (long i = 0; i < literalWordCount; i++) {
+        long literalWord = buffer.getLong();
+        wordIndex++;
+        for (int bit = 0; bit < 64; bit++) {
+          if ((literalWord & (1L << bit)) != 0) {
+            bitmap.set(bitPosition + bit);
+          }
+        }
+        bitPosition += 64;
+      }
+    }
+
+    buffer.getInt(); // the position of the last run-length word
+    return bitmap;
+  }
+
+  private static List<Entry> mergeSplitIndex(
+      List<Entry> sharedEntries, List<Entry> splitEntries, SplitIndexLink link) {
+    List<Entry> entries = new ArrayList<>(sharedEntries.size() + splitEntries.size());
+    int splitIndex = 0;
+
+    for (int i = 0; i < sharedEntries.size(); i++) {
+      Entry entry = sharedEntries.get(i);
+      if (link.getReplaceBitmap().get(i)) {
+        Entry replacement = splitEntries.get(splitIndex++);
+        // Replacements may omit their paths to save space.
+        entry =
+            replacement.getPath().isEmpty()
+                ? ImmutableEntry.copyOf(replacement).withPath(entry.getPath())
+                : replacement;
+      }
+      if (!link.getDeleteBitmap().get(i)) {
+        entries.add(entry);
+      }
+    }
+
+    // The remaining entries are new, and they are sorted among themselves.
+    entries.addAll(splitEntries.subList(splitIndex, splitEntries.size()));
+    entries.sort(Comparator.comparing(Entry::getPath).thenComparing(Entry::getStage));
+    return Collections.unmodifiableList(entries);
+  }
+
+  /** An entry of the index, which describes one file at one merge stage. */
+  @Value.Immutable
+  @ImmutableStyle
+  abstract static class Entry {
+    static final int TYPE_MASK = 0170000;
+    static final int TYPE_REGULAR_FILE = 0100000;
+    static final int TYPE_SYMBOLIC_LINK = 0120000;
+    static final int TYPE_GITLINK = 0160000;
+
+    abstract String getPath();
+
+    abstract String getObjectId();
+
+    abstract int getMode();
+
+    abstract int getStage();
+
+    abstract boolean isAssumeValid();
+
+    abstract boolean isSkipWorktree();
+
+    abstract boolean isIntentToAdd();
+
+    // The stat data below is truncated to 32 bits, as it is in the index.
+
+    abstract int getCtimeSeconds();
+
+    abstract int getCtimeNanoseconds();
+
+    abstract int getMtimeSeconds();
+
+    abstract int getMtimeNanoseconds();
+
+    abstract int getDevice();
+
+    abstract int getInode();
+
+    abstract int getUserId();
+
+    abstract int getGroupId();
+
+    abstract int getSize();
+
+    int getType() {
+      return getMode() & TYPE_MASK;
+    }
+  }
+
+  /** A directory whose tree object ID is cached in the index. */
+  @Value.Immutable
+  @ImmutableStyle
+  abstract static class CacheTree {
+    abstract String getName();
+
+    /** Returns the path of the directory, which is empty for the top-level directory. */
+    abstract String getPath();
+
+    /** Returns the number of entries under the directory, or -1 if the cache is invalid. */
+    abstract int getEntryCount();
+
+    abstract Optional<String> getObjectId();
+
+    abstract Map<String, CacheTree> getSubtrees();
+
+    boolean isValid() {
+      return getEntryCount() >= 0;
+    }
+  }
+
+  @Value.Immutable
+  @ImmutableStyle
+  abstract static class SplitIndexLink {
+    abstract String getSharedIndexId();
+
+    @Value.Default
+    BitSet getDeleteBitmap() {
+      return new BitSet();
+    }
+
+    @Value.Default
+    BitSet getReplaceBitmap() {
+      return new BitSet();
+    }
+  }
+
+  /** Thrown when an index uses a feature that cannot be read without Git. */
+  static class UnsupportedIndexException extends RuntimeException {
+    UnsupportedIndexException(String message) {
+      super(message);
+    }
+
+    UnsupportedIndexException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+}
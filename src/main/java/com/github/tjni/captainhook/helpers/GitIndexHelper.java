@@ -0,0 +1,833 @@
+package com.github.tjni.captainhook.helpers;
+
+import com.github.tjni.captainhook.helpers.ExecHelper.ExecException;
+import com.github.tjni.captainhook.helpers.ExecHelper.ExecResult;
+import com.github.tjni.captainhook.helpers.GitBatchHelper.GitObject;
+import com.github.tjni.captainhook.helpers.GitBatchHelper.GitObjectInfo;
+import com.github.tjni.captainhook.helpers.GitIndex.CacheTree;
+import com.github.tjni.captainhook.helpers.GitIndex.Entry;
+import com.github.tjni.captainhook.helpers.GitIndex.UnsupportedIndexException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import one.util.streamex.EntryStream;
+import one.util.streamex.StreamEx;
+
+/**
+ * Helper for answering read-only questions about the Git index without running a Git command for
+ * each one.
+ *
+ * <p>The index is read with {@link GitIndex}. Staged files are found by comparing the index with
+ * the tree of {@code HEAD}, skipping directories whose cached tree in the index matches. Modified
+ * and deleted files are found by comparing the stat data in the index with the working tree, the
+ * way Git does, and only files whose stat data changed are hashed.
+ *
+ * <p>As with Git, the executable bit of files is ignored when {@code core.fileMode} is false.
+ *
+ * <p>Every method throws {@link UnsupportedIndexException} when the index cannot be interpreted
+ * without Git, in which case callers should run the equivalent Git command instead.
+ */
+@Singleton
+public class GitIndexHelper {
+  private static final int OBJECT_ID_LENGTH = 40;
+  private static final int TREE_MODE = 040000;
+  private static final int EXECUTABLE_BIT = 0100;
+  private static final int REGULAR_FILE_MODE = 0100644;
+  private static final int EXECUTABLE_FILE_MODE = 0100755;
+  private static final int BUFFER_SIZE = 8192;
+  private static final Set<String> FALSE_VALUES =
+      new HashSet<>(Arrays.asList("false", "no", "off", "0", ""));
+
+  private final ExecHelper execHelper;
+  private final GitBatchHelper gitBatchHelper;
+  private volatile Boolean fileMode;
+  private volatile Map<String, Optional<String>> coreConfig;
+
+  @Inject
+  public GitIndexHelper(ExecHelper execHelper, GitBatchHelper gitBatchHelper) {
+    this.execHelper = execHelper;
+    this.gitBatchHelper = gitBatchHelper;
+  }
+
+  /**
+   * Finds the files that {@code git diff --staged --diff-filter=ACMR --name-only} would print.
+   *
+   * @param gitDir the absolute path to the Git directory of the working tree
+   * @return the paths of the staged files, relative to the top-level directory
+   * @throws UnsupportedIndexException if the index cannot be read without Git
+   */
+  public List<String> findStagedPaths(Path gitDir) {
+    GitIndex index = readIndex(gitDir);
+    HeadTree headTree = new HeadTree(index.getCacheTree());
+
+    List<String> stagedPaths = new ArrayList<>();
+    for (Entry entry : index.getEntries()) {
+      if (entry.isIntentToAdd()) {
+        // Files that are only intended to be added are not shown by git diff --staged.
+        continue;
+      }
+
+      String path = entry.getPath();
+      int separator = path.lastIndexOf('/');
+      String dir = separator == -1 ? "" : path.substring(0, separator);
+      if (headTree.isUnchanged(dir)) {
+        continue;
+      }
+
+      TreeEntry headEntry = headTree.getEntries(dir).get(path.substring(separator + 1));
+      if (headEntry == null || headEntry.getMode() == TREE_MODE) {
+        stagedPaths.add(path); // added
+      } else if (!headEntry.getObjectId().equals(entry.getObjectId())
+          || headEntry.getMode() != entry.getMode()) {
+        // Changes in type, such as a file that became a symbolic link, are filtered out.
+        if ((headEntry.getMode() & Entry.TYPE_MASK) == entry.getType()) {
+          stagedPaths.add(path); // modified
+        }
+      }
+    }
+    return stagedPaths;
+  }
+
+  /**
+   * Finds the files that {@code git ls-files --modified} would print, which includes deleted files.
+   *
+   * @param gitDir the absolute path to the Git directory of the working tree
+   * @param topLevelDir the absolute path to the top-level directory of the working tree
+   * @return the paths of the modified files, relative to the top-level directory
+   * @throws UnsupportedIndexException if the index cannot be read without Git
+   */
+  public List<String> findModifiedPaths(Path gitDir, Path topLevelDir) {
+    return findWorkingTreeChanges(gitDir, topLevelDir, false);
+  }
+
+  /**
+   * Finds the files that {@code git ls-files --deleted} would print.
+   *
+   * @param gitDir the absolute path to the Git directory of the working tree
+   * @param topLevelDir the absolute path to the top-level directory of the working tree
+   * @return the paths of the deleted files, relative to the top-level directory
+   * @throws UnsupportedIndexException if the index cannot be read without Git
+   */
+  public List<String> findDeletedPaths(Path gitDir, Path topLevelDir) {
+    return findWorkingTreeChanges(gitDir, topLevelDir, true);
+  }
+
+  /**
+   * Stages the contents of files that are already in the index, with one {@code git update-index}
+   * process that records them.
+   *
+   * <p>Unlike {@code git add}, which hashes every file while it holds the lock on the index, the
+   * index is only locked while the prepared entries are written. The blobs are first hashed in
+   * parallel without Git, and files whose blob and mode are already in the index are skipped. The
+   * blobs of the rest are written as loose objects without Git, unless an attribute or {@code
+   * core.autocrlf} may filter their contents, in which case they are written by one {@code git
+   * hash-object} process so that the same filters, such as line ending conversion, are applied.
+   *
+   * <p>Files whose type changed, files that were deleted and files that are not in the index are
+   * not staged, and neither are symbolic links or paths that Git would read in quoted form.
+   *
+   * @param gitDir the absolute path to the Git directory of the working tree
+   * @param topLevelDir the absolute path to the top-level directory of the working tree
+   * @param paths the paths to stage, relative to the top-level directory
+   * @return the paths that were not staged, which should be staged with {@code git add}
+   * @throws UnsupportedIndexException if the index cannot be read without Git
+   */
+  public List<String> updateIndex(Path gitDir, Path topLevelDir, List<String> paths) {
+    Map<String, Entry> entries =
+        StreamEx.of(readIndex(gitDir).getEntries()).toMap(Entry::getPath, entry -> entry);
+
+    boolean fileMode = isFileModeTrusted();
+    Map<String, Optional<IndexInfo>> indexInfos =
+        StreamEx.of(paths)
+            .parallel()
+            .mapToEntry(path -> prepareIndexInfo(topLevelDir, path, entries.get(path), fileMode))
+            .toCustomMap(LinkedHashMap::new);
+
+    List<String> skippedPaths =
+        EntryStream.of(indexInfos).filterValues(info -> !info.isPresent()).keys().toList();
+    List<IndexInfo> changedInfos =
+        StreamEx.of(indexInfos.values())
+            .filter(Optional::isPresent)
+            .map(Optional::get)
+            .remove(info -> info.isUnchanged(entries.get(info.getPath())))
+            .toList();
+    if (changedInfos.isEmpty()) {
+      return skippedPaths;
+    }
+
+    Optional<Path> objectsDir = findObjectsDirectory(gitDir);
+    Set<String> filteredPaths =
+        objectsDir.isPresent()
+            ? findFilteredPaths(StreamEx.of(changedInfos).map(IndexInfo::getPath).toList())
+            : StreamEx.of(changedInfos).map(IndexInfo::getPath).toSet();
+    Map<String, Optional<String>> writtenObjectIds =
+        StreamEx.of(changedInfos)
+            .remove(info -> filteredPaths.contains(info.getPath()))
+            .parallel()
+            .mapToEntry(IndexInfo::getPath, info -> writeBlob(topLevelDir, objectsDir.get(), info))
+            .toMap();
+    // Files that changed while they were written are hashed again through Git.
+    List<String> gitPaths =
+        StreamEx.of(changedInfos)
+            .map(IndexInfo::getPath)
+            .filter(path -> filteredPaths.contains(path) || !writtenObjectIds.get(path).isPresent())
+            .toList();
+    Map<String, String> gitObjectIds = hashObjects(gitPaths);
+
+    List<String> records =
+        StreamEx.of(changedInfos)
+            .map(
+                info ->
+                    String.format(
+                        "%o %s\t%s",
+                        info.getMode(),
+                        gitObjectIds.containsKey(info.getPath())
+                            ? gitObjectIds.get(info.getPath())
+                            : writtenObjectIds.get(info.getPath()).get(),
+                        info.getPath()))
+            .toList();
+    execHelper.exec(
+        ImmutableExecRequest.builder()
+            .setExecutable("git")
+            .setArgs("update-index", "-z", "--index-info")
+            .addAllStdinRecords(records)
+            .build());
+    return skippedPaths;
+  }
+
+  /**
+   * Writes blobs through {@code git hash-object}, which applies the same filters as {@code git
+   * add}.
+   *
+   * @param paths paths relative to the top-level directory, none of which contains a line feed
+   * @return the paths mapped to the IDs of their blobs
+   */
+  private Map<String, String> hashObjects(List<String> paths) {
+    if (paths.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    // --stdin-paths reads one path per line, so a path with a line feed would shift every ID after
+    // it. Such paths are never prepared.
+    for (String path : paths) {
+      if (path.indexOf('\n') != -1) {
+        throw new IllegalArgumentException("Cannot hash " + path + " through Git.");
+      }
+    }
+    String[] objectIds =
+        execHelper
+            .exec(
+                ImmutableExecRequest.builder()
+                    .setExecutable("git")
+                    .setArgs("hash-object", "-w", "--stdin-paths")
+                    .setStdin(StreamEx.of(paths).joining("\n", "", "\n"))
+                    .build())
+            .split("\n");
+    return EntryStream.zip(paths, Arrays.asList(objectIds)).toMap();
+  }
+
+  /**
+   * Finds the paths whose contents Git may change when it stages them, because {@code
+   * core.autocrlf} is set or an attribute asks for a filter or for line ending or encoding
+   * conversion.
+   */
+  private Set<String> findFilteredPaths(List<String> paths) {
+    Optional<String> autoCrlf = getCoreConfig().get("core.autocrlf");
+    if (paths.isEmpty()
+        || (autoCrlf.isPresent()
+            && !FALSE_VALUES.contains(autoCrlf.get().toLowerCase(Locale.ROOT)))) {
+      return new HashSet<>(paths);
+    }
+
+    // Each attribute is printed as three records: the path, the attribute and its value.
+    String[] records =
+        execHelper
+            .exec(
+                ImmutableExecRequest.builder()
+                    .setExecutable("git")
+                    .setArgs(
+                        "check-attr",
+                        "-z",
+                        "--stdin",
+                        "filter",
+                        "text",
+                        "eol",
+                        "crlf",
+                        "ident",
+                        "working-tree-encoding")
+                    .addAllStdinRecords(paths)
+                    .build())
+            .split("\0");
+    Set<String> filteredPaths = new HashSet<>();
+    for (int i = 0; i + 2 < records.length; i += 3) {
+      if (!records[i + 2].equals("unspecified") && !records[i + 2].equals("unset")) {
+        filteredPaths.add(records[i]);
+      }
+    }
+    return filteredPaths;
+  }
+
+  /**
+   * Writes the blob of a file as a loose object, unless the object database already has it.
+   *
+   * @return the ID of the blob, or nothing if the file changed size while it was written
+   */
+  private Optional<String> writeBlob(Path topLevelDir, Path objectsDir, IndexInfo info) {
+    if (gitBatchHelper.findObject(info.getObjectId()).isPresent()) {
+      return Optional.of(info.getObjectId());
+    }
+    try {
+      return writeLooseBlob(objectsDir, topLevelDir.resolve(info.getPath()));
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Finds the directory that loose objects are written to, or nothing if objects should only be
+   * written through Git, such as when {@code GIT_OBJECT_DIRECTORY} is set or the repository is
+   * shared with other users.
+   */
+  private Optional<Path> findObjectsDirectory(Path gitDir) {
+    if (System.getenv("GIT_OBJECT_DIRECTORY") != null
+        || getCoreConfig().get("core.sharedrepository").isPresent()) {
+      return Optional.empty();
+    }
+    // Linked working trees name the common Git directory, which holds the objects, in a file.
+    Path commonDirFile = gitDir.resolve("commondir");
+    if (!Files.exists(commonDirFile)) {
+      return Optional.of(gitDir.resolve("objects"));
+    }
+    try {
+      String commonDir = new String(Files.readAllBytes(commonDirFile), StandardCharsets.UTF_8);
+      return Optional.of(gitDir.resolve(commonDir.trim()).resolve("objects").normalize());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Returns the options that decide how files are written to the object database. */
+  private Map<String, Optional<String>> getCoreConfig() {
+    if (coreConfig == null) {
+      // git config exits with 1 if none of the options is set. Each option is printed as its name
+      // and value separated by a line feed.
+      ExecResult result =
+          execHelper.rawExec(
+              "git", "config", "-z", "--get-regexp", "^core\\.(autocrlf|sharedrepository)$");
+      if (result.getExitCode() != 0 && result.getExitCode() != 1) {
+        throw new ExecException(
+            "git config -z --get-regexp", result.getExitCode(), result.getStderr());
+      }
+      Map<String, Optional<String>> config = new HashMap<>();
+      config.put("core.autocrlf", Optional.empty());
+      config.put("core.sharedrepository", Optional.empty());
+      for (String record : result.getStdout().split("\0")) {
+        int separator = record.indexOf('\n');
+        if (!record.isEmpty()) {
+          config.put(
+              (separator == -1 ? record : record.substring(0, separator)).toLowerCase(Locale.ROOT),
+              Optional.of(separator == -1 ? "true" : record.substring(separator + 1)));
+        }
+      }
+      coreConfig = config;
+    }
+    return coreConfig;
+  }
+
+  /** Prepares the index entry of a regular file, or returns nothing if it cannot be prepared. */
+  private static Optional<IndexInfo> prepareIndexInfo(
+      Path topLevelDir, String path, Entry entry, boolean fileMode) {
+    if (entry == null
+        || entry.getType() != Entry.TYPE_REGULAR_FILE
+        || entry.isIntentToAdd()
+        || path.startsWith("\"")
+        || path.indexOf('\n') != -1) {
+      return Optional.empty();
+    }
+    Path file = topLevelDir.resolve(path);
+    Stat stat = Stat.read(file);
+    if (stat == null || !stat.isRegularFile()) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(
+          new IndexInfo(
+              stat.getRegularFileMode(entry, fileMode), hashBlob(file, stat.getSize()), path));
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private List<String> findWorkingTreeChanges(Path gitDir, Path topLevelDir, boolean deletedOnly) {
+    GitIndex index = readIndex(gitDir);
+    long indexSeconds = index.getTimestamp().to(TimeUnit.SECONDS);
+    boolean fileMode = deletedOnly || isFileModeTrusted();
+
+    List<String> changedPaths = new ArrayList<>();
+    List<Entry> uncertainEntries = new ArrayList<>();
+
+    for (Entry entry : index.getEntries()) {
+      if (entry.getType() == Entry.TYPE_GITLINK) {
+        throw new UnsupportedIndexException("Submodules are not supported.");
+      }
+      if (entry.isSkipWorktree()) {
+        continue;
+      }
+
+      Stat stat = Stat.read(topLevelDir.resolve(entry.getPath()));
+      if (stat == null) {
+        changedPaths.add(entry.getPath());
+        continue;
+      }
+      if (deletedOnly || entry.isAssumeValid()) {
+        continue;
+      }
+
+      if (entry.isIntentToAdd() || stat.isTypeOrModeChanged(entry, fileMode)) {
+        changedPaths.add(entry.getPath());
+      } else if (stat.isSizeChanged(entry) && entry.getSize() != 0) {
+        changedPaths.add(entry.getPath());
+      } else if (stat.isChanged(entry)
+          || Integer.toUnsignedLong(entry.getMtimeSeconds()) >= indexSeconds) {
+        // The contents may have changed without changing the size, or the file may have been
+        // modified in the same second that the index was written, which Git calls racily clean.
+        uncertainEntries.add(entry);
+      }
+    }
+
+    // Report the paths in the order of the index, as Git does.
+    Set<String> allChangedPaths = new HashSet<>(changedPaths);
+    allChangedPaths.addAll(findChangedContents(topLevelDir, uncertainEntries));
+    return StreamEx.of(index.getEntries())
+        .map(Entry::getPath)
+        .filter(allChangedPaths::contains)
+        .toList();
+  }
+
+  private List<String> findChangedContents(Path topLevelDir, List<Entry> entries) {
+    if (entries.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    List<Entry> regularFiles = new ArrayList<>();
+    List<String> changedPaths = new ArrayList<>();
+    for (Entry entry : entries) {
+      if (entry.getType() == Entry.TYPE_SYMBOLIC_LINK) {
+        // The contents of a symbolic link are its target.
+        if (!hashSymbolicLink(topLevelDir.resolve(entry.getPath())).equals(entry.getObjectId())) {
+          changedPaths.add(entry.getPath());
+        }
+      } else if (entry.getPath().startsWith("\"") || entry.getPath().indexOf('\n') != -1) {
+        throw new UnsupportedIndexException("Cannot hash " + entry.getPath() + ".");
+      } else {
+        regularFiles.add(entry);
+      }
+    }
+
+    if (!regularFiles.isEmpty()) {
+      // Hashing through Git applies the same filters, such as line ending conversion, that git
+      // add would. Paths are read relative to the top-level directory.
+      String stdin = StreamEx.of(regularFiles).map(Entry::getPath).joining("\n", "", "\n");
+      String[] objectIds =
+          execHelper
+              .exec(
+                  ImmutableExecRequest.builder()
+                      .setExecutable("git")
+                      .setArgs("hash-object", "--stdin-paths")
+                      .setStdin(stdin)
+                      .build())
+              .split("\n");
+
+      for (int i = 0; i < regularFiles.size(); i++) {
+        if (!objectIds[i].equals(regularFiles.get(i).getObjectId())) {
+          changedPaths.add(regularFiles.get(i).getPath());
+        }
+      }
+    }
+    return changedPaths;
+  }
+
+  private static String hashSymbolicLink(Path file) {
+    try {
+      Path target = Files.readSymbolicLink(file);
+      return hashBlob(target.toString().getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns whether the executable bit of files is recorded, which is the {@code core.fileMode}.
+   */
+  private boolean isFileModeTrusted() {
+    if (fileMode == null) {
+      // git config exits with 1 if the option is not set, in which case it defaults to true.
+      ExecResult result = execHelper.rawExec("git", "config", "--bool", "--get", "core.fileMode");
+      if (result.getExitCode() != 0 && result.getExitCode() != 1) {
+        throw new ExecException(
+            "git config --bool --get core.fileMode", result.getExitCode(), result.getStderr());
+      }
+      fileMode = result.getExitCode() == 1 || Boolean.parseBoolean(result.getStdout().trim());
+    }
+    return fileMode;
+  }
+
+  /**
+   * Computes the object ID that Git gives a blob with the contents of a file, without holding the
+   * contents in memory.
+   *
+   * <p>The size is taken from the stat data, because it comes first in the hashed header. If the
+   * file changes size while it is read, the object ID will not match any blob, so the file is
+   * hashed again through Git.
+   */
+  private static String hashBlob(Path file, long size) throws IOException {
+    MessageDigest digest = newSha1Digest();
+    digest.update(("blob " + size + "\0").getBytes(StandardCharsets.US_ASCII));
+    try (InputStream stream = Files.newInputStream(file)) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int length;
+      while ((length = stream.read(buffer)) != -1) {
+        digest.update(buffer, 0, length);
+      }
+    }
+    byte[] hash = digest.digest();
+    return GitIndex.toHex(hash, 0, hash.length);
+  }
+
+  /**
+   * Writes the contents of a file as a loose blob, the way {@code git hash-object -w --no-filters}
+   * does, without holding the contents in memory.
+   *
+   * <p>The object is compressed into a temporary file next to where it belongs, and is then moved
+   * into place, so that Git never reads a partly written object.
+   *
+   * @return the ID of the blob, or nothing if the file changed size while it was written
+   */
+  private static Optional<String> writeLooseBlob(Path objectsDir, Path file) throws IOException {
+    long size = Files.size(file);
+    MessageDigest digest = newSha1Digest();
+    Path tempFile = Files.createTempFile(objectsDir, "tmp_obj_", "");
+    try {
+      long length = 0;
+      try (InputStream stream = Files.newInputStream(file);
+          OutputStream output = new DeflaterOutputStream(Files.newOutputStream(tempFile))) {
+        byte[] header = ("blob " + size + "\0").getBytes(StandardCharsets.US_ASCII);
+        digest.update(header);
+        output.write(header);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+          digest.update(buffer, 0, read);
+          output.write(buffer, 0, read);
+          length += read;
+        }
+      }
+      if (length != size) {
+        return Optional.empty();
+      }
+
+      byte[] hash = digest.digest();
+      String objectId = GitIndex.toHex(hash, 0, hash.length);
+      Path objectFile = objectsDir.resolve(objectId.substring(0, 2)).resolve(objectId.substring(2));
+      Files.createDirectories(objectFile.getParent());
+      // Git writes objects read-only, since they never change.
+      try {
+        Files.setPosixFilePermissions(tempFile, PosixFilePermissions.fromString("r--r--r--"));
+      } catch (UnsupportedOperationException e) {
+        tempFile.toFile().setReadOnly();
+      }
+      try {
+        Files.move(tempFile, objectFile, StandardCopyOption.ATOMIC_MOVE);
+      } catch (FileAlreadyExistsException e) {
+        // Another process wrote the same object.
+      }
+      return Optional.of(objectId);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /** Computes the object ID that Git gives a blob with the given contents. */
+  private static String hashBlob(byte[] content) {
+    MessageDigest digest = newSha1Digest();
+    digest.update(("blob " + content.length + "\0").getBytes(StandardCharsets.US_ASCII));
+    byte[] hash = digest.digest(content);
+    return GitIndex.toHex(hash, 0, hash.length);
+  }
+
+  private static MessageDigest newSha1Digest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private GitIndex readIndex(Path gitDir) {
+    GitIndex index = GitIndex.read(gitDir.resolve("index"));
+    for (Entry entry : index.getEntries()) {
+      if (entry.getStage() != 0) {
+        throw new UnsupportedIndexException("The index has unmerged entries.");
+      }
+    }
+    return index;
+  }
+
+  /** The tree of {@code HEAD}, read one directory at a time as it is needed. */
+  private class HeadTree {
+    private final Optional<CacheTree> rootCacheTree;
+    private final Map<String, Optional<String>> treeIds = new HashMap<>();
+    private final Map<String, Map<String, TreeEntry>> entries = new HashMap<>();
+    private final Map<String, Boolean> unchangedDirs = new HashMap<>();
+
+    HeadTree(Optional<CacheTree> rootCacheTree) {
+      this.rootCacheTree = rootCacheTree;
+    }
+
+    /** Returns whether the index has the same tree as {@code HEAD} for a directory. */
+    boolean isUnchanged(String dir) {
+      Boolean unchanged = unchangedDirs.get(dir);
+      if (unchanged == null) {
+        int separator = dir.lastIndexOf('/');
+        unchanged =
+            (!dir.isEmpty() && isUnchanged(separator == -1 ? "" : dir.substring(0, separator)))
+                || findCacheTree(dir)
+                    .filter(CacheTree::isValid)
+                    .flatMap(CacheTree::getObjectId)
+                    .map(objectId -> getTreeId(dir).map(objectId::equals).orElse(false))
+                    .orElse(false);
+        unchangedDirs.put(dir, unchanged);
+      }
+      return unchanged;
+    }
+
+    Map<String, TreeEntry> getEntries(String dir) {
+      Map<String, TreeEntry> dirEntries = entries.get(dir);
+      if (dirEntries == null) {
+        dirEntries =
+            getTreeId(dir)
+                .flatMap(gitBatchHelper::readObject)
+                .map(GitObject::getContent)
+                .map(GitIndexHelper::parseTree)
+                .orElse(Collections.emptyMap());
+        entries.put(dir, dirEntries);
+      }
+      return dirEntries;
+    }
+
+    private Optional<String> getTreeId(String dir) {
+      Optional<String> treeId = treeIds.get(dir);
+      if (treeId == null) {
+        if (dir.isEmpty()) {
+          treeId = gitBatchHelper.findObject("HEAD^{tree}").map(GitObjectInfo::getObjectId);
+          if (treeId.isPresent() && treeId.get().length() != OBJECT_ID_LENGTH) {
+            throw new UnsupportedIndexException("Only SHA-1 repositories are supported.");
+          }
+        } else {
+          int separator = dir.lastIndexOf('/');
+          String parent = separator == -1 ? "" : dir.substring(0, separator);
+          treeId =
+              Optional.ofNullable(getEntries(parent).get(dir.substring(separator + 1)))
+                  .filter(entry -> entry.getMode() == TREE_MODE)
+                  .map(TreeEntry::getObjectId);
+        }
+        treeIds.put(dir, treeId);
+      }
+      return treeId;
+    }
+
+    private Optional<CacheTree> findCacheTree(String dir) {
+      Optional<CacheTree> cacheTree = rootCacheTree;
+      if (!dir.isEmpty()) {
+        for (String name : dir.split("/")) {
+          cacheTree = cacheTree.map(tree -> tree.getSubtrees().get(name));
+        }
+      }
+      return cacheTree;
+    }
+  }
+
+  /** Parses a tree object, whose entries are {@code <mode> <name>\0<20-byte object ID>}. */
+  private static Map<String, TreeEntry> parseTree(byte[] content) {
+    Map<String, TreeEntry> treeEntries = new HashMap<>();
+    int offset = 0;
+    while (offset < content.length) {
+      int mode = 0;
+      while (content[offset] != ' ') {
+        mode = (mode << 3) + (content[offset++] - '0');
+      }
+      int nameStart = ++offset;
+      while (content[offset] != 0) {
+        offset++;
+      }
+      String name = new String(content, nameStart, offset - nameStart, StandardCharsets.UTF_8);
+      String objectId = GitIndex.toHex(content, offset + 1, OBJECT_ID_LENGTH / 2);
+      treeEntries.put(name, new TreeEntry(mode, objectId));
+      offset += 1 + OBJECT_ID_LENGTH / 2;
+    }
+    return treeEntries;
+  }
+
+  private static final class TreeEntry {
+    private final int mode;
+    private final String objectId;
+
+    TreeEntry(int mode, String objectId) {
+      this.mode = mode;
+      this.objectId = objectId;
+    }
+
+    int getMode() {
+      return mode;
+    }
+
+    String getObjectId() {
+      return objectId;
+    }
+  }
+
+  /** An entry for {@code git update-index --index-info}. */
+  private static final class IndexInfo {
+    private final int mode;
+    private final String objectId;
+    private final String path;
+
+    IndexInfo(int mode, String objectId, String path) {
+      this.mode = mode;
+      this.objectId = objectId;
+      this.path = path;
+    }
+
+    int getMode() {
+      return mode;
+    }
+
+    String getObjectId() {
+      return objectId;
+    }
+
+    String getPath() {
+      return path;
+    }
+
+    boolean isUnchanged(Entry entry) {
+      return mode == entry.getMode() && objectId.equals(entry.getObjectId());
+    }
+  }
+
+  /** The subset of a file's stat data that Git records in the index. */
+  private static final class Stat {
+    private final BasicFileAttributes attributes;
+    private final Map<String, Object> unixAttributes;
+
+    private Stat(BasicFileAttributes attributes, Map<String, Object> unixAttributes) {
+      this.attributes = attributes;
+      this.unixAttributes = unixAttributes;
+    }
+
+    /** Reads the stat data of a file, or returns {@code null} if the file does not exist. */
+    static Stat read(Path file) {
+      try {
+        BasicFileAttributes attributes =
+            Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        Map<String, Object> unixAttributes;
+        try {
+          unixAttributes =
+              Files.readAttributes(file, "unix:ctime,ino,mode", LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+          unixAttributes = Collections.emptyMap();
+        }
+        return new Stat(attributes, unixAttributes);
+      } catch (NoSuchFileException e) {
+        return null;
+      } catch (FileSystemException e) {
+        if (Files.notExists(file, LinkOption.NOFOLLOW_LINKS)) {
+          // A parent of the path is not a directory.
+          return null;
+        }
+        throw new UncheckedIOException(e);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    boolean isTypeOrModeChanged(Entry entry, boolean fileMode) {
+      if (entry.getType() == Entry.TYPE_SYMBOLIC_LINK) {
+        return !attributes.isSymbolicLink();
+      }
+      if (!attributes.isRegularFile()) {
+        return true;
+      }
+      // The executable bit is only compared where the file system has one and core.fileMode is set.
+      Integer mode = (Integer) unixAttributes.get("mode");
+      return fileMode && mode != null && ((mode ^ entry.getMode()) & EXECUTABLE_BIT) != 0;
+    }
+
+    boolean isRegularFile() {
+      return attributes.isRegularFile();
+    }
+
+    /**
+     * Returns the mode that Git records for a regular file, which keeps the mode in the index where
+     * the file system has no executable bit or core.fileMode is false.
+     */
+    int getRegularFileMode(Entry entry, boolean fileMode) {
+      Integer mode = (Integer) unixAttributes.get("mode");
+      if (!fileMode || mode == null) {
+        return entry.getMode();
+      }
+      return (mode & EXECUTABLE_BIT) != 0 ? EXECUTABLE_FILE_MODE : REGULAR_FILE_MODE;
+    }
+
+    long getSize() {
+      return attributes.size();
+    }
+
+    boolean isSizeChanged(Entry entry) {
+      return (int) attributes.size() != entry.getSize();
+    }
+
+    boolean isChanged(Entry entry) {
+      if (isSizeChanged(entry)
+          || (int) attributes.lastModifiedTime().to(TimeUnit.SECONDS) != entry.getMtimeSeconds()) {
+        return true;
+      }
+      FileTime ctime = (FileTime) unixAttributes.get("ctime");
+      Long inode = (Long) unixAttributes.get("ino");
+      return (ctime != null && (int) ctime.to(TimeUnit.SECONDS) != entry.getCtimeSeconds())
+          || (inode != null && inode.intValue() != entry.getInode());
+    }
+  }
+}
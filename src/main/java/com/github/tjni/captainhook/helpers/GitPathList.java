@@ -0,0 +1,76 @@
+package com.github.tjni.captainhook.helpers;
+
+import com.github.tjni.captainhook.helpers.ExecHelper.RecordConsumer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * A compact, unmodifiable list of paths printed by Git.
+ *
+ * <p>The paths are kept as the raw bytes that Git printed, packed into a single array. They are
+ * only decoded and resolved into {@link Path} objects when they are accessed, so a large listing
+ * costs little more memory than its output.
+ */
+final class GitPathList extends AbstractList<Path> implements RandomAccess {
+  private final Path baseDir;
+  private final byte[] bytes;
+  private final int[] offsets;
+
+  private GitPathList(Path baseDir, byte[] bytes, int[] offsets) {
+    this.baseDir = baseDir;
+    this.bytes = bytes;
+    this.offsets = offsets;
+  }
+
+  @Override
+  public Path get(int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+    }
+    return baseDir.resolve(getRelativePath(index));
+  }
+
+  /**
+   * Returns a path as Git printed it, relative to the top-level directory of the repository.
+   *
+   * @param index the index of the path
+   * @return the relative path
+   */
+  String getRelativePath(int index) {
+    int offset = offsets[index];
+    return new String(bytes, offset, offsets[index + 1] - offset, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public int size() {
+    return offsets.length - 1;
+  }
+
+  /** Collects NUL-delimited records into a {@link GitPathList}. */
+  static final class Builder implements RecordConsumer {
+    private byte[] bytes = new byte[4096];
+    private int[] offsets = new int[256];
+    private int size;
+
+    @Override
+    public void accept(byte[] buffer, int offset, int length) {
+      int end = offsets[size];
+      if (end + length > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, end + length));
+      }
+      if (size + 2 > offsets.length) {
+        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      }
+      System.arraycopy(buffer, offset, bytes, end, length);
+      offsets[++size] = end + length;
+    }
+
+    GitPathList build(Path baseDir) {
+      return new GitPathList(
+          baseDir, Arrays.copyOf(bytes, offsets[size]), Arrays.copyOf(offsets, size + 1));
+    }
+  }
+}
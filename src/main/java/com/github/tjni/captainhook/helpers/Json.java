@@ -0,0 +1,28 @@
+package com.github.tjni.captainhook.helpers;
+
+import java.util.Locale;
+
+/** Helpers for writing the JSON reports, which are formatted by hand. */
+final class Json {
+  private Json() {}
+
+  /**
+   * Escapes a string so that it can be put between quotes in a JSON document.
+   *
+   * @param str the string to escape
+   * @return the string with quotes, backslashes and control characters escaped
+   */
+  static String escape(String str) {
+    StringBuilder builder = new StringBuilder(str.length());
+    for (char c : str.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        builder.append('\\').append(c);
+      } else if (c < 0x20) {
+        builder.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+      } else {
+        builder.append(c);
+      }
+    }
+    return builder.toString();
+  }
+}
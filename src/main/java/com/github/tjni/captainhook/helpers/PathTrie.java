@@ -0,0 +1,69 @@
+package com.github.tjni.captainhook.helpers;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import one.util.streamex.StreamEx;
+
+/**
+ * Maps directories to values, and finds the value of the deepest directory that contains a path.
+ *
+ * <p>Directories are stored by their names, so a lookup takes time proportional to the depth of the
+ * path rather than to the number of directories, which matters for builds with hundreds of
+ * projects.
+ *
+ * @param <T> the type of the values
+ */
+final class PathTrie<T> {
+  private final Node<T> root = new Node<>();
+
+  /**
+   * Maps a directory to a value, replacing any value it was mapped to.
+   *
+   * @param directory the absolute path of the directory
+   * @param value the value
+   */
+  void put(Path directory, T value) {
+    Node<T> node = root;
+    for (String name : getNames(directory)) {
+      node = node.children.computeIfAbsent(name, n -> new Node<>());
+    }
+    node.value = value;
+  }
+
+  /**
+   * Finds the value of the deepest directory that contains a path, or that is the path itself.
+   *
+   * @param path the absolute path
+   * @return the value, or empty if no directory contains the path
+   */
+  Optional<T> findLongestPrefix(Path path) {
+    Node<T> node = root;
+    T value = root.value;
+    for (String name : getNames(path)) {
+      node = node.children.get(name);
+      if (node == null) {
+        break;
+      }
+      if (node.value != null) {
+        value = node.value;
+      }
+    }
+    return Optional.ofNullable(value);
+  }
+
+  private static List<String> getNames(Path path) {
+    Path normalizedPath = path.normalize();
+    return StreamEx.of(normalizedPath.iterator())
+        .map(Path::toString)
+        .prepend(String.valueOf(normalizedPath.getRoot()))
+        .toList();
+  }
+
+  private static final class Node<T> {
+    private final Map<String, Node<T>> children = new HashMap<>();
+    private T value;
+  }
+}
@@ -0,0 +1,142 @@
+package com.github.tjni.captainhook.helpers;
+
+import com.github.tjni.captainhook.annotations.ImmutableStyle;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import one.util.streamex.StreamEx;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.immutables.value.Value;
+
+/**
+ * Helper to run tasks against a copy of the files staged in Git, instead of the working tree.
+ *
+ * <p>The staged contents are exported from the index into a scratch directory, so the working tree
+ * is never read or changed and no snapshot has to be saved or restored. Whatever the tasks change
+ * in the copy is written back to the index in one batch.
+ */
+@Singleton
+public class SandboxHelper {
+  private static final Logger LOG = Logging.getLogger(SandboxHelper.class);
+
+  private final GitHelper gitHelper;
+  private final FilesHelper filesHelper;
+
+  @Inject
+  public SandboxHelper(GitHelper gitHelper, FilesHelper filesHelper) {
+    this.gitHelper = gitHelper;
+    this.filesHelper = filesHelper;
+  }
+
+  /**
+   * Exports the staged contents of the staged files into a directory, replacing anything that was
+   * in it. The files are written by a single {@code git checkout-index}, so filters such as line
+   * ending conversions are applied like they are in the working tree.
+   *
+   * @param sandboxDir the directory to export the files to
+   * @return the exported files
+   */
+  public Sandbox exportStagedFiles(Path sandboxDir) {
+    long startNanos = System.nanoTime();
+
+    filesHelper.deleteRecursively(sandboxDir);
+    filesHelper.createDirectories(sandboxDir);
+
+    List<Path> stagedFiles = gitHelper.getStagedFiles();
+    if (!stagedFiles.isEmpty()) {
+      // The prefix is prepended to each path as is, so it has to end with a separator.
+      gitHelper.gitWithPaths(
+          stagedFiles,
+          "checkout-index",
+          "--prefix=" + sandboxDir + File.separator,
+          "-z",
+          "--stdin");
+    }
+
+    Path topLevelDir = gitHelper.getTopLevelDirectory();
+    List<Path> files =
+        StreamEx.of(stagedFiles)
+            .map(stagedFile -> sandboxDir.resolve(topLevelDir.relativize(stagedFile)))
+            .toList();
+
+    Sandbox sandbox =
+        ImmutableSandbox.builder()
+            .setDirectory(sandboxDir)
+            .addAllStagedFiles(stagedFiles)
+            .addAllFiles(files)
+            .putAllContentHashes(
+                StreamEx.of(files)
+                    .parallel()
+                    .mapToEntry(this::hash)
+                    .filterValues(Optional::isPresent)
+                    .mapValues(Optional::get)
+                    .toMap())
+            .build();
+
+    LOG.info(
+        "Exported {} staged files to {} in {} ms.",
+        files.size(),
+        sandboxDir,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    return sandbox;
+  }
+
+  /**
+   * Stages the files that the tasks changed or deleted in the sandbox.
+   *
+   * @param sandbox the sandbox
+   * @return the paths of the changed files, relative to the sandbox directory
+   */
+  public List<Path> applyModifications(Sandbox sandbox) {
+    Map<Path, String> contentHashes = sandbox.getContentHashes();
+    List<Path> changedFiles =
+        StreamEx.of(sandbox.getFiles())
+            .parallel()
+            .filter(file -> !hash(file).equals(Optional.ofNullable(contentHashes.get(file))))
+            .map(sandbox.getDirectory()::relativize)
+            .toList();
+
+    LOG.info("The tasks changed {} staged files in the sandbox.", changedFiles.size());
+    if (!changedFiles.isEmpty()) {
+      gitHelper.updateIndexFrom(sandbox.getDirectory(), changedFiles);
+    }
+    return changedFiles;
+  }
+
+  public void deleteSandbox(Sandbox sandbox) {
+    filesHelper.deleteRecursively(sandbox.getDirectory());
+  }
+
+  /**
+   * Hashes the contents of a file or symbolic link, or returns empty if there is none. Directories,
+   * which are exported for submodules, are skipped.
+   */
+  private Optional<String> hash(Path file) {
+    if (!filesHelper.getFingerprint(file).isPresent() || filesHelper.isDirectory(file)) {
+      return Optional.empty();
+    }
+    return Optional.of(filesHelper.hash(file));
+  }
+
+  @Value.Immutable
+  @ImmutableStyle
+  public interface Sandbox {
+    /** The directory that the staged files were exported to. */
+    Path getDirectory();
+
+    /** The absolute paths of the staged files in the working tree. */
+    List<Path> getStagedFiles();
+
+    /** The absolute paths of the exported files, in the order of the staged files. */
+    List<Path> getFiles();
+
+    /** The hashes of the contents of the exported files. */
+    Map<Path, String> getContentHashes();
+  }
+}
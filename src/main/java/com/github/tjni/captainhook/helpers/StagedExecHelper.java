@@ -0,0 +1,235 @@
+package com.github.tjni.captainhook.helpers;
+
+import com.github.tjni.captainhook.annotations.VisibleForTesting;
+import com.github.tjni.captainhook.helpers.ExecHelper.ExecException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import one.util.streamex.StreamEx;
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+/**
+ * Runs an external command, such as a formatter or linter CLI, over staged files.
+ *
+ * <p>The files are split into chunks whose command lines fit in {@link
+ * OperatingSystemHelper#getMaxCommandLength()}, and into at least as many chunks as commands may
+ * run at once, so that they share the work. The chunks run on a bounded pool of threads. Once a
+ * chunk fails, the chunks that have not started are cancelled and the commands of the others are
+ * destroyed, so that the task fails as soon as one command does.
+ */
+@Singleton
+public class StagedExecHelper {
+  private static final Logger LOG = Logging.getLogger(StagedExecHelper.class);
+
+  private final ExecHelper execHelper;
+  private final OperatingSystemHelper operatingSystemHelper;
+
+  @Inject
+  public StagedExecHelper(ExecHelper execHelper, OperatingSystemHelper operatingSystemHelper) {
+    this.execHelper = execHelper;
+    this.operatingSystemHelper = operatingSystemHelper;
+  }
+
+  /**
+   * Runs a command with the paths of files appended to its arguments.
+   *
+   * @param commandLine the executable and its arguments
+   * @param files absolute paths of the files
+   * @param maxParallelism how many commands may run at once
+   * @param outputConsumer receives each line of output, prefixed with the chunk that printed it;
+   *     standard output is passed on as it is read, and standard error once a chunk finishes,
+   *     except for the chunks that are destroyed after another one failed
+   * @throws GradleException if a chunk fails
+   */
+  public void exec(
+      List<String> commandLine,
+      List<Path> files,
+      int maxParallelism,
+      Consumer<String> outputConsumer) {
+    if (commandLine.isEmpty()) {
+      throw new GradleException("The command line to run on the staged files is empty.");
+    }
+    if (maxParallelism < 1) {
+      throw new GradleException(
+          String.format(
+              "At least one command must be able to run at once, not %d.", maxParallelism));
+    }
+    if (files.isEmpty()) {
+      LOG.info("Not running {} because no staged files were given.", commandLine.get(0));
+      return;
+    }
+
+    long startNanos = System.nanoTime();
+    List<List<Path>> chunks = chunk(commandLine, files, maxParallelism);
+    ChunkRun run = new ChunkRun();
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(maxParallelism, chunks.size()));
+    try {
+      for (int i = 0; i < chunks.size(); i++) {
+        int index = i;
+        run.futures.add(
+            executor.submit(() -> execChunk(commandLine, chunks, index, outputConsumer, run)));
+      }
+      // A chunk may have failed before the futures of the later chunks were added.
+      if (run.failure.get() != null) {
+        run.cancel();
+      }
+    } finally {
+      executor.shutdown();
+      awaitTermination(executor, run);
+    }
+
+    if (run.failure.get() != null) {
+      throw run.failure.get();
+    }
+    LOG.info(
+        "Ran {} on {} staged files in {} chunks in {} ms.",
+        commandLine.get(0),
+        files.size(),
+        chunks.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+  }
+
+  /**
+   * Splits files into chunks whose command lines fit in the maximum length of a command. A file
+   * whose path alone is too long is still run, in a chunk of its own.
+   *
+   * @param commandLine the executable and its arguments
+   * @param files absolute paths of the files
+   * @param minChunks how many chunks there should at least be, if there are as many files
+   * @return the files in chunks, in their original order
+   */
+  @VisibleForTesting
+  List<List<Path>> chunk(List<String> commandLine, List<Path> files, int minChunks) {
+    int maxLength = operatingSystemHelper.getMaxCommandLength();
+    int commandLength = StreamEx.of(commandLine).mapToInt(arg -> arg.length() + 1).sum();
+    int maxChunkSize = divideCeil(files.size(), minChunks);
+
+    List<List<Path>> chunks = new ArrayList<>();
+    List<Path> chunk = new ArrayList<>();
+    int length = commandLength;
+    for (Path file : files) {
+      int fileLength = file.toString().length() + 1;
+      if (!chunk.isEmpty() && (length + fileLength > maxLength || chunk.size() == maxChunkSize)) {
+        chunks.add(chunk);
+        chunk = new ArrayList<>();
+        length = commandLength;
+      }
+      chunk.add(file);
+      length += fileLength;
+    }
+    chunks.add(chunk);
+    return chunks;
+  }
+
+  private void execChunk(
+      List<String> commandLine,
+      List<List<Path>> chunks,
+      int index,
+      Consumer<String> outputConsumer,
+      ChunkRun run) {
+    if (run.failure.get() != null) {
+      return;
+    }
+
+    List<Path> chunk = chunks.get(index);
+    String executable = commandLine.get(0);
+    String prefix = String.format(Locale.ROOT, "[%s %d/%d] ", executable, index + 1, chunks.size());
+    String[] args =
+        StreamEx.of(commandLine)
+            .skip(1)
+            .append(StreamEx.of(chunk).map(Path::toString))
+            .toArray(String.class);
+    try {
+      String error =
+          execHelper.stream(
+              line -> outputConsumer.accept(prefix + line), run::register, executable, args);
+      acceptLines(error, prefix, outputConsumer);
+    } catch (ExecException e) {
+      // The commands that are destroyed because another chunk failed print nothing useful.
+      GradleException exception =
+          new GradleException(
+              String.format(
+                  "%s failed with exit code %d on %d staged files.",
+                  executable, e.getExitCode(), chunk.size()));
+      if (run.fail(exception)) {
+        acceptLines(e.getError(), prefix, outputConsumer);
+      }
+    } catch (RuntimeException e) {
+      run.fail(e);
+    }
+  }
+
+  private static void acceptLines(String output, String prefix, Consumer<String> outputConsumer) {
+    StreamEx.split(output, '\n')
+        .remove(String::isEmpty)
+        .forEach(line -> outputConsumer.accept(prefix + line));
+  }
+
+  private static void awaitTermination(ExecutorService executor, ChunkRun run) {
+    try {
+      // No command is left running when the task finishes.
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      run.cancel();
+      Thread.currentThread().interrupt();
+      throw new GradleException("Interrupted while waiting for the staged files to be run.", e);
+    }
+  }
+
+  private static int divideCeil(int dividend, int divisor) {
+    // See https://stackoverflow.com/a/21830188.
+    return (dividend + divisor - 1) / divisor;
+  }
+
+  /** The state that the chunks of a single command share. */
+  private static class ChunkRun {
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    private final List<Future<?>> futures = new CopyOnWriteArrayList<>();
+    private final Set<Process> processes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Records the failure of a chunk and cancels the others, unless another chunk already failed.
+     *
+     * @return whether this is the first failure
+     */
+    boolean fail(RuntimeException exception) {
+      if (!failure.compareAndSet(null, exception)) {
+        return false;
+      }
+      cancel();
+      return true;
+    }
+
+    /**
+     * Keeps a started process so that it can be destroyed, and destroys it right away if a chunk
+     * already failed. The failure is checked after the process is kept, so that a process is never
+     * missed by both this method and {@link #cancel()}.
+     */
+    void register(Process process) {
+      processes.add(process);
+      if (failure.get() != null) {
+        process.destroy();
+      }
+    }
+
+    void cancel() {
+      futures.forEach(future -> future.cancel(false));
+      processes.forEach(Process::destroy);
+    }
+  }
+}
@@ -3,15 +3,27 @@ package com.github.tjni.captainhook.helpers;
 import com.github.tjni.captainhook.annotations.ImmutableStyle;
 import com.github.tjni.captainhook.annotations.VisibleForTesting;
 import com.github.tjni.captainhook.helpers.ExecHelper.ExecException;
-import com.github.tjni.captainhook.helpers.GitHelper.GitStatusLine;
+import com.github.tjni.captainhook.helpers.FilesHelper.FileFingerprint;
+import com.github.tjni.captainhook.helpers.GitHelper.GitStatus;
+import com.github.tjni.captainhook.helpers.GitHelper.LineRange;
+import java.io.File;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import one.util.streamex.EntryStream;
 import one.util.streamex.StreamEx;
 import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
 import org.immutables.value.Value;
 
 /**
@@ -21,16 +33,49 @@ import org.immutables.value.Value;
  */
 @Singleton
 public class StagingHelper {
+  private static final Logger LOG = Logging.getLogger(StagingHelper.class);
+
   @VisibleForTesting static final String BACKUP_STASH_MESSAGE = "Captain Hook backup";
+  @VisibleForTesting static final String STASH_REF = "refs/stash";
+  @VisibleForTesting static final String LATEST_STASH = "stash@{0}";
+
+  /** The exit code of Git commands that are given options they do not know. */
+  @VisibleForTesting static final int GIT_USAGE_EXIT_CODE = 129;
+
+  /**
+   * How long after being fingerprinted a file can be changed without changing its modification
+   * time, which is the timestamp granularity of the coarsest common file systems.
+   */
+  private static final long RACY_TIMESTAMP_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+  /**
+   * How many files the tasks must change before the index is updated from precomputed blobs, which
+   * starts more processes than a single {@code git add} but hashes the files outside its lock.
+   */
+  @VisibleForTesting static final int INDEX_UPDATE_THRESHOLD = 100;
 
+  /**
+   * The size up to which untracked files are recorded when they are fingerprinted, so that large
+   * local files, such as data sets or logs, are not copied into the object database.
+   */
+  @VisibleForTesting static final long MAX_UNTRACKED_FILE_SIZE = 8 * 1024 * 1024;
+
+  private final ExecHelper execHelper;
   private final GitHelper gitHelper;
+  private final GitIgnoreHelper gitIgnoreHelper;
   private final FilesHelper filesHelper;
   private final OperatingSystemHelper operatingSystemHelper;
 
   @Inject
   public StagingHelper(
-      GitHelper gitHelper, FilesHelper filesHelper, OperatingSystemHelper operatingSystemHelper) {
+      ExecHelper execHelper,
+      GitHelper gitHelper,
+      GitIgnoreHelper gitIgnoreHelper,
+      FilesHelper filesHelper,
+      OperatingSystemHelper operatingSystemHelper) {
+    this.execHelper = execHelper;
     this.gitHelper = gitHelper;
+    this.gitIgnoreHelper = gitIgnoreHelper;
     this.filesHelper = filesHelper;
     this.operatingSystemHelper = operatingSystemHelper;
   }
@@ -45,96 +90,694 @@ public class StagingHelper {
   }
 
   /**
-   * Saves the changes in the working directory.
+   * Returns the ranges of lines that are added or modified in the staged files, so that tasks such
+   * as linters can limit themselves to the lines that are being committed.
+   *
+   * @return absolute paths of staged files mapped to the ranges of their added lines
+   */
+  public Map<Path, List<LineRange>> getStagedLineRanges() {
+    long startNanos = System.nanoTime();
+    Map<Path, List<LineRange>> lineRanges = gitHelper.getStagedLineRanges();
+    LOG.info(
+        "Found {} ranges of staged lines in {} files in {} ms.",
+        StreamEx.ofValues(lineRanges).mapToInt(List::size).sum(),
+        lineRanges.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    return lineRanges;
+  }
+
+  /**
+   * Formats ranges of lines as JSON, for tools that are not run inside of Gradle.
    *
+   * @param lineRanges paths of files mapped to ranges of their lines
+   * @return the ranges as a JSON document
+   * @see #getStagedLineRanges()
+   */
+  public static String formatLineRangesAsJson(Map<Path, List<LineRange>> lineRanges) {
+    return EntryStream.of(lineRanges)
+        .mapKeyValue(
+            (file, fileLineRanges) ->
+                StreamEx.of(fileLineRanges)
+                    .map(
+                        lineRange ->
+                            String.format(
+                                Locale.ROOT,
+                                "{\"start\": %d, \"end\": %d}",
+                                lineRange.getStart(),
+                                lineRange.getEnd()))
+                    .joining(
+                        ", ",
+                        "    {\"path\": \""
+                            + Json.escape(file.toString())
+                            + "\", \"lineRanges\": [",
+                        "]}"))
+        .joining(",\n", "{\n  \"files\": [\n", "\n  ]\n}\n");
+  }
+
+  /**
+   * Saves the changes in the working directory, and removes the changes that are not staged from it
+   * so that tasks only see the staged content.
+   *
+   * @param options how the snapshot is recorded
    * @return a snapshot of the changes in the working directory
    */
-  public Snapshot saveSnapshot() {
+  public Snapshot saveSnapshot(SnapshotOptions options) {
     if (!isGradleDirectoryIgnored()) {
       // If .gradle is not ignored, restoring the snapshot will break because we
       // will try to write to locked files underneath .gradle.
       throw new GradleException("Please add the .gradle directory to the .gitignore file.");
     }
 
+    List<Path> stagedFiles = getStagedFiles();
+
+    long startNanos = System.nanoTime();
+    boolean isIncludeUntracked = !options.isFingerprintUntrackedFiles();
+    GitStatus status = getWorkingTreeStatus(isIncludeUntracked);
+    WorkingTreeState state = WorkingTreeState.of(status);
+    Snapshot snapshot;
+    if (state == WorkingTreeState.CLEAN) {
+      LOG.info(
+          isIncludeUntracked
+              ? "Skipping the snapshot because there are no unstaged changes or untracked files."
+              : "Skipping the snapshot because there are no unstaged changes.");
+      String indexTree = gitHelper.git("write-tree");
+      snapshot =
+          ImmutableSnapshot.builder()
+              .addAllStagedFiles(stagedFiles)
+              .setIndexTree(indexTree)
+              .setWorkingTreeTree(indexTree)
+              .build();
+    } else {
+      snapshot = saveSnapshot(options, stagedFiles, status, state);
+    }
+
+    // The staged files are fingerprinted once the working tree only contains the staged content,
+    // so that the files the tasks change can be found without scanning the repository.
+    snapshot = ImmutableSnapshot.copyOf(snapshot).withFingerprints(fingerprint(stagedFiles));
+
+    LOG.info(
+        "Saved the snapshot in {} ms.",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    return snapshot;
+  }
+
+  private Snapshot saveSnapshot(
+      SnapshotOptions options, List<Path> stagedFiles, GitStatus status, WorkingTreeState state) {
+    boolean isIncludeUntracked = !options.isFingerprintUntrackedFiles();
+
+    // git stash also rewrites the staged files, even though their contents end up the same.
+    Map<Path, FileFingerprint> originalFingerprints =
+        fingerprintRewrittenFiles(
+            status,
+            options.getStrategy() == SnapshotStrategy.STASH
+                ? stagedFiles
+                : Collections.emptyList());
+
+    Snapshot snapshot;
+    if (options.getStrategy() == SnapshotStrategy.TREE) {
+      // Only the files that differ between the trees are changed, whatever the state.
+      LOG.info("Saving the snapshot as trees.");
+      snapshot = saveTreeSnapshot(stagedFiles, options.isPipePatches(), isIncludeUntracked);
+    } else if (state == WorkingTreeState.UNSTAGED_CHANGES) {
+      LOG.info(
+          isIncludeUntracked
+              ? "Saving the snapshot in a stash without untracked files because there are none."
+              : "Saving the snapshot in a stash without untracked files.");
+      snapshot = saveStashSnapshot(stagedFiles, options.isPipePatches(), false);
+    } else {
+      LOG.info("Saving the snapshot in a stash with untracked files.");
+      snapshot = saveStashSnapshot(stagedFiles, options.isPipePatches(), true);
+    }
+
+    snapshot = ImmutableSnapshot.copyOf(snapshot).withOriginalFingerprints(originalFingerprints);
+    restoreTimestamps(snapshot);
+    return snapshot;
+  }
+
+  /**
+   * Fingerprints the files that saving the snapshot rewrites, before they are rewritten: the files
+   * with changes that are not staged, the untracked files that are listed in the status, and the
+   * given staged files. Only their stat data is read, because the snapshot records their contents.
+   */
+  private Map<Path, FileFingerprint> fingerprintRewrittenFiles(
+      GitStatus status, List<Path> stagedFiles) {
+    Path topLevelDir = gitHelper.getTopLevelDirectory();
+    return StreamEx.of(status.getStatusLines())
+        .remove(statusLine -> " D".indexOf(statusLine.getWorkingTreeStatus()) != -1)
+        .map(statusLine -> topLevelDir.resolve(statusLine.getRelativePath()))
+        .append(stagedFiles)
+        .distinct()
+        .remove(filesHelper::isSymbolicLink)
+        .parallel()
+        .mapToEntry(filesHelper::getFingerprint)
+        .filterValues(Optional::isPresent)
+        .mapValues(Optional::get)
+        .toMap();
+  }
+
+  /**
+   * Sets the modification time of the files that were rewritten with the same contents back to what
+   * it was before the snapshot was saved, so that tools that compare timestamps, such as Gradle's
+   * file system watching, do not consider them changed. The contents are compared with the blobs
+   * that the snapshot recorded, so no file is hashed before it is rewritten.
+   */
+  @VisibleForTesting
+  void restoreTimestamps(Snapshot snapshot) {
+    // Only the files that were rewritten with their original size can have their original contents,
+    // so only those are hashed. git hash-object reads one path per line.
+    Map<Path, FileFingerprint> originalFingerprints = snapshot.getOriginalFingerprints();
+    List<Path> rewrittenFiles =
+        EntryStream.of(originalFingerprints)
+            .parallel()
+            .filter(entry -> isRewrittenWithSameSize(entry.getKey(), entry.getValue()))
+            .keys()
+            .remove(file -> file.toString().indexOf('\n') != -1)
+            .toList();
+    if (rewrittenFiles.isEmpty()) {
+      return;
+    }
+
+    Path topLevelDir = gitHelper.getTopLevelDirectory();
+    List<Path> restoredFiles =
+        EntryStream.zip(rewrittenFiles, gitHelper.hashBlobs(rewrittenFiles))
+            .filter(
+                entry ->
+                    findRecordedBlob(snapshot, topLevelDir.relativize(entry.getKey()))
+                        .filter(entry.getValue()::equals)
+                        .isPresent())
+            .keys()
+            .map(
+                file ->
+                    filesHelper.setLastModifiedNanos(
+                        file, originalFingerprints.get(file).getLastModifiedNanos()))
+            .toList();
+    if (!restoredFiles.isEmpty()) {
+      LOG.info(
+          "Restored the timestamps of {} files with unchanged contents.", restoredFiles.size());
+    }
+  }
+
+  private boolean isRewrittenWithSameSize(Path file, FileFingerprint originalFingerprint) {
+    Optional<FileFingerprint> fingerprint = filesHelper.getFingerprint(file);
+    return fingerprint.isPresent()
+        && fingerprint.get().getSize() == originalFingerprint.getSize()
+        && fingerprint.get().getLastModifiedNanos() != originalFingerprint.getLastModifiedNanos();
+  }
+
+  /**
+   * Finds the blob that the snapshot recorded for a file of the working tree, which holds the
+   * contents of the file from before the snapshot was saved.
+   */
+  private Optional<String> findRecordedBlob(Snapshot snapshot, Path relativePath) {
+    String path = relativePath.toString().replace(File.separatorChar, '/');
+    Optional<String> blob = gitHelper.resolve(snapshot.getWorkingTreeTree() + ":" + path);
+    if (!blob.isPresent()
+        && snapshot.getStashCommit().isPresent()
+        && snapshot.isUntrackedFilesSaved()) {
+      // The untracked files of a stash are in the tree of its third parent.
+      blob = gitHelper.resolve(snapshot.getStashCommit().get() + "^3:" + path);
+    }
+    return blob;
+  }
+
+  private Snapshot saveStashSnapshot(
+      List<Path> stagedFiles, boolean isPipePatches, boolean isIncludeUntracked) {
     Path gitCommonDir = gitHelper.getCommonDirectory();
 
-    List<Path> stagedFiles = getStagedFiles();
     List<Path> deletedFiles = gitHelper.lsFiles("--deleted");
 
-    String stashMessage = saveSnapshotStash();
+    String stashCommit = saveSnapshotStash(isIncludeUntracked);
+
+    ImmutableSnapshot.Builder builder =
+        ImmutableSnapshot.builder()
+            .addAllStagedFiles(stagedFiles)
+            .setIndexTree(resolveTree(stashCommit + "^2"))
+            .setWorkingTreeTree(resolveTree(stashCommit))
+            .setStashCommit(stashCommit)
+            .setIsUntrackedFilesSaved(isIncludeUntracked);
+
+    if (isPipePatches) {
+      // The patches are generated from the stash when they are merged, and the stash is what
+      // recovers the changes if the build does not finish.
+      deleteRestoredFiles(deletedFiles);
+      return builder.build();
+    }
+
+    // Both patches only read the stash, so they are generated at the same time.
+    Path unstagedPatchFile = gitCommonDir.resolve(Snapshot.UNSTAGED_PATCH_FILE_NAME);
+    List<Runnable> tasks = new ArrayList<>();
+    tasks.add(
+        () -> {
+          // The unstaged patch compares the stash with the working tree, so it has to wait for the
+          // deleted files to be cleared.
+          deleteRestoredFiles(deletedFiles);
+          gitHelper.git(
+              "diff",
+              "--binary",
+              "--unified=0",
+              "--no-color",
+              "--no-ext-diff",
+              "--patch",
+              "--output=" + unstagedPatchFile,
+              stashCommit,
+              "-R");
+        });
+    builder.setUnstagedPatchFile(unstagedPatchFile);
+
+    if (isIncludeUntracked) {
+      Path untrackedPatchFile = gitCommonDir.resolve(Snapshot.UNTRACKED_PATCH_FILE_NAME);
+      tasks.add(
+          () ->
+              gitHelper.git(
+                  "show",
+                  "--binary",
+                  "--unified=0",
+                  "--no-color",
+                  "--no-ext-diff",
+                  "--patch",
+                  "--format=%b",
+                  "--output=" + untrackedPatchFile,
+                  stashCommit + "^3"));
+      builder.setUntrackedPatchFile(untrackedPatchFile);
+    }
+
+    execHelper.runConcurrently(tasks.toArray(new Runnable[0]));
 
+    return builder.build();
+  }
+
+  private void deleteRestoredFiles(List<Path> deletedFiles) {
     // Because `git stash` restores the HEAD commit, it brings back uncommitted
     // deleted files. We need to clear them before creating our snapshot.
     filesHelper.delete(deletedFiles);
+  }
 
-    String stashName = findStashName(stashMessage);
+  /**
+   * Records the index and the working tree as trees, without creating a stash.
+   *
+   * <p>The working tree is written through a copy of the index, so the index of the repository is
+   * left alone. Only the files that differ between the two trees are then changed in the working
+   * tree, rather than every file being rewritten as {@code git stash} does.
+   *
+   * <p>If the patches are piped, only the IDs of the trees are written to disk, so that the changes
+   * can still be recovered if the build does not finish.
+   *
+   * <p>Untracked files are only recorded, and removed from the working tree, if they are included.
+   */
+  @VisibleForTesting
+  Snapshot saveTreeSnapshot(
+      List<Path> stagedFiles, boolean isPipePatches, boolean isIncludeUntracked) {
+    Path gitDir = gitHelper.getGitDirectory();
+    Path gitCommonDir = gitHelper.getCommonDirectory();
 
-    Path unstagedPatchFile = gitCommonDir.resolve(Snapshot.UNSTAGED_PATCH_FILE_NAME);
+    String indexTree = gitHelper.git("write-tree");
+
+    Path snapshotIndexFile = gitDir.resolve(Snapshot.INDEX_FILE_NAME);
+    String workingTreeTree;
+    try {
+      filesHelper.copy(gitDir.resolve("index"), snapshotIndexFile);
+      gitHelper.gitWithIndexFile(
+          snapshotIndexFile, "add", isIncludeUntracked ? "--all" : "--update");
+      workingTreeTree = gitHelper.gitWithIndexFile(snapshotIndexFile, "write-tree");
+    } finally {
+      filesHelper.deleteIfExists(snapshotIndexFile);
+    }
+
+    ImmutableSnapshot.Builder builder =
+        ImmutableSnapshot.builder()
+            .addAllStagedFiles(stagedFiles)
+            .setIndexTree(indexTree)
+            .setWorkingTreeTree(workingTreeTree);
+
+    // The patches compare trees rather than the working tree, so they are written at the same time
+    // as the unstaged changes are removed from the working tree.
+    List<Runnable> tasks = new ArrayList<>();
+
+    if (isPipePatches) {
+      Path treesFile = gitCommonDir.resolve(Snapshot.TREES_FILE_NAME);
+      filesHelper.write(treesFile, indexTree + "\n" + workingTreeTree + "\n");
+      builder.setTreesFile(treesFile);
+    } else {
+      Path unstagedPatchFile = gitCommonDir.resolve(Snapshot.UNSTAGED_PATCH_FILE_NAME);
+      Path untrackedPatchFile = gitCommonDir.resolve(Snapshot.UNTRACKED_PATCH_FILE_NAME);
+      if (indexTree.equals(workingTreeTree)) {
+        filesHelper.write(unstagedPatchFile, "");
+        filesHelper.write(untrackedPatchFile, "");
+      } else {
+        tasks.add(() -> writeTreePatch(unstagedPatchFile, "MT", indexTree, workingTreeTree));
+        tasks.add(() -> writeTreePatch(untrackedPatchFile, "A", indexTree, workingTreeTree));
+      }
+      builder.setUnstagedPatchFile(unstagedPatchFile).setUntrackedPatchFile(untrackedPatchFile);
+    }
+
+    // If nothing is unstaged, the working tree already contains only the staged content.
+    if (!indexTree.equals(workingTreeTree)) {
+      tasks.add(() -> removeUnstagedChanges(gitHelper.diffTrees(indexTree, workingTreeTree)));
+    }
+
+    execHelper.runConcurrently(tasks.toArray(new Runnable[0]));
+
+    return builder.build();
+  }
+
+  private void writeTreePatch(Path patchFile, String diffFilter, String fromTree, String toTree) {
     gitHelper.git(
         "diff",
-        "--binary",
-        "--unified=0",
-        "--no-color",
-        "--no-ext-diff",
-        "--patch",
-        "--output=" + unstagedPatchFile,
-        stashName,
-        "-R");
-
-    Path untrackedPatchFile = gitCommonDir.resolve(Snapshot.UNTRACKED_PATCH_FILE_NAME);
-    gitHelper.git(
-        "show",
-        "--binary",
-        "--unified=0",
-        "--no-color",
-        "--no-ext-diff",
-        "--patch",
-        "--format=%b",
-        "--output=" + untrackedPatchFile,
-        stashName + "^3");
-
-    return ImmutableSnapshot.builder()
-        .addAllStagedFiles(stagedFiles)
-        .setStashMessage(stashMessage)
-        .setUnstagedPatchFile(unstagedPatchFile)
-        .setUntrackedPatchFile(untrackedPatchFile)
-        .build();
+        StreamEx.of(getTreePatchOptions(diffFilter))
+            .append("--output=" + patchFile, fromTree, toTree)
+            .toArray(String.class));
   }
 
-  public void applyModifications(Snapshot snapshot) {
-    stageModifications(snapshot.getStagedFiles());
+  /** Returns the options of {@code git diff} that print the changes between trees as a patch. */
+  private static List<String> getTreePatchOptions(String diffFilter) {
+    return StreamEx.of(
+            "--binary",
+            "--unified=0",
+            "--no-color",
+            "--no-ext-diff",
+            "--no-renames",
+            "--patch",
+            "--diff-filter=" + diffFilter)
+        .toList();
+  }
 
-    if (gitHelper.status().isEmpty()) {
-      return;
+  /**
+   * Brings the working tree in line with the index, given how the working tree differs from it.
+   * Files that were deleted without staging the deletion are left deleted, like {@code git stash}
+   * mode does.
+   */
+  private void removeUnstagedChanges(Map<Path, Character> changes) {
+    checkoutIndex(filterChanges(changes, "MT"));
+    deleteUntrackedFiles(filterChanges(changes, "A"));
+  }
+
+  private static List<Path> filterChanges(Map<Path, Character> changes, String statuses) {
+    return EntryStream.of(changes)
+        .filterValues(status -> statuses.indexOf(status) != -1)
+        .keys()
+        .toList();
+  }
+
+  /** Overwrites files in the working tree with their contents in the index. */
+  private void checkoutIndex(List<Path> files) {
+    if (!files.isEmpty()) {
+      gitHelper.gitWithPaths(files, "checkout-index", "--force", "-z", "--stdin");
+    }
+  }
+
+  private void deleteUntrackedFiles(List<Path> untrackedFiles) {
+    Path topLevelDir = gitHelper.getTopLevelDirectory();
+    for (Path untrackedFile : untrackedFiles) {
+      if (!filesHelper.deleteIfExists(untrackedFile)) {
+        continue;
+      }
+      // Remove directories that only contained untracked files, like `git stash` does.
+      for (Path dir = untrackedFile.getParent();
+          !dir.equals(topLevelDir) && filesHelper.isDirectoryEmpty(dir);
+          dir = dir.getParent()) {
+        filesHelper.delete(dir);
+      }
+    }
+  }
+
+  private String resolveTree(String revision) {
+    return gitHelper
+        .resolve(revision + "^{tree}")
+        .orElseThrow(() -> new GradleException("Could not resolve " + revision + "^{tree}."));
+  }
+
+  /**
+   * Records the untracked files without removing them from the working tree, so that only the ones
+   * that the tasks change have to be restored. Each file is fingerprinted, and its contents are
+   * written as a blob with {@link GitHelper#writeBlobs(List)}, which only writes blobs that are not
+   * in the object database yet. Blobs that are no longer needed stay in the object database until
+   * {@code git gc} prunes them.
+   *
+   * <p>Untracked files are found with {@code git ls-files}, which does not descend into directories
+   * that are ignored or excluded. Symbolic links and files larger than {@link
+   * #MAX_UNTRACKED_FILE_SIZE} are not recorded.
+   *
+   * @param snapshot the snapshot, which should not include untracked files
+   * @param excludes patterns in the format of {@code .gitignore} for files that are never recorded
+   * @return the snapshot with the untracked files
+   */
+  public Snapshot fingerprintUntrackedFiles(Snapshot snapshot, List<String> excludes) {
+    long startNanos = System.nanoTime();
+
+    String[] lsFilesOptions =
+        StreamEx.of("--others", "--exclude-standard")
+            .append(StreamEx.of(excludes).map(exclude -> "--exclude=" + exclude))
+            .toArray(String.class);
+    List<Path> untrackedFiles =
+        StreamEx.of(gitHelper.lsFiles(lsFilesOptions))
+            .remove(filesHelper::isSymbolicLink)
+            // git hash-object reads one path per line.
+            .remove(file -> file.toString().indexOf('\n') != -1)
+            .toList();
+
+    Map<Path, FileFingerprint> allFingerprints = fingerprint(untrackedFiles);
+    Map<Path, FileFingerprint> fingerprints =
+        EntryStream.of(allFingerprints)
+            .filterValues(fingerprint -> fingerprint.getSize() <= MAX_UNTRACKED_FILE_SIZE)
+            .toMap();
+    List<Path> fingerprintedFiles =
+        StreamEx.of(untrackedFiles).filter(fingerprints::containsKey).toList();
+    int largeFileCount = allFingerprints.size() - fingerprints.size();
+    if (largeFileCount > 0) {
+      LOG.warn(
+          "Not recording {} untracked files larger than {} MiB, which are not restored if the tasks"
+              + " change them. Add them to untrackedExcludes to leave them out on purpose.",
+          largeFileCount,
+          MAX_UNTRACKED_FILE_SIZE / (1024 * 1024));
+    }
+    List<String> blobs =
+        fingerprintedFiles.isEmpty()
+            ? Collections.emptyList()
+            : gitHelper.writeBlobs(fingerprintedFiles);
+
+    LOG.info(
+        "Fingerprinted {} untracked files in {} ms.",
+        fingerprintedFiles.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    return ImmutableSnapshot.copyOf(snapshot)
+        .withUntrackedFingerprints(fingerprints)
+        .withUntrackedBlobs(EntryStream.zip(fingerprintedFiles, blobs).toMap());
+  }
+
+  public void applyModifications(Snapshot snapshot) {
+    List<Path> changedFiles = findChangedFiles(snapshot);
+    LOG.info("The tasks changed {} staged files.", changedFiles.size());
+    if (!changedFiles.isEmpty()) {
+      stageModifications(changedFiles);
     }
 
     mergeSnapshot(snapshot);
+    restoreUntrackedFiles(snapshot);
+    restoreTimestamps(snapshot);
   }
 
+  /**
+   * Returns the staged files that were changed since the snapshot was saved, by comparing them with
+   * their fingerprints in the snapshot.
+   *
+   * @param snapshot the snapshot
+   * @return the absolute paths of the changed files, in the order of {@link
+   *     Snapshot#getStagedFiles()}
+   */
+  public List<Path> findChangedFiles(Snapshot snapshot) {
+    Map<Path, FileFingerprint> fingerprints = snapshot.getFingerprints();
+    return StreamEx.of(snapshot.getStagedFiles())
+        .parallel()
+        .filter(file -> isChanged(file, fingerprints.get(file)))
+        .toList();
+  }
+
+  private boolean isChanged(Path file, FileFingerprint fingerprint) {
+    Optional<FileFingerprint> currentFingerprint = filesHelper.getFingerprint(file);
+    if (fingerprint == null || !currentFingerprint.isPresent()) {
+      return fingerprint != null || currentFingerprint.isPresent();
+    }
+    if (!currentFingerprint
+        .get()
+        .equals(ImmutableFileFingerprint.copyOf(fingerprint).withContentHash(Optional.empty()))) {
+      return true;
+    }
+    return fingerprint
+        .getContentHash()
+        .filter(contentHash -> !contentHash.equals(filesHelper.hash(file)))
+        .isPresent();
+  }
+
+  /**
+   * Fingerprints files in parallel. Files that were modified so recently that they could be changed
+   * again without changing their modification time are also hashed, like Git does for racily clean
+   * index entries.
+   */
+  private Map<Path, FileFingerprint> fingerprint(List<Path> files) {
+    long racyNanos =
+        TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - RACY_TIMESTAMP_NANOS;
+    return StreamEx.of(files)
+        .parallel()
+        .mapToEntry(filesHelper::getFingerprint)
+        .filterValues(Optional::isPresent)
+        .mapValues(Optional::get)
+        .mapToValue(
+            (file, fingerprint) ->
+                fingerprint.getLastModifiedNanos() >= racyNanos
+                    ? ImmutableFileFingerprint.copyOf(fingerprint)
+                        .withContentHash(filesHelper.hash(file))
+                    : fingerprint)
+        .toMap();
+  }
+
+  /**
+   * Restores the index and the working tree to what they were when the snapshot was saved.
+   *
+   * <p>Only the paths that the snapshot or the tasks can have changed are restored, rather than
+   * every file in the repository: the staged files that the tasks changed, which are found from
+   * their fingerprints, the files that differ between the index and the working tree of the
+   * snapshot, and any other tracked files that the tasks changed, which are found from the stat
+   * data in the index. Those files are first brought back to their contents in the index, and the
+   * changes that were not staged are then merged as they are after a successful build.
+   *
+   * <p>If the tasks changed the index itself, the whole working tree is read from the trees of the
+   * snapshot instead.
+   *
+   * @param snapshot the snapshot
+   */
   public void restoreSnapshot(Snapshot snapshot) {
-    MergeStatus mergeStatus = saveMergeStatus();
-    gitHelper.git("reset", "--hard", "HEAD");
+    restoreUntrackedFiles(snapshot);
 
-    String stashName = findStashName(snapshot.getStashMessage());
-    gitHelper.stash("apply", "--quiet", "--index", stashName);
+    if (isIndexUnchanged(snapshot)) {
+      Map<Path, Character> unstagedChanges =
+          snapshot.getIndexTree().equals(snapshot.getWorkingTreeTree())
+              ? Collections.emptyMap()
+              : gitHelper.diffTrees(snapshot.getIndexTree(), snapshot.getWorkingTreeTree());
 
-    restoreMergeStatus(mergeStatus);
+      Map<Path, FileFingerprint> fingerprints = snapshot.getFingerprints();
+      Set<Path> unstagedAdditionsAndDeletions = new HashSet<>(filterChanges(unstagedChanges, "AD"));
+      // Staged files without fingerprints are not in the working tree of the snapshot, and may not
+      // be in the index either. Files that were added to or deleted from the working tree of the
+      // snapshot without being staged are brought back by the merge instead.
+      List<Path> changedFiles =
+          StreamEx.of(findChangedFiles(snapshot))
+              .filter(fingerprints::containsKey)
+              .append(filterChanges(unstagedChanges, "MT"))
+              .append(
+                  StreamEx.of(gitHelper.lsFiles("--modified"))
+                      .remove(unstagedAdditionsAndDeletions::contains))
+              .distinct()
+              .toList();
+      LOG.info("Restoring {} files from the index.", changedFiles.size());
+      checkoutIndex(changedFiles);
+      deleteUntrackedFiles(filterChanges(unstagedChanges, "AD"));
+
+      mergeSnapshot(snapshot);
+    } else {
+      LOG.warn("Restoring the whole working tree because the tasks changed the index.");
+      // Reading the working tree with --reset -u only rewrites the files that differ from it, and
+      // reading the index afterwards leaves the working tree alone.
+      gitHelper.git("read-tree", "--reset", "-u", snapshot.getWorkingTreeTree());
+      gitHelper.git("read-tree", snapshot.getIndexTree());
+      if (snapshot.getStashCommit().isPresent()) {
+        // The untracked files of a stash are not in the tree of its working tree.
+        mergeUntrackedPatch(snapshot);
+      }
+    }
+
+    restoreTimestamps(snapshot);
+  }
+
+  /**
+   * Returns whether the index still has the tree that was staged when the snapshot was saved.
+   * Thanks to the cache tree of the index, {@code git write-tree} only writes the directories whose
+   * entries changed.
+   */
+  private boolean isIndexUnchanged(Snapshot snapshot) {
+    try {
+      return gitHelper.git("write-tree").equals(snapshot.getIndexTree());
+    } catch (ExecException e) {
+      // The index cannot be written as a tree if it has conflicts.
+      return false;
+    }
+  }
+
+  /**
+   * Restores the untracked files that were left in the working tree and that the tasks changed or
+   * deleted. Files that the tasks created are left alone.
+   */
+  @VisibleForTesting
+  void restoreUntrackedFiles(Snapshot snapshot) {
+    Map<Path, FileFingerprint> fingerprints = snapshot.getUntrackedFingerprints();
+    Map<Path, String> changedBlobs =
+        EntryStream.of(snapshot.getUntrackedBlobs())
+            .parallel()
+            .filterKeys(file -> isChanged(file, fingerprints.get(file)))
+            .toMap();
+    if (changedBlobs.isEmpty()) {
+      return;
+    }
+
+    LOG.warn("Restoring {} untracked files that the tasks changed.", changedBlobs.size());
+    changedBlobs.forEach(
+        (file, blob) -> {
+          byte[] content =
+              gitHelper
+                  .readBlob(blob)
+                  .orElseThrow(
+                      () -> new GradleException("Could not read the contents of " + file + "."));
+          filesHelper.createDirectories(file.getParent());
+          filesHelper.writeBytes(file, content);
+          filesHelper.setLastModifiedNanos(file, fingerprints.get(file).getLastModifiedNanos());
+        });
   }
 
   public void deleteSnapshot(Snapshot snapshot) {
-    filesHelper.deleteIfExists(snapshot.getUnstagedPatchFile());
-    filesHelper.deleteIfExists(snapshot.getUntrackedPatchFile());
-    String stashName = findStashName(snapshot.getStashMessage());
-    gitHelper.stash("drop", "--quiet", stashName);
+    snapshot.getUnstagedPatchFile().ifPresent(filesHelper::deleteIfExists);
+    snapshot.getUntrackedPatchFile().ifPresent(filesHelper::deleteIfExists);
+    snapshot.getTreesFile().ifPresent(filesHelper::deleteIfExists);
+
+    if (!snapshot.getStashCommit().isPresent()) {
+      return;
+    }
+
+    // git stash drop only accepts entries of the stash list. The backup is usually the latest
+    // entry, which is checked without a process, but another stash may have been pushed while the
+    // tasks ran.
+    String stashCommit = snapshot.getStashCommit().get();
+    if (gitHelper.resolve(LATEST_STASH).filter(stashCommit::equals).isPresent()) {
+      gitHelper.stash("drop", "--quiet", LATEST_STASH);
+      return;
+    }
+
+    List<String> stashCommits =
+        StreamEx.split(gitHelper.stash("list", "--format=%H"), '\n').toList();
+    int index = stashCommits.indexOf(stashCommit);
+    if (index != -1) {
+      gitHelper.stash("drop", "--quiet", "stash@{" + index + "}");
+    } else {
+      LOG.warn(
+          "Not dropping the {} stash {} because it is no longer in the stash list.",
+          BACKUP_STASH_MESSAGE,
+          stashCommit);
+    }
   }
 
   @VisibleForTesting
   boolean isGradleDirectoryIgnored() {
-    return gitHelper
-        .status("--ignored")
-        .findByFilePath(".gradle")
-        .map(GitStatusLine::isIgnored)
-        .orElse(false);
+    return gitIgnoreHelper.isIgnored(".gradle/");
+  }
+
+  /**
+   * Finds out with a single {@code git status} which parts of the working tree have to be saved in
+   * the snapshot, and which files saving it rewrites.
+   *
+   * @param isIncludeUntracked whether untracked files are listed
+   * @return the status of the working tree
+   */
+  @VisibleForTesting
+  GitStatus getWorkingTreeStatus(boolean isIncludeUntracked) {
+    return gitHelper.status(isIncludeUntracked ? "--untracked-files=all" : "--untracked-files=no");
   }
 
   /**
@@ -143,69 +786,130 @@ public class StagingHelper {
    * @return the absolute paths of the files staged for commit
    */
   List<Path> getStagedFiles() {
-    String output = gitHelper.git("diff", "--staged", "--diff-filter=ACMR", "--name-only");
-
-    if (output.isEmpty()) {
-      return Collections.emptyList();
-    }
-
-    Path topLevelDir = gitHelper.getTopLevelDirectory();
-    return StreamEx.of(output.split("\n")).map(topLevelDir::resolve).toImmutableList();
+    return gitHelper.getStagedFiles();
   }
 
   void mergeSnapshot(Snapshot snapshot) {
-    if (!mergeUnstagedPatch(snapshot.getUnstagedPatchFile(), false)) {
-      mergeUnstagedPatch(snapshot.getUnstagedPatchFile(), true);
+    if (!snapshot.getStashCommit().isPresent()
+        && snapshot.getIndexTree().equals(snapshot.getWorkingTreeTree())) {
+      // Nothing was unstaged or untracked, so there is nothing to bring back.
+      return;
     }
-    mergeUntrackedPatch(snapshot.getUntrackedPatchFile());
-  }
 
-  boolean mergeUnstagedPatch(Path unstagedPatchFile, boolean is3way) {
-    if (filesHelper.isFileEmpty(unstagedPatchFile)) {
-      return true;
+    if (!mergeUnstagedPatch(snapshot, false)) {
+      mergeUnstagedPatch(snapshot, true);
     }
+    mergeUntrackedPatch(snapshot);
+  }
 
-    List<String> args =
-        StreamEx.of("-v", "--whitespace=nowarn", "--recount", "--unidiff-zero").toList();
+  /**
+   * Applies the changes that were not staged, either from the patch file or, if the snapshot has
+   * none, by piping them from the trees of the snapshot into {@code git apply}.
+   *
+   * @return whether the changes were applied
+   */
+  @VisibleForTesting
+  boolean mergeUnstagedPatch(Snapshot snapshot, boolean is3way) {
+    List<String> applyOptions = getApplyOptions();
     if (is3way) {
-      args.add("--3way");
+      applyOptions.add("--3way");
     }
-    args.add(unstagedPatchFile.toString());
 
     try {
-      gitHelper.git("apply", args.toArray(new String[0]));
+      Optional<Path> unstagedPatchFile = snapshot.getUnstagedPatchFile();
+      if (unstagedPatchFile.isPresent()) {
+        if (!filesHelper.isFileEmpty(unstagedPatchFile.get())) {
+          applyOptions.add(unstagedPatchFile.get().toString());
+          gitHelper.git("apply", applyOptions.toArray(new String[0]));
+        }
+      } else {
+        List<String> diffArgs =
+            StreamEx.of("diff")
+                .append(getTreePatchOptions("MT"))
+                .append(snapshot.getIndexTree(), snapshot.getWorkingTreeTree())
+                .toList();
+        gitHelper.gitPipe(diffArgs, StreamEx.of("apply").append(applyOptions).toList());
+      }
       return true;
     } catch (ExecException e) {
       return false;
     }
   }
 
-  void mergeUntrackedPatch(Path untrackedPatchFile) {
-    if (filesHelper.isTrimmedFileEmpty(untrackedPatchFile)) {
+  /**
+   * Restores the files that were not tracked, either from the patch file or, if the snapshot has
+   * none, by piping them from the snapshot into {@code git apply}.
+   */
+  @VisibleForTesting
+  void mergeUntrackedPatch(Snapshot snapshot) {
+    if (!snapshot.isUntrackedFilesSaved()) {
+      return;
+    }
+
+    List<String> applyOptions = getApplyOptions();
+
+    Optional<Path> untrackedPatchFile = snapshot.getUntrackedPatchFile();
+    if (untrackedPatchFile.isPresent()) {
+      if (!filesHelper.isTrimmedFileEmpty(untrackedPatchFile.get())) {
+        applyOptions.add(untrackedPatchFile.get().toString());
+        gitHelper.git("apply", applyOptions.toArray(new String[0]));
+      }
       return;
     }
 
-    gitHelper.git(
-        "apply",
-        "-v",
-        "--whitespace=nowarn",
-        "--recount",
-        "--unidiff-zero",
-        untrackedPatchFile.toString());
+    Optional<String> stashCommit = snapshot.getStashCommit();
+    List<String> sourceArgs =
+        stashCommit.isPresent()
+            ? StreamEx.of(
+                    "show",
+                    "--binary",
+                    "--unified=0",
+                    "--no-color",
+                    "--no-ext-diff",
+                    "--patch",
+                    "--format=%b",
+                    stashCommit.get() + "^3")
+                .toList()
+            : StreamEx.of("diff")
+                .append(getTreePatchOptions("A"))
+                .append(snapshot.getIndexTree(), snapshot.getWorkingTreeTree())
+                .toList();
+    gitHelper.gitPipe(sourceArgs, StreamEx.of("apply").append(applyOptions).toList());
+  }
+
+  private static List<String> getApplyOptions() {
+    return StreamEx.of("-v", "--whitespace=nowarn", "--recount", "--unidiff-zero").toList();
   }
 
+  /**
+   * Saves the working directory and the staging area in a stash.
+   *
+   * @param isIncludeUntracked whether untracked files are saved in the stash, and removed from the
+   *     working directory
+   * @return the ID of the stash commit
+   */
   @VisibleForTesting
-  String saveSnapshotStash() {
+  String saveSnapshotStash(boolean isIncludeUntracked) {
     // If we are in the middle of a merge, save the merge status, because we
     // will run `git stash`, and that clears it.
     MergeStatus mergeStatus = saveMergeStatus();
 
-    gitHelper.stash(
-        "push", "--include-untracked", "--keep-index", "--message=" + BACKUP_STASH_MESSAGE);
+    Optional<String> previousStashCommit = gitHelper.resolve(STASH_REF);
+    if (isIncludeUntracked) {
+      gitHelper.stash(
+          "push", "--include-untracked", "--keep-index", "--message=" + BACKUP_STASH_MESSAGE);
+    } else {
+      gitHelper.stash("push", "--keep-index", "--message=" + BACKUP_STASH_MESSAGE);
+    }
 
     restoreMergeStatus(mergeStatus);
 
-    return BACKUP_STASH_MESSAGE;
+    // The stash is addressed by its commit from now on, so it does not matter how many other
+    // stashes there are or whether an older backup was left behind.
+    return gitHelper
+        .resolve(STASH_REF)
+        .filter(stashCommit -> !previousStashCommit.equals(Optional.of(stashCommit)))
+        .orElseThrow(() -> new GradleException("git stash did not save any changes."));
   }
 
   @VisibleForTesting
@@ -249,35 +953,49 @@ public class StagingHelper {
         .ifPresent(mergeMsg -> filesHelper.write(gitCommonDir.resolve("MERGE_MSG"), mergeMsg));
   }
 
+  /**
+   * Stages the files that the tasks changed.
+   *
+   * <p>When many files were changed, the index is updated from blobs that are hashed in parallel,
+   * and only the files that cannot be staged that way are added with {@code git add}.
+   *
+   * @param changedFiles staged files that were changed; only files that were originally staged are
+   *     added, because the Gradle tasks that ran might not be optimized to only run on the subset
+   *     of staged files
+   */
   @VisibleForTesting
-  String findStashName(String stashMessage) {
-    String[] stashList = gitHelper.stash("list").split("\n");
-
-    long stashIndex =
-        StreamEx.of(stashList)
-            .indexOf(message -> message.contains(stashMessage))
-            .orElseThrow(
-                () ->
-                    new RuntimeException(
-                        String.format("Did not find a stash with message \"%s\".", stashMessage)));
+  void stageModifications(List<Path> changedFiles) {
+    List<Path> remainingFiles =
+        changedFiles.size() >= INDEX_UPDATE_THRESHOLD
+            ? gitHelper.updateIndex(changedFiles)
+            : changedFiles;
+    if (remainingFiles.isEmpty()) {
+      return;
+    }
 
-    return "stash@{" + stashIndex + "}";
+    try {
+      // A single process reads every path from standard input, so the index is only locked
+      // once, however many files were changed.
+      gitHelper.gitWithPaths(
+          remainingFiles, "add", "--pathspec-from-file=-", "--pathspec-file-nul");
+    } catch (ExecException e) {
+      if (e.getExitCode() != GIT_USAGE_EXIT_CODE) {
+        throw e;
+      }
+      // Git before 2.25 does not know --pathspec-from-file for git add.
+      LOG.info("Staging modifications in chunks because git add failed: {}", e.getError());
+      stageModificationsInChunks(remainingFiles);
+    }
   }
 
-  @VisibleForTesting
-  void stageModifications(List<Path> previouslyStagedFiles) {
-    // We only add modified files that were originally staged be committed.
-    // Applying this filter is necessary because the Gradle tasks that ran
-    // might not be optimized to only run on the subset of staged files.
-    if (!gitHelper.lsFiles("--modified").isEmpty()) {
-      int maxCommandLineLen = operatingSystemHelper.getMaxCommandLength();
-      int approxPathLen = StreamEx.of(previouslyStagedFiles).joining(" ").length();
-      int numChunks =
-          Math.min(divideCeil(approxPathLen, maxCommandLineLen), previouslyStagedFiles.size());
-      StreamEx.ofSubLists(previouslyStagedFiles, previouslyStagedFiles.size() / numChunks)
-          .map(paths -> StreamEx.of(paths).map(Path::toString).toArray(String.class))
-          .forEach(paths -> gitHelper.git("add", paths));
-    }
+  private void stageModificationsInChunks(List<Path> previouslyStagedFiles) {
+    int maxCommandLineLen = operatingSystemHelper.getMaxCommandLength();
+    int approxPathLen = StreamEx.of(previouslyStagedFiles).joining(" ").length();
+    int numChunks =
+        Math.min(divideCeil(approxPathLen, maxCommandLineLen), previouslyStagedFiles.size());
+    StreamEx.ofSubLists(previouslyStagedFiles, previouslyStagedFiles.size() / numChunks)
+        .map(paths -> StreamEx.of(paths).map(Path::toString).toArray(String.class))
+        .forEach(paths -> gitHelper.git("add", paths));
   }
 
   private static int divideCeil(int dividend, int divisor) {
@@ -285,19 +1003,123 @@ public class StagingHelper {
     return (dividend + divisor - 1) / divisor;
   }
 
+  /** What the working tree contains apart from the index, which decides how it is saved. */
+  @VisibleForTesting
+  enum WorkingTreeState {
+    /** The working tree matches the index, so there is nothing to save. */
+    CLEAN,
+    /** Tracked files have changes that are not staged, but there are no untracked files. */
+    UNSTAGED_CHANGES,
+    /** There are untracked files, and possibly changes that are not staged. */
+    UNTRACKED_FILES;
+
+    static WorkingTreeState of(GitStatus status) {
+      if (StreamEx.of(status.getStatusLines())
+          .anyMatch(statusLine -> statusLine.getWorkingTreeStatus() == '?')) {
+        return UNTRACKED_FILES;
+      }
+      if (StreamEx.of(status.getStatusLines())
+          .anyMatch(statusLine -> statusLine.getWorkingTreeStatus() != ' ')) {
+        return UNSTAGED_CHANGES;
+      }
+      return CLEAN;
+    }
+  }
+
+  /** How a snapshot of the working directory is recorded. */
+  public enum SnapshotStrategy {
+    /** Records the snapshot with {@code git stash}, which rewrites the working tree. */
+    STASH,
+    /** Records the snapshot as trees, and only changes the files that are not staged as a whole. */
+    TREE
+  }
+
+  /** Options for {@link #saveSnapshot(SnapshotOptions)}. */
+  @Value.Immutable
+  @ImmutableStyle
+  public interface SnapshotOptions {
+    @Value.Default
+    default SnapshotStrategy getStrategy() {
+      return SnapshotStrategy.STASH;
+    }
+
+    /**
+     * Whether the patches of the changes that are not staged are piped into {@code git apply}
+     * instead of being written to files when the snapshot is saved.
+     */
+    @Value.Default
+    default boolean isPipePatches() {
+      return false;
+    }
+
+    /**
+     * Whether untracked files are left in the working tree and fingerprinted, rather than saved in
+     * the snapshot and removed while the tasks run.
+     *
+     * @see StagingHelper#fingerprintUntrackedFiles(Snapshot, List)
+     */
+    @Value.Default
+    default boolean isFingerprintUntrackedFiles() {
+      return false;
+    }
+  }
+
   @Value.Immutable
   @ImmutableStyle
   public interface Snapshot {
     String UNSTAGED_PATCH_FILE_NAME = "captain-hook_unstaged.patch";
     String UNTRACKED_PATCH_FILE_NAME = "captain-hook_untracked.patch";
+    String INDEX_FILE_NAME = "captain-hook_index";
+    String TREES_FILE_NAME = "captain-hook_trees";
 
     List<Path> getStagedFiles();
 
-    String getStashMessage();
+    /** The ID of the tree of the index when the snapshot was saved. */
+    String getIndexTree();
+
+    /** The ID of a tree of the working tree, including untracked files, when it was saved. */
+    String getWorkingTreeTree();
+
+    /**
+     * The ID of the stash commit, if the snapshot was saved with {@link SnapshotStrategy#STASH}.
+     */
+    Optional<String> getStashCommit();
+
+    /** Fingerprints of the staged files that existed once the snapshot was saved. */
+    Map<Path, FileFingerprint> getFingerprints();
+
+    /** The patch of the changes that were not staged, unless the patches are piped. */
+    Optional<Path> getUnstagedPatchFile();
+
+    /**
+     * The patch of the files that were not tracked, unless the patches are piped or no untracked
+     * files were saved.
+     */
+    Optional<Path> getUntrackedPatchFile();
+
+    /**
+     * Whether untracked files were saved, which they are not if a stash was saved while there were
+     * none.
+     */
+    @Value.Default
+    default boolean isUntrackedFilesSaved() {
+      return true;
+    }
+
+    /**
+     * A file with the IDs of the trees, if the snapshot was saved with {@link
+     * SnapshotStrategy#TREE} and its patches are piped.
+     */
+    Optional<Path> getTreesFile();
+
+    /** Fingerprints of the files that saving the snapshot rewrote, from before it was saved. */
+    Map<Path, FileFingerprint> getOriginalFingerprints();
 
-    Path getUnstagedPatchFile();
+    /** Fingerprints of the untracked files that were left in the working tree. */
+    Map<Path, FileFingerprint> getUntrackedFingerprints();
 
-    Path getUntrackedPatchFile();
+    /** The IDs of the blobs with the contents of the untracked files left in the working tree. */
+    Map<Path, String> getUntrackedBlobs();
   }
 
   @Value.Immutable
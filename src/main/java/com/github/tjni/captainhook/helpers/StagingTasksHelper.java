@@ -0,0 +1,98 @@
+package com.github.tjni.captainhook.helpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import one.util.streamex.EntryStream;
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+/**
+ * Routes staged files to the tasks that should run on them, like the configuration of <a
+ * href="https://github.com/okonet/lint-staged">lint-staged</a> maps globs to commands.
+ *
+ * <p>Globs have the format of {@code .gitignore} patterns relative to the root project directory,
+ * so a glob without a slash, such as {@code *.java}, matches files in any directory.
+ */
+@Singleton
+public class StagingTasksHelper {
+  private static final Logger LOG = Logging.getLogger(StagingTasksHelper.class);
+
+  private final Project project;
+  private final GitHelper gitHelper;
+
+  @Inject
+  public StagingTasksHelper(Project project, GitHelper gitHelper) {
+    this.project = project;
+    this.gitHelper = gitHelper;
+  }
+
+  /**
+   * Finds the files that each task should run on.
+   *
+   * @param stagingTasks globs mapped to the names of the tasks that run on the files they match
+   * @param stagingFiles absolute paths of staged files in the working tree mapped to the paths that
+   *     the tasks are given, in order
+   * @return the names of the tasks that match at least one file mapped to the paths of the files
+   *     they match, in the order of the globs and of the files
+   */
+  public Map<String, List<Path>> route(
+      Map<String, List<String>> stagingTasks, Map<Path, Path> stagingFiles) {
+    Path topLevelDir = gitHelper.getTopLevelDirectory();
+    String baseDir = toSlashPath(topLevelDir.relativize(getRootDirectory()));
+
+    Map<String, Set<Path>> routes = new LinkedHashMap<>();
+    stagingTasks.forEach(
+        (glob, taskNames) -> {
+          GitIgnore pattern = GitIgnore.parse(baseDir, glob);
+          List<Path> matchingFiles =
+              EntryStream.of(stagingFiles)
+                  .filterKeys(
+                      stagedFile ->
+                          isMatch(
+                              pattern, baseDir, toSlashPath(topLevelDir.relativize(stagedFile))))
+                  .values()
+                  .toList();
+          LOG.info("{} staged files match {}.", matchingFiles.size(), glob);
+          if (matchingFiles.isEmpty()) {
+            return;
+          }
+
+          for (String taskName : taskNames) {
+            routes.computeIfAbsent(taskName, name -> new LinkedHashSet<>()).addAll(matchingFiles);
+          }
+        });
+    return EntryStream.of(routes)
+        .<List<Path>>mapValues(ArrayList::new)
+        .toCustomMap(LinkedHashMap::new);
+  }
+
+  private static boolean isMatch(GitIgnore pattern, String baseDir, String path) {
+    if (!baseDir.isEmpty() && !path.startsWith(baseDir + "/")) {
+      return false;
+    }
+    return Boolean.TRUE.equals(pattern.match(path, false));
+  }
+
+  private Path getRootDirectory() {
+    try {
+      return project.getRootDir().toPath().toRealPath();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static String toSlashPath(Path path) {
+    return path.toString().replace(File.separatorChar, '/');
+  }
+}
@@ -0,0 +1,180 @@
+package com.github.tjni.captainhook.helpers;
+
+import com.github.tjni.captainhook.annotations.ImmutableStyle;
+import com.github.tjni.captainhook.annotations.VisibleForTesting;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import one.util.streamex.EntryStream;
+import one.util.streamex.StreamEx;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.immutables.value.Value;
+
+/**
+ * Remembers which staged blobs the tasks of a hook already passed without changing them, so that
+ * later runs over the same contents, such as after a failed {@code commit-msg} hook or a {@code
+ * commit --amend}, can skip them.
+ *
+ * <p>The cache is a file in the common Git directory with one line per blob, configuration of the
+ * tasks and path, in the order they were last used, since tasks can check the same contents
+ * differently depending on where they are. The least recently used lines are evicted once there are
+ * more than {@link #MAX_ENTRIES}. The file is replaced atomically, so that hooks running at the
+ * same time, such as in linked working trees that share the common Git directory, never read it
+ * partly written.
+ */
+@Singleton
+public class VerifiedCacheHelper {
+  private static final Logger LOG = Logging.getLogger(VerifiedCacheHelper.class);
+
+  @VisibleForTesting static final String CACHE_FILE_NAME = "captain-hook_verified";
+  @VisibleForTesting static final int MAX_ENTRIES = 10_000;
+
+  private final GitHelper gitHelper;
+  private final FilesHelper filesHelper;
+
+  @Inject
+  public VerifiedCacheHelper(GitHelper gitHelper, FilesHelper filesHelper) {
+    this.gitHelper = gitHelper;
+    this.filesHelper = filesHelper;
+  }
+
+  /**
+   * Hashes what decides the outcome of the tasks besides the staged contents.
+   *
+   * @param taskNames the names of the tasks that are run
+   * @param inputFiles the absolute paths of the configuration files of the tasks
+   * @return the hexadecimal SHA-256 hash of the task names and the contents of the files
+   */
+  public String hashConfiguration(List<String> taskNames, List<Path> inputFiles) {
+    String configuration =
+        StreamEx.of(taskNames)
+            .map(taskName -> "task " + taskName)
+            .append(
+                StreamEx.of(inputFiles)
+                    .map(
+                        file ->
+                            "file "
+                                + file
+                                + " "
+                                + (filesHelper.exists(file) ? filesHelper.hash(file) : "missing")))
+            .joining("\n");
+    return hash(configuration);
+  }
+
+  /**
+   * Reads the cache along with the blobs that are staged now.
+   *
+   * @param configurationHash the hash of the configuration of the tasks
+   * @return the cache
+   * @see #hashConfiguration(List, List)
+   */
+  public VerifiedCache open(String configurationHash) {
+    return ImmutableVerifiedCache.builder()
+        .setConfigurationHash(configurationHash)
+        .putAllStagedBlobs(gitHelper.getStagedBlobs())
+        .addAllKeys(readKeys())
+        .build();
+  }
+
+  /**
+   * Removes the staged files whose staged contents were already verified with the same
+   * configuration.
+   *
+   * @param cache the cache
+   * @param stagedFiles absolute paths of staged files
+   * @return the staged files that still have to be verified, in their original order
+   */
+  public List<Path> removeVerified(VerifiedCache cache, List<Path> stagedFiles) {
+    Set<String> keys = new LinkedHashSet<>(cache.getKeys());
+    Map<Path, String> stagedBlobs = cache.getStagedBlobs();
+    List<Path> unverifiedFiles =
+        StreamEx.of(stagedFiles)
+            .remove(
+                file ->
+                    stagedBlobs.containsKey(file)
+                        && keys.contains(toKey(file, stagedBlobs.get(file), cache)))
+            .toList();
+    LOG.info(
+        "Skipping {} staged files that were already verified.",
+        stagedFiles.size() - unverifiedFiles.size());
+    return unverifiedFiles;
+  }
+
+  /**
+   * Records the staged blobs that did not change since the cache was opened as verified, which
+   * should only be done once the tasks succeeded.
+   *
+   * @param cache the cache
+   */
+  public void recordUnchanged(VerifiedCache cache) {
+    Map<Path, String> stagedBlobs = gitHelper.getStagedBlobs();
+    Set<String> verifiedKeys =
+        EntryStream.of(cache.getStagedBlobs())
+            .filter(entry -> entry.getValue().equals(stagedBlobs.get(entry.getKey())))
+            .mapKeyValue((file, blob) -> toKey(file, blob, cache))
+            // A path with a newline cannot be kept on one line.
+            .remove(key -> key.indexOf('\n') >= 0)
+            .toCollection(LinkedHashSet::new);
+
+    // The keys are kept in the order they were last used, so the verified keys move to the end.
+    List<String> keys =
+        StreamEx.of(readKeys()).remove(verifiedKeys::contains).append(verifiedKeys).toList();
+    keys = keys.subList(Math.max(0, keys.size() - MAX_ENTRIES), keys.size());
+    filesHelper.writeAtomically(getCacheFile(), StreamEx.of(keys).joining("\n", "", "\n"));
+    LOG.info("Recorded {} verified staged blobs.", verifiedKeys.size());
+  }
+
+  private List<String> readKeys() {
+    Path cacheFile = getCacheFile();
+    if (!filesHelper.exists(cacheFile)) {
+      return Collections.emptyList();
+    }
+    return StreamEx.split(filesHelper.toString(cacheFile), '\n').remove(String::isEmpty).toList();
+  }
+
+  private Path getCacheFile() {
+    return gitHelper.getCommonDirectory().resolve(CACHE_FILE_NAME);
+  }
+
+  private String toKey(Path file, String blob, VerifiedCache cache) {
+    Path relativePath = gitHelper.getTopLevelDirectory().relativize(file);
+    return blob + " " + cache.getConfigurationHash() + " " + relativePath;
+  }
+
+  private static String hash(String str) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    byte[] hash = digest.digest(str.getBytes(StandardCharsets.UTF_8));
+    return GitIndex.toHex(hash, 0, hash.length);
+  }
+
+  @Value.Immutable
+  @ImmutableStyle
+  public interface VerifiedCache {
+    /** The hash of the configuration of the tasks. */
+    String getConfigurationHash();
+
+    /** The IDs of the staged blobs when the cache was opened. */
+    Map<Path, String> getStagedBlobs();
+
+    /**
+     * The lines of the cache when it was opened, each a blob ID, a configuration hash and a path
+     * relative to the top-level directory.
+     */
+    List<String> getKeys();
+  }
+}
@@ -0,0 +1,99 @@
+package com.github.tjni.captainhook.tasks;
+
+import com.github.tjni.captainhook.helpers.StagedExecHelper;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+import javax.inject.Inject;
+import one.util.streamex.StreamEx;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.plugins.ExtraPropertiesExtension;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * Runs an external command over the staged files, with their paths appended to its arguments.
+ *
+ * <p>The files are read from the {@code staging} property of the task, which is set when the task
+ * is routed to by {@link com.github.tjni.captainhook.CaptainHookExtension#getStagingTasks()}, or
+ * else from the {@code staging} property of the project, which is looked up through its parents up
+ * to the root project.
+ *
+ * @see StagedExecHelper
+ */
+public class StagedExecTask extends DefaultTask {
+  private final ListProperty<String> commandLine;
+  private final Property<Integer> maxParallelForks;
+  private StagedExecHelper stagedExecHelper;
+
+  @Inject
+  public StagedExecTask() {
+    commandLine = getProject().getObjects().listProperty(String.class).empty();
+    maxParallelForks =
+        getProject()
+            .getObjects()
+            .property(Integer.class)
+            .value(Runtime.getRuntime().availableProcessors());
+  }
+
+  @TaskAction
+  public void exec() {
+    stagedExecHelper.exec(
+        commandLine.get(), getStagedFiles(), maxParallelForks.get(), getLogger()::lifecycle);
+  }
+
+  /**
+   * The executable and its arguments, to which the paths of the staged files are appended.
+   *
+   * @return the executable and its arguments
+   */
+  @Input
+  public ListProperty<String> getCommandLine() {
+    return commandLine;
+  }
+
+  /**
+   * How many commands may run at once.
+   *
+   * <p>This property defaults to the number of available processors.
+   *
+   * @return how many commands may run at once
+   */
+  @Internal
+  public Property<Integer> getMaxParallelForks() {
+    return maxParallelForks;
+  }
+
+  public void setStagedExecHelper(StagedExecHelper stagedExecHelper) {
+    this.stagedExecHelper = stagedExecHelper;
+  }
+
+  private List<Path> getStagedFiles() {
+    ExtraPropertiesExtension taskProperties = getExtensions().getExtraProperties();
+    if (taskProperties.has("staging")) {
+      return toPaths(taskProperties.get("staging"));
+    }
+
+    // Subprojects only have a staging property of their own with project staging.
+    Object staging = getProject().findProperty("staging");
+    if (staging != null) {
+      return toPaths(staging);
+    }
+
+    throw new GradleException(String.format("Please run the staging task before %s.", getName()));
+  }
+
+  /** Subprojects list their staged files as a file collection rather than as paths. */
+  @SuppressWarnings("unchecked")
+  private static List<Path> toPaths(Object staging) {
+    if (staging instanceof FileCollection) {
+      return StreamEx.of(((FileCollection) staging).getFiles()).map(File::toPath).toList();
+    }
+    return (List<Path>) staging;
+  }
+}
@@ -79,7 +79,9 @@ final class CaptainHookPluginTest {
 
     // Then:
     verify(applyPluginHelper).createApplyGitHooksTask();
+    verify(applyPluginHelper).configureStagedExecTasks();
     verify(applyPluginHelper).configureStaging();
     verify(applyPluginHelper).maybeAutoApplyGitHooks();
+    verify(applyPluginHelper).configureExecMetrics();
   }
 }
@@ -3,19 +3,34 @@ package com.github.tjni.captainhook.dagger.components;
 import static org.mockito.Mockito.mock;
 
 import com.github.tjni.captainhook.helpers.ApplyGitHooksHelper;
+import com.github.tjni.captainhook.helpers.ExecMetrics;
 import com.github.tjni.captainhook.helpers.FilesHelper;
+import com.github.tjni.captainhook.helpers.GitBatchHelper;
 import com.github.tjni.captainhook.helpers.GitHelper;
 import com.github.tjni.captainhook.helpers.GradleHelper;
+import com.github.tjni.captainhook.helpers.SandboxHelper;
+import com.github.tjni.captainhook.helpers.StagedExecHelper;
 import com.github.tjni.captainhook.helpers.StagingHelper;
+import com.github.tjni.captainhook.helpers.StagingTasksHelper;
+import com.github.tjni.captainhook.helpers.VerifiedCacheHelper;
 import java.time.Clock;
 
 public class TestPluginComponent implements PluginComponent {
   private final FilesHelper filesHelper = mock(FilesHelper.class, "filesHelper");
   private final GitHelper gitHelper = mock(GitHelper.class, "gitHelper");
+  private final ExecMetrics execMetrics = mock(ExecMetrics.class, "execMetrics");
+  private final GitBatchHelper gitBatchHelper = mock(GitBatchHelper.class, "gitBatchHelper");
   private final GradleHelper gradleHelper = mock(GradleHelper.class, "gradleHelper");
   private final ApplyGitHooksHelper applyGitHooksHelper =
       mock(ApplyGitHooksHelper.class, "applyGitHooksHelper");
   private final StagingHelper stagingHelper = mock(StagingHelper.class, "stagingHelper");
+  private final SandboxHelper sandboxHelper = mock(SandboxHelper.class, "sandboxHelper");
+  private final StagedExecHelper stagedExecHelper =
+      mock(StagedExecHelper.class, "stagedExecHelper");
+  private final StagingTasksHelper stagingTasksHelper =
+      mock(StagingTasksHelper.class, "stagingTasksHelper");
+  private final VerifiedCacheHelper verifiedCacheHelper =
+      mock(VerifiedCacheHelper.class, "verifiedCacheHelper");
   private final Clock clock = mock(Clock.class, "clock");
 
   @Override
@@ -28,6 +43,16 @@ public class TestPluginComponent implements PluginComponent {
     return gitHelper;
   }
 
+  @Override
+  public ExecMetrics getExecMetrics() {
+    return execMetrics;
+  }
+
+  @Override
+  public GitBatchHelper getGitBatchHelper() {
+    return gitBatchHelper;
+  }
+
   @Override
   public GradleHelper getGradleHelper() {
     return gradleHelper;
@@ -43,6 +68,26 @@ public class TestPluginComponent implements PluginComponent {
     return stagingHelper;
   }
 
+  @Override
+  public SandboxHelper getSandboxHelper() {
+    return sandboxHelper;
+  }
+
+  @Override
+  public StagedExecHelper getStagedExecHelper() {
+    return stagedExecHelper;
+  }
+
+  @Override
+  public StagingTasksHelper getStagingTasksHelper() {
+    return stagingTasksHelper;
+  }
+
+  @Override
+  public VerifiedCacheHelper getVerifiedCacheHelper() {
+    return verifiedCacheHelper;
+  }
+
   @Override
   public Clock getClock() {
     return clock;
@@ -0,0 +1,295 @@
+package com.github.tjni.captainhook.helpers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.mockito.BDDMockito.given;
+
+import com.github.tjni.captainhook.helpers.ExecHelper.ExecException;
+import com.github.tjni.captainhook.helpers.ExecHelper.ExecRequest;
+import com.github.tjni.captainhook.helpers.ExecHelper.ExecResult;
+import com.github.tjni.captainhook.helpers.ExecMetrics.ExecSummary;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import one.util.streamex.StreamEx;
+import org.gradle.api.Project;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+@DisabledOnOs(OS.WINDOWS)
+final class ExecHelperTest {
+  private static final int OUTPUT_LENGTH = 8 * 1024 * 1024;
+
+  @TempDir File tempDir;
+
+  private final ExecMetrics execMetrics = new ExecMetrics();
+  private final ExecHelper execHelper;
+
+  ExecHelperTest(@Mock(name = "project") Project project) {
+    given(project.getRootDir()).willReturn(new File(System.getProperty("java.io.tmpdir")));
+    execHelper = new ExecHelper(project, execMetrics);
+  }
+
+  @Test
+  void rawExec_WhenProcessWritesToBothStreams_ShouldDrainThemConcurrently() {
+    // Given:
+    String script =
+        String.format(
+            "yes error | head -c %1$d >&2; yes output | head -c %1$d; exit 3", OUTPUT_LENGTH);
+
+    // When:
+    ExecResult result =
+        assertTimeoutPreemptively(
+            Duration.ofSeconds(10), () -> execHelper.rawExec("sh", "-c", script));
+
+    // Then:
+    assertThat(result.getExitCode()).isEqualTo(3);
+    assertThat(result.getStdout()).isEqualTo(repeat("output\n", OUTPUT_LENGTH).trim());
+    assertThat(result.getStderr())
+        .isEqualTo(
+            repeat("error\n", ExecHelper.MAX_STDERR_LENGTH)
+                + System.lineSeparator()
+                + "[truncated]");
+  }
+
+  @Test
+  void rawExec_WhenStderrIsTruncated_ShouldNotSplitCharacter() {
+    // Given:
+    String script =
+        String.format(
+            "yes \"$(printf '\\303\\251')\" | head -c %d >&2", ExecHelper.MAX_STDERR_LENGTH * 2);
+
+    // When:
+    ExecResult result = execHelper.rawExec("sh", "-c", script);
+
+    // Then:
+    assertThat(result.getStderr()).startsWith("\u00e9").endsWith("[truncated]");
+    assertThat(result.getStderr()).doesNotContain("\ufffd");
+  }
+
+  @Test
+  void rawExec_WhenProcessReadsStdin_ShouldNotWaitForInput() {
+    // When:
+    ExecResult result =
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> execHelper.rawExec("cat"));
+
+    // Then:
+    assertThat(result.getExitCode()).isZero();
+    assertThat(result.getStdout()).isEmpty();
+  }
+
+  @Test
+  void rawExec_ShouldRecordMetrics() {
+    // When:
+    execHelper.rawExec("git", "--version");
+    execHelper.rawExec("git", "--no-such-option");
+
+    // Then:
+    List<ExecSummary> summaries = execMetrics.getSummaries();
+    assertThat(summaries).hasSize(1);
+    assertThat(summaries.get(0).getCommand()).isEqualTo("git");
+    assertThat(summaries.get(0).getCount()).isEqualTo(2);
+    assertThat(summaries.get(0).getFailureCount()).isEqualTo(1);
+    assertThat(summaries.get(0).getStdoutBytes()).isPositive();
+    assertThat(summaries.get(0).getStderrBytes()).isPositive();
+  }
+
+  @Test
+  void stream_ShouldPassEachLineToConsumer() {
+    // Given:
+    List<String> lines = new ArrayList<>();
+
+    // When:
+    execHelper.stream(lines::add, "printf", "one\\ntwo\\n\\nthree");
+
+    // Then:
+    assertThat(lines).containsExactly("one", "two", "", "three");
+  }
+
+  @Test
+  void stream_WhenCommandFails_ShouldThrowExecException() {
+    // When:
+    Throwable exception =
+        catchThrowable(() -> execHelper.stream(line -> {}, "sh", "-c", "echo oops >&2; exit 2"));
+
+    // Then:
+    assertThat(exception)
+        .isInstanceOf(ExecException.class)
+        .hasMessageContainingAll("exited with code 2", "oops");
+  }
+
+  @Test
+  void runConcurrently_ShouldRunTasksAtTheSameTime() {
+    // Given:
+    CountDownLatch latch = new CountDownLatch(2);
+    Runnable task =
+        () -> {
+          execHelper.exec("git", "--version");
+          latch.countDown();
+          try {
+            // Only returns if the other task runs while this one waits.
+            assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+        };
+
+    // When:
+    assertTimeoutPreemptively(Duration.ofSeconds(20), () -> execHelper.runConcurrently(task, task));
+
+    // Then:
+    assertThat(latch.getCount()).isZero();
+    assertThat(execMetrics.getSummaries().get(0).getCount()).isEqualTo(2);
+  }
+
+  @Test
+  void runConcurrently_WhenMoreCommandsThanPooledThreads_ShouldDrainAllStreams() {
+    // Given:
+    CountDownLatch latch = new CountDownLatch(ExecHelper.MAX_POOLED_THREADS + 2);
+    Runnable task =
+        () -> {
+          latch.countDown();
+          try {
+            // Every task holds a thread of the pool while its command runs.
+            assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+          execHelper.rawExec("sh", "-c", "yes error | head -c 1048576 >&2");
+        };
+    Runnable[] tasks = StreamEx.constant(task, latch.getCount()).toArray(Runnable.class);
+
+    // When:
+    assertTimeoutPreemptively(Duration.ofSeconds(30), () -> execHelper.runConcurrently(tasks));
+
+    // Then:
+    assertThat(execMetrics.getSummaries().get(0).getCount()).isEqualTo(tasks.length);
+  }
+
+  @Test
+  void runConcurrently_WhenTasksFail_ShouldWaitForAllAndThrowFirstException() {
+    // Given:
+    AtomicBoolean isSlowTaskDone = new AtomicBoolean();
+
+    // When:
+    Throwable exception =
+        catchThrowable(
+            () ->
+                execHelper.runConcurrently(
+                    () -> execHelper.exec("sh", "-c", "sleep 1; exit 2"),
+                    () -> execHelper.exec("sh", "-c", "exit 3"),
+                    () -> {
+                      execHelper.exec("sh", "-c", "sleep 1");
+                      isSlowTaskDone.set(true);
+                    }));
+
+    // Then:
+    assertThat(exception).isInstanceOf(ExecException.class).hasMessageContaining("code 2");
+    assertThat(isSlowTaskDone).isTrue();
+  }
+
+  @Test
+  void pipe_ShouldStreamOutputIntoSink() throws IOException {
+    // Given:
+    Path countFile = tempDir.toPath().resolve("count");
+    ExecRequest source =
+        ImmutableExecRequest.builder()
+            .setExecutable("sh")
+            .setArgs("-c", String.format("yes output | head -c %d", OUTPUT_LENGTH))
+            .build();
+    ExecRequest sink =
+        ImmutableExecRequest.builder()
+            .setExecutable("sh")
+            .setArgs("-c", "wc -c > \"$0\"", countFile.toString())
+            .build();
+
+    // When:
+    boolean isSinkRun =
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> execHelper.pipe(source, sink));
+
+    // Then:
+    assertThat(isSinkRun).isTrue();
+    assertThat(new String(Files.readAllBytes(countFile), StandardCharsets.UTF_8).trim())
+        .isEqualTo(String.valueOf(OUTPUT_LENGTH));
+  }
+
+  @Test
+  void pipe_WhenSourcePrintsOnlyWhitespace_ShouldNotRunSink() {
+    // Given:
+    ExecRequest source =
+        ImmutableExecRequest.builder().setExecutable("printf").setArgs(" \\n\\t\\n").build();
+    ExecRequest sink =
+        ImmutableExecRequest.builder().setExecutable("sh").setArgs("-c", "exit 1").build();
+
+    // When:
+    boolean isSinkRun = execHelper.pipe(source, sink);
+
+    // Then:
+    assertThat(isSinkRun).isFalse();
+  }
+
+  @Test
+  void pipe_WhenSinkFails_ShouldThrowExecException() {
+    // Given:
+    ExecRequest source =
+        ImmutableExecRequest.builder().setExecutable("printf").setArgs("patch").build();
+    ExecRequest sink =
+        ImmutableExecRequest.builder()
+            .setExecutable("sh")
+            .setArgs("-c", "echo rejected >&2; exit 1")
+            .build();
+
+    // When:
+    Throwable exception = catchThrowable(() -> execHelper.pipe(source, sink));
+
+    // Then:
+    assertThat(exception)
+        .isInstanceOf(ExecException.class)
+        .hasMessageContainingAll("exited with code 1", "rejected");
+  }
+
+  @Test
+  void readRecords_ShouldSplitRecordsAcrossReads() {
+    // Given:
+    String longRecord = StreamEx.constant("x", 3 * 8192).joining();
+    String output = "a\0" + longRecord + "\0\0b\0c";
+    InputStream stream = new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8));
+    List<String> records = new ArrayList<>();
+
+    // When:
+    ExecHelper.readRecords(
+        stream,
+        (byte) 0,
+        (buffer, offset, length) ->
+            records.add(new String(buffer, offset, length, StandardCharsets.UTF_8)));
+
+    // Then:
+    assertThat(records).containsExactly("a", longRecord, "", "b", "c");
+  }
+
+  /** Repeats a string until it is the given length, cutting off the last repetition. */
+  private static String repeat(String str, int length) {
+    StringBuilder builder = new StringBuilder(length + str.length());
+    while (builder.length() < length) {
+      builder.append(str);
+    }
+    return builder.substring(0, length);
+  }
+}
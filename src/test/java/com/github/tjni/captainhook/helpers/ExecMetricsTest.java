@@ -0,0 +1,76 @@
+package com.github.tjni.captainhook.helpers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.github.tjni.captainhook.helpers.ExecMetrics.ExecSummary;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+final class ExecMetricsTest {
+  private final ExecMetrics execMetrics = new ExecMetrics();
+
+  @Test
+  void getSummaries_ShouldAggregatePerCommand() {
+    // Given:
+    for (int millis = 1; millis <= 20; millis++) {
+      record("git stash", millis, 0);
+    }
+    record("git add", 5, 1);
+
+    // When:
+    List<ExecSummary> summaries = execMetrics.getSummaries();
+
+    // Then:
+    assertThat(summaries)
+        .extracting(ExecSummary::getCommand)
+        .containsExactly("git stash", "git add");
+
+    ExecSummary stash = summaries.get(0);
+    assertThat(stash.getCount()).isEqualTo(20);
+    assertThat(stash.getFailureCount()).isZero();
+    assertThat(stash.getTotalMillis()).isEqualTo(210);
+    assertThat(stash.getP50Millis()).isEqualTo(10);
+    assertThat(stash.getP95Millis()).isEqualTo(19);
+    assertThat(stash.getMaxMillis()).isEqualTo(20);
+    assertThat(stash.getStdoutBytes()).isEqualTo(200);
+
+    ExecSummary add = summaries.get(1);
+    assertThat(add.getFailureCount()).isEqualTo(1);
+    assertThat(add.getP95Millis()).isEqualTo(5);
+  }
+
+  @Test
+  void getCommandName_ShouldSkipOptions() {
+    // When:
+    String name = ExecMetrics.getCommandName("git", "--no-pager", "diff", "--staged");
+
+    // Then:
+    assertThat(name).isEqualTo("git diff");
+  }
+
+  @Test
+  void toJson_ShouldListCommands() {
+    // Given:
+    record("git \"quoted\"", 3, 0);
+
+    // When:
+    String json = execMetrics.toJson();
+
+    // Then:
+    assertThat(json)
+        .startsWith("{\n  \"commands\": [\n")
+        .contains("\"command\": \"git \\\"quoted\\\"\"", "\"count\": 1", "\"p95Millis\": 3");
+  }
+
+  private void record(String command, long millis, int exitCode) {
+    execMetrics.record(
+        ImmutableExecRecord.builder()
+            .setCommand(command)
+            .setDurationNanos(TimeUnit.MILLISECONDS.toNanos(millis))
+            .setExitCode(exitCode)
+            .setStdoutBytes(10)
+            .setStderrBytes(0)
+            .build());
+  }
+}
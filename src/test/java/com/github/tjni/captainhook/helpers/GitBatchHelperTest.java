@@ -0,0 +1,106 @@
+package com.github.tjni.captainhook.helpers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+
+import com.github.tjni.captainhook.helpers.GitBatchHelper.GitObject;
+import com.github.tjni.captainhook.helpers.GitBatchHelper.GitObjectInfo;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import org.gradle.api.Project;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+final class GitBatchHelperTest {
+  @TempDir File tempDir;
+
+  private final Project project;
+  private ExecHelper execHelper;
+  private GitBatchHelper gitBatchHelper;
+
+  GitBatchHelperTest(@Mock(name = "project") Project project) {
+    this.project = project;
+  }
+
+  @BeforeEach
+  void setUp() {
+    given(project.getRootDir()).willReturn(tempDir);
+    execHelper = new ExecHelper(project, new ExecMetrics());
+    gitBatchHelper = new GitBatchHelper(execHelper);
+
+    execHelper.exec("git", "init");
+    execHelper.exec("git", "config", "user.name", "tester");
+    execHelper.exec("git", "config", "user.email", "tester@example.com");
+    execHelper.exec("git", "commit", "--allow-empty", "--message=first");
+  }
+
+  @AfterEach
+  void tearDown() {
+    gitBatchHelper.close();
+  }
+
+  @Test
+  void findObject_ShouldAnswerQueriesWithOneProcess() {
+    // Given:
+    String head = execHelper.exec("git", "rev-parse", "HEAD");
+
+    // When:
+    Optional<GitObjectInfo> info1 = gitBatchHelper.findObject("HEAD");
+    Optional<GitObjectInfo> info2 = gitBatchHelper.findObject("HEAD^{tree}");
+    Optional<GitObjectInfo> info3 = gitBatchHelper.findObject("refs/heads/missing");
+
+    // Then:
+    assertThat(info1).map(GitObjectInfo::getObjectId).hasValue(head);
+    assertThat(info1).map(GitObjectInfo::getType).hasValue("commit");
+    assertThat(info2).map(GitObjectInfo::getType).hasValue("tree");
+    assertThat(info3).isEmpty();
+    assertThat(gitBatchHelper.getAvoidedProcessStarts()).isEqualTo(2);
+  }
+
+  @Test
+  void findObject_WhenMissingPathHasSpace_ShouldReturnEmpty() {
+    // When:
+    Optional<GitObjectInfo> info = gitBatchHelper.findObject("HEAD:missing file.txt");
+    Optional<GitObjectInfo> nextInfo = gitBatchHelper.findObject("HEAD");
+
+    // Then:
+    assertThat(info).isEmpty();
+    assertThat(nextInfo).map(GitObjectInfo::getType).hasValue("commit");
+  }
+
+  @Test
+  void readObject_ShouldReadContents() {
+    // When:
+    Optional<GitObject> commit = gitBatchHelper.readObject("HEAD");
+    Optional<GitObject> missing = gitBatchHelper.readObject("refs/heads/missing");
+    Optional<GitObject> tree = gitBatchHelper.readObject("HEAD^{tree}");
+
+    // Then:
+    assertThat(commit)
+        .map(object -> new String(object.getContent(), StandardCharsets.UTF_8))
+        .hasValueSatisfying(content -> assertThat(content).startsWith("tree ").endsWith("first\n"));
+    assertThat(missing).isEmpty();
+    assertThat(tree).map(object -> object.getInfo().getSize()).hasValue(0L);
+  }
+
+  @Test
+  void close_ShouldAllowProcessToBeRestarted() {
+    // Given:
+    gitBatchHelper.findObject("HEAD");
+
+    // When:
+    gitBatchHelper.close();
+    Optional<GitObjectInfo> info = gitBatchHelper.findObject("HEAD");
+
+    // Then:
+    assertThat(info).isPresent();
+    assertThat(gitBatchHelper.getAvoidedProcessStarts()).isZero();
+  }
+}
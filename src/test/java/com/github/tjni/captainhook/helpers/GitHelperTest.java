@@ -1,16 +1,31 @@
 package com.github.tjni.captainhook.helpers;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 
+import com.github.tjni.captainhook.helpers.ExecHelper.RecordConsumer;
+import com.github.tjni.captainhook.helpers.GitBatchHelper.GitObject;
 import com.github.tjni.captainhook.helpers.GitHelper.GitStatusLine;
+import com.github.tjni.captainhook.helpers.GitHelper.LineRange;
+import com.github.tjni.captainhook.helpers.GitIndex.UnsupportedIndexException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import one.util.streamex.StreamEx;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentMatchers;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
@@ -18,20 +33,28 @@ import org.mockito.junit.jupiter.MockitoExtension;
 final class GitHelperTest {
   private static final Path GIT_TOP_LEVEL_DIR = Paths.get("/Workspace");
 
+  private static final String REV_PARSE_OUTPUT = GIT_TOP_LEVEL_DIR + "\n.git\n.git";
+
   private final ExecHelper execHelper;
+  private final GitBatchHelper gitBatchHelper;
+  private final GitIndexHelper gitIndexHelper;
   private final GitHelper gitHelper;
 
-  GitHelperTest(@Mock(name = "execHelper") ExecHelper execHelper) {
+  GitHelperTest(
+      @Mock(name = "execHelper") ExecHelper execHelper,
+      @Mock(name = "gitBatchHelper") GitBatchHelper gitBatchHelper,
+      @Mock(name = "gitIndexHelper") GitIndexHelper gitIndexHelper) {
     this.execHelper = execHelper;
-    gitHelper = new GitHelper(execHelper);
+    this.gitBatchHelper = gitBatchHelper;
+    this.gitIndexHelper = gitIndexHelper;
+    gitHelper = new GitHelper(execHelper, gitBatchHelper, gitIndexHelper);
   }
 
   @Test
   void getCommonDirectory_ShouldCombineTopLevelWithCommonDirectory() {
     // Given:
-    given(execHelper.exec("git", "rev-parse", "--show-toplevel"))
-        .willReturn(GIT_TOP_LEVEL_DIR.toString());
-    given(execHelper.exec("git", "rev-parse", "--git-common-dir")).willReturn(".git");
+    given(execHelper.exec("git", "rev-parse", "--show-toplevel", "--git-common-dir", "--git-dir"))
+        .willReturn(REV_PARSE_OUTPUT);
 
     // When:
     Path gitCommonDir = gitHelper.getCommonDirectory();
@@ -43,9 +66,8 @@ final class GitHelperTest {
   @Test
   void getCommonDirectory_ShouldUseRepositoryCache() {
     // Given:
-    given(execHelper.exec("git", "rev-parse", "--show-toplevel"))
-        .willReturn(GIT_TOP_LEVEL_DIR.toString());
-    given(execHelper.exec("git", "rev-parse", "--git-common-dir")).willReturn(".git");
+    given(execHelper.exec("git", "rev-parse", "--show-toplevel", "--git-common-dir", "--git-dir"))
+        .willReturn(REV_PARSE_OUTPUT);
 
     // When:
     Path gitCommonDir1 = gitHelper.getCommonDirectory();
@@ -55,25 +77,50 @@ final class GitHelperTest {
     assertThat(gitCommonDir1).isEqualTo(GIT_TOP_LEVEL_DIR.resolve(".git"));
     assertThat(gitCommonDir2).isEqualTo(GIT_TOP_LEVEL_DIR.resolve(".git"));
 
-    verify(execHelper).exec("git", "rev-parse", "--show-toplevel");
-    verify(execHelper).exec("git", "rev-parse", "--git-common-dir");
+    verify(execHelper).exec("git", "rev-parse", "--show-toplevel", "--git-common-dir", "--git-dir");
   }
 
   @Test
-  void getTopLevelDirectory_ShouldUseRepositoryCache() {
+  void getTopLevelDirectory_ShouldShareRepositoryCacheWithCommonDirectory() {
     // Given:
-    given(execHelper.exec("git", "rev-parse", "--show-toplevel"))
-        .willReturn(GIT_TOP_LEVEL_DIR.toString());
+    given(execHelper.exec("git", "rev-parse", "--show-toplevel", "--git-common-dir", "--git-dir"))
+        .willReturn(REV_PARSE_OUTPUT);
 
     // When:
-    Path gitTopLevelDir1 = gitHelper.getTopLevelDirectory();
-    Path gitTopLevelDir2 = gitHelper.getTopLevelDirectory();
+    Path gitTopLevelDir = gitHelper.getTopLevelDirectory();
+    Path gitCommonDir = gitHelper.getCommonDirectory();
 
     // Then:
-    assertThat(gitTopLevelDir1).isEqualTo(GIT_TOP_LEVEL_DIR);
-    assertThat(gitTopLevelDir2).isEqualTo(GIT_TOP_LEVEL_DIR);
+    assertThat(gitTopLevelDir).isEqualTo(GIT_TOP_LEVEL_DIR);
+    assertThat(gitCommonDir).isEqualTo(GIT_TOP_LEVEL_DIR.resolve(".git"));
 
-    verify(execHelper).exec("git", "rev-parse", "--show-toplevel");
+    verify(execHelper).exec("git", "rev-parse", "--show-toplevel", "--git-common-dir", "--git-dir");
+  }
+
+  @Test
+  void getCommitMessage_ShouldReadMessageThroughBatchHelper() {
+    // Given:
+    String commit = "tree 1234\nparent 5678\n\nOn master: message\n";
+
+    GitObject object =
+        ImmutableGitObject.builder()
+            .setInfo(
+                ImmutableGitObjectInfo.builder()
+                    .setObjectId("abcd")
+                    .setType("commit")
+                    .setSize(commit.length())
+                    .build())
+            .setContent(commit.getBytes(StandardCharsets.UTF_8))
+            .build();
+
+    given(gitBatchHelper.readObject("stash@{0}")).willReturn(Optional.of(object));
+
+    // When:
+    Optional<String> message = gitHelper.getCommitMessage("stash@{0}");
+
+    // Then:
+    assertThat(message).hasValue("On master: message");
+    verifyNoInteractions(execHelper);
   }
 
   @Test
@@ -81,8 +128,7 @@ final class GitHelperTest {
     // Given:
     List<String> statusOutput = Arrays.asList(" M file1", "AM file2", "?? file3");
 
-    given(execHelper.exec("git", "status", "--porcelain"))
-        .willReturn(String.join("\n", statusOutput));
+    givenOutput(statusOutput, "status", "--porcelain", "-z");
 
     // When:
     List<GitStatusLine> statusLines = gitHelper.status().getStatusLines();
@@ -95,10 +141,26 @@ final class GitHelperTest {
     assertThat(statusLines.get(2).getRelativePath()).isEqualTo(Paths.get("file3"));
   }
 
+  @Test
+  void status_ShouldSkipOriginalPathsOfRenames() {
+    // Given:
+    List<String> statusOutput = Arrays.asList("R  new name", "old name", "?? file -> 3");
+
+    givenOutput(statusOutput, "status", "--porcelain", "-z");
+
+    // When:
+    List<GitStatusLine> statusLines = gitHelper.status().getStatusLines();
+
+    // Then:
+    assertThat(statusLines)
+        .extracting(GitStatusLine::getRelativePath)
+        .containsExactly(Paths.get("new name"), Paths.get("file -> 3"));
+  }
+
   @Test
   void status_ShouldHandleEmptyStatus() {
     // Given:
-    given(execHelper.exec("git", "status", "--porcelain")).willReturn("");
+    givenOutput(Collections.emptyList(), "status", "--porcelain", "-z");
 
     // When:
     List<GitStatusLine> statusLines = gitHelper.status().getStatusLines();
@@ -110,12 +172,12 @@ final class GitHelperTest {
   @Test
   void lsFiles_ShouldReturnAbsolutePaths() {
     // Given:
-    given(execHelper.exec("git", "rev-parse", "--show-toplevel"))
-        .willReturn(GIT_TOP_LEVEL_DIR.toString());
+    given(execHelper.exec("git", "rev-parse", "--show-toplevel", "--git-common-dir", "--git-dir"))
+        .willReturn(REV_PARSE_OUTPUT);
 
     List<String> lsFilesOutput = Arrays.asList("file1", "file2");
 
-    given(execHelper.exec("git", "ls-files")).willReturn(String.join("\n", lsFilesOutput));
+    givenOutput(lsFilesOutput, "ls-files", "-z");
 
     // When:
     List<Path> lsFiles = gitHelper.lsFiles();
@@ -128,7 +190,10 @@ final class GitHelperTest {
   @Test
   void lsFiles_ShouldHandleEmptyFileList() {
     // Given:
-    given(execHelper.exec("git", "ls-files")).willReturn("");
+    given(execHelper.exec("git", "rev-parse", "--show-toplevel", "--git-common-dir", "--git-dir"))
+        .willReturn(REV_PARSE_OUTPUT);
+
+    givenOutput(Collections.emptyList(), "ls-files", "-z");
 
     // When:
     List<Path> lsFiles = gitHelper.lsFiles();
@@ -136,4 +201,261 @@ final class GitHelperTest {
     // Then:
     assertThat(lsFiles).isEmpty();
   }
+
+  @Test
+  void getStagedFiles_ShouldReadIndex() {
+    // Given:
+    given(execHelper.exec("git", "rev-parse", "--show-toplevel", "--git-common-dir", "--git-dir"))
+        .willReturn(REV_PARSE_OUTPUT);
+
+    given(gitIndexHelper.findStagedPaths(GIT_TOP_LEVEL_DIR.resolve(".git")))
+        .willReturn(Arrays.asList("dir/file1", "file2"));
+
+    // When:
+    List<Path> stagedFiles = gitHelper.getStagedFiles();
+
+    // Then:
+    assertThat(stagedFiles)
+        .containsExactly(
+            GIT_TOP_LEVEL_DIR.resolve("dir/file1"), GIT_TOP_LEVEL_DIR.resolve("file2"));
+  }
+
+  @Test
+  void getStagedFiles_WhenIndexIsUnsupported_ShouldRunGit() {
+    // Given:
+    given(execHelper.exec("git", "rev-parse", "--show-toplevel", "--git-common-dir", "--git-dir"))
+        .willReturn(REV_PARSE_OUTPUT);
+
+    given(gitIndexHelper.findStagedPaths(GIT_TOP_LEVEL_DIR.resolve(".git")))
+        .willThrow(new UnsupportedIndexException("Index version 5 is not supported."));
+
+    givenOutput(
+        Collections.singletonList("file1"),
+        "diff",
+        "--staged",
+        "--diff-filter=ACMR",
+        "--name-only",
+        "-z");
+
+    // When:
+    List<Path> stagedFiles = gitHelper.getStagedFiles();
+
+    // Then:
+    assertThat(stagedFiles).containsExactly(GIT_TOP_LEVEL_DIR.resolve("file1"));
+  }
+
+  @Test
+  void lsFiles_WhenListingDeletedFiles_ShouldReadIndex() {
+    // Given:
+    given(execHelper.exec("git", "rev-parse", "--show-toplevel", "--git-common-dir", "--git-dir"))
+        .willReturn(REV_PARSE_OUTPUT);
+
+    given(gitIndexHelper.findDeletedPaths(GIT_TOP_LEVEL_DIR.resolve(".git"), GIT_TOP_LEVEL_DIR))
+        .willReturn(Collections.singletonList("file1"));
+
+    // When:
+    List<Path> deletedFiles = gitHelper.lsFiles("--deleted");
+
+    // Then:
+    assertThat(deletedFiles).containsExactly(GIT_TOP_LEVEL_DIR.resolve("file1"));
+  }
+
+  @Test
+  void writeBlobs_ShouldOnlyWriteMissingBlobs() {
+    // Given:
+    Path existingFile = GIT_TOP_LEVEL_DIR.resolve("existing.txt");
+    Path missingFile = GIT_TOP_LEVEL_DIR.resolve("missing.txt");
+    given(
+            execHelper.exec(
+                ImmutableExecRequest.builder()
+                    .setExecutable("git")
+                    .setArgs("hash-object", "--no-filters", "--stdin-paths")
+                    .setStdin(existingFile + "\n" + missingFile + "\n")
+                    .build()))
+        .willReturn("aaaa\nbbbb\n");
+    given(gitBatchHelper.findObject("aaaa"))
+        .willReturn(
+            Optional.of(
+                ImmutableGitObjectInfo.builder()
+                    .setObjectId("aaaa")
+                    .setType("blob")
+                    .setSize(8)
+                    .build()));
+    given(gitBatchHelper.findObject("bbbb")).willReturn(Optional.empty());
+    given(
+            execHelper.exec(
+                ImmutableExecRequest.builder()
+                    .setExecutable("git")
+                    .setArgs("hash-object", "-w", "--no-filters", "--stdin-paths")
+                    .setStdin(missingFile + "\n")
+                    .build()))
+        .willReturn("bbbb\n");
+
+    // When:
+    List<String> objectIds = gitHelper.writeBlobs(Arrays.asList(existingFile, missingFile));
+
+    // Then:
+    assertThat(objectIds).containsExactly("aaaa", "bbbb");
+  }
+
+  @Test
+  void getStagedLineRanges_ShouldParseHunkHeaders() {
+    // Given:
+    given(execHelper.exec("git", "rev-parse", "--show-toplevel", "--git-common-dir", "--git-dir"))
+        .willReturn(REV_PARSE_OUTPUT);
+
+    List<String> diffOutput =
+        Arrays.asList(
+            "diff --git file1 file1",
+            "index 1111111..2222222 100644",
+            "--- file1",
+            "+++ file1",
+            "@@ -2 +2 @@ class Foo {",
+            "-old",
+            "+new",
+            "@@ -10,0 +11,3 @@",
+            "+++ file2",
+            "+@@ -1 +1 @@",
+            "+added",
+            "@@ -20,2 +22,0 @@",
+            "-deleted",
+            "-deleted",
+            "\\ No newline at end of file",
+            "diff --git dir/file with spaces.txt dir/file with spaces.txt",
+            "new file mode 100644",
+            "--- /dev/null",
+            "+++ dir/file with spaces.txt\t",
+            "@@ -0,0 +1 @@",
+            "+added",
+            "diff --git \"\\303\\251t\\303\\251.txt\" \"\\303\\251t\\303\\251.txt\"",
+            "index 3333333..4444444 100644",
+            "Binary files \"\\303\\251t\\303\\251.txt\" and \"\\303\\251t\\303\\251.txt\" differ",
+            "diff --git quoted quoted",
+            "--- \"tab\\there\"",
+            "+++ \"tab\\there\"",
+            "@@ -1,2 +1,2 @@",
+            "-a",
+            "-b",
+            "+c",
+            "+d");
+
+    givenRecords(
+        (byte) '\n',
+        diffOutput,
+        "diff",
+        "--staged",
+        "--unified=0",
+        "--no-color",
+        "--no-ext-diff",
+        "--no-textconv",
+        "--no-relative",
+        "--no-renames",
+        "--no-prefix",
+        "--ignore-submodules",
+        "--diff-filter=AM");
+
+    // When:
+    Map<Path, List<LineRange>> lineRanges = gitHelper.getStagedLineRanges();
+
+    // Then:
+    assertThat(lineRanges)
+        .containsExactly(
+            entry(
+                GIT_TOP_LEVEL_DIR.resolve("file1"),
+                Arrays.asList(ImmutableLineRange.of(2, 2), ImmutableLineRange.of(11, 13))),
+            entry(
+                GIT_TOP_LEVEL_DIR.resolve("dir/file with spaces.txt"),
+                Collections.singletonList(ImmutableLineRange.of(1, 1))),
+            entry(
+                GIT_TOP_LEVEL_DIR.resolve("tab\there"),
+                Collections.singletonList(ImmutableLineRange.of(1, 2))));
+  }
+
+  @Test
+  void getStagedLineRanges_WhenLinesAreOnlyDeleted_ShouldLeaveFileOut() {
+    // Given:
+    given(execHelper.exec("git", "rev-parse", "--show-toplevel", "--git-common-dir", "--git-dir"))
+        .willReturn(REV_PARSE_OUTPUT);
+
+    List<String> diffOutput =
+        Arrays.asList(
+            "diff --git file1 file1",
+            "index 1111111..2222222 100644",
+            "--- file1",
+            "+++ file1",
+            "@@ -3,2 +2,0 @@",
+            "-deleted",
+            "-deleted",
+            "diff --git file2 file2",
+            "index 3333333..4444444 100644",
+            "--- file2",
+            "+++ file2",
+            "@@ -1 +0,0 @@",
+            "-deleted",
+            "@@ -5 +4 @@",
+            "-old",
+            "+new");
+
+    givenRecords(
+        (byte) '\n',
+        diffOutput,
+        "diff",
+        "--staged",
+        "--unified=0",
+        "--no-color",
+        "--no-ext-diff",
+        "--no-textconv",
+        "--no-relative",
+        "--no-renames",
+        "--no-prefix",
+        "--ignore-submodules",
+        "--diff-filter=AM");
+
+    // When:
+    Map<Path, List<LineRange>> lineRanges = gitHelper.getStagedLineRanges();
+
+    // Then:
+    assertThat(lineRanges)
+        .containsExactly(
+            entry(
+                GIT_TOP_LEVEL_DIR.resolve("file2"),
+                Collections.singletonList(ImmutableLineRange.of(4, 4))));
+  }
+
+  @Test
+  void unquotePath_ShouldDecodeOctalEscapesAsUtf8() {
+    // Given:
+    byte[] header =
+        "+++ \"\\303\\251t\\303\\251 \\\"q\\\".txt\"\t".getBytes(StandardCharsets.UTF_8);
+
+    // When:
+    String path = GitHelper.LineRangeRecordConsumer.unquotePath(header, 4, header.length - 4);
+
+    // Then:
+    assertThat(path).isEqualTo("\u00e9t\u00e9 \"q\".txt");
+  }
+
+  private void givenOutput(List<String> lines, String... args) {
+    givenRecords((byte) 0, lines, args);
+  }
+
+  private void givenRecords(byte delimiter, List<String> lines, String... args) {
+    willAnswer(
+            invocation -> {
+              RecordConsumer recordConsumer = invocation.getArgument(1);
+              for (String line : lines) {
+                byte[] record = line.getBytes(StandardCharsets.UTF_8);
+                recordConsumer.accept(record, 0, record.length);
+              }
+              return null;
+            })
+        .given(execHelper)
+        .streamRecords(eq(delimiter), any(), eq("git"), eqAll(args));
+  }
+
+  private static String[] eqAll(String... args) {
+    // Argument matchers are registered in the order they are created, so this must be called
+    // after the matchers for the preceding arguments.
+    return StreamEx.of(args).map(ArgumentMatchers::eq).toArray(String.class);
+  }
 }
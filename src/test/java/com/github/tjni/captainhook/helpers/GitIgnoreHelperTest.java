@@ -0,0 +1,238 @@
+package com.github.tjni.captainhook.helpers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+
+import com.github.tjni.captainhook.helpers.ExecHelper.ExecResult;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import one.util.streamex.IntStreamEx;
+import one.util.streamex.StreamEx;
+import org.gradle.api.Project;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+final class GitIgnoreHelperTest {
+  private static final List<String> FILES =
+      Arrays.asList(
+          "#hash",
+          "Makefile",
+          "a/b/c/deep.txt",
+          "a/b/x.txt",
+          "a/x.txt",
+          "archive.tar.gz",
+          "build/libs/app.jar",
+          "build/tmp/x.log",
+          "data[1].txt",
+          "docs/keep/readme.md",
+          "docs/other/readme.md",
+          "file~",
+          "important.log",
+          "logs/today.log",
+          "logs/yesterday.log",
+          "nested/build/out.bin",
+          "notes.log",
+          "src/main/Foo.class",
+          "src/main/Foo.java",
+          "src/test/FooTest.java",
+          "x/a/b/y");
+
+  private static final List<String> PATTERNS =
+      Arrays.asList(
+          "*.log",
+          "!important.log",
+          "build/",
+          "/build",
+          "build",
+          "**/build",
+          "a/**/deep.txt",
+          "**/x.txt",
+          "src/*/Foo.*",
+          "src/**",
+          "!src/test/",
+          "[ab]",
+          "[!a-m]*.txt",
+          "*.tar.gz",
+          "docs/**",
+          "!docs/keep/",
+          "!docs/keep/**",
+          "\\#hash",
+          "#hash",
+          "*~",
+          "/Makefile",
+          "logs/",
+          "logs/*",
+          "!logs/today.log",
+          "nested/",
+          "x/*/b",
+          "x/**/y",
+          "*.class",
+          "!Foo.class",
+          "*.java",
+          "!*Test.java",
+          "a/b/",
+          "/a/x.txt",
+          "b/x.txt",
+          "data\\[1\\].txt",
+          "data[0-9]*",
+          "?otes.log",
+          "**",
+          "!**/",
+          "*/",
+          "!a/b/",
+          "archive.*",
+          "**/keep",
+          "notes.log   ",
+          "[[:upper:]]*",
+          "*.[jt]*",
+          "!readme.md",
+          "*/readme.md",
+          "deep.txt",
+          "c/");
+
+  @TempDir File tempDir;
+
+  private final Project project;
+  private Path repoDir;
+  private ExecHelper execHelper;
+  private GitBatchHelper gitBatchHelper;
+  private GitIgnoreHelper gitIgnoreHelper;
+
+  GitIgnoreHelperTest(@Mock(name = "project") Project project) {
+    this.project = project;
+  }
+
+  @BeforeEach
+  void setUp() throws IOException {
+    given(project.getRootDir()).willReturn(tempDir);
+    repoDir = tempDir.toPath().toRealPath();
+    execHelper = new ExecHelper(project, new ExecMetrics());
+    gitBatchHelper = new GitBatchHelper(execHelper);
+    GitHelper gitHelper =
+        new GitHelper(execHelper, gitBatchHelper, new GitIndexHelper(execHelper, gitBatchHelper));
+    gitIgnoreHelper = new GitIgnoreHelper(project, execHelper, new FilesHelper(), gitHelper);
+
+    execHelper.exec("git", "init");
+    execHelper.exec("git", "config", "core.excludesFile", "global-ignore");
+  }
+
+  @AfterEach
+  void tearDown() {
+    gitBatchHelper.close();
+  }
+
+  @ParameterizedTest
+  @MethodSource("seeds")
+  void isIgnored_ShouldMatchGitCheckIgnore(int seed) {
+    // Given:
+    for (String file : FILES) {
+      write(file, "");
+    }
+
+    Random random = new Random(seed);
+    String description =
+        StreamEx.of(".gitignore", "a/.gitignore", "src/.gitignore", ".git/info/exclude")
+            .append("global-ignore")
+            .map(file -> file + ":\n" + write(file, randomPatterns(random)))
+            .joining("\n");
+
+    List<String> paths = allPaths();
+
+    // When:
+    List<String> ignoredPaths =
+        StreamEx.of(paths).filter(path -> gitIgnoreHelper.isIgnored(path)).toList();
+
+    // Then:
+    assertThat(ignoredPaths).as(description).isEqualTo(checkIgnore(paths));
+  }
+
+  @Test
+  void isIgnored_WhenDirectoryDoesNotExist_ShouldUseTrailingSlash() {
+    // Given:
+    write(".gitignore", ".gradle/\n");
+
+    // When:
+    boolean isDirectoryIgnored = gitIgnoreHelper.isIgnored(".gradle/");
+    boolean isFileIgnored = gitIgnoreHelper.isIgnored(".gradle");
+
+    // Then:
+    assertThat(isDirectoryIgnored).isTrue();
+    assertThat(isFileIgnored).isFalse();
+  }
+
+  @Test
+  void removeIgnored_ShouldKeepOrderOfPathsThatAreNotIgnored() {
+    // Given:
+    write(".gitignore", "*.log\n!keep.log\n");
+    List<Path> paths =
+        StreamEx.of("b.txt", "a.log", "keep.log", "a.txt").map(repoDir::resolve).toList();
+
+    // When:
+    List<Path> remainingPaths = gitIgnoreHelper.removeIgnored(paths);
+
+    // Then:
+    assertThat(remainingPaths)
+        .containsExactly(
+            repoDir.resolve("b.txt"), repoDir.resolve("keep.log"), repoDir.resolve("a.txt"));
+  }
+
+  static IntStreamEx seeds() {
+    return IntStreamEx.range(50);
+  }
+
+  /** Returns every file and directory of the working tree, in sorted order. */
+  private static List<String> allPaths() {
+    return StreamEx.of(FILES)
+        .flatMap(
+            file ->
+                IntStreamEx.range(file.length())
+                    .filter(i -> file.charAt(i) == '/')
+                    .<String>mapToObj(slash -> file.substring(0, slash))
+                    .append(file))
+        .distinct()
+        .sorted()
+        .toList();
+  }
+
+  private static String randomPatterns(Random random) {
+    return IntStreamEx.range(random.nextInt(8))
+        .mapToObj(i -> PATTERNS.get(random.nextInt(PATTERNS.size())))
+        .joining("\n", "", "\n");
+  }
+
+  private List<String> checkIgnore(List<String> paths) {
+    String[] args =
+        StreamEx.of("check-ignore", "--no-index", "--").append(paths).toArray(String.class);
+    ExecResult result = execHelper.rawExec("git", args);
+    assertThat(result.getExitCode()).as(result.getStderr()).isLessThanOrEqualTo(1);
+    return result.getStdout().isEmpty()
+        ? Collections.emptyList()
+        : Arrays.asList(result.getStdout().split("\n"));
+  }
+
+  private String write(String path, String content) {
+    try {
+      Path file = repoDir.resolve(path);
+      Files.createDirectories(file.getParent());
+      Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+      return content;
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,349 @@
+package com.github.tjni.captainhook.helpers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.mockito.BDDMockito.given;
+
+import com.github.tjni.captainhook.helpers.ExecMetrics.ExecSummary;
+import com.github.tjni.captainhook.helpers.GitIndex.UnsupportedIndexException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.gradle.api.Project;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+@DisabledOnOs(OS.WINDOWS)
+final class GitIndexHelperTest {
+  @TempDir File tempDir;
+
+  private final Project project;
+  private Path repoDir;
+  private Path gitDir;
+  private ExecMetrics execMetrics;
+  private ExecHelper execHelper;
+  private GitBatchHelper gitBatchHelper;
+  private GitIndexHelper gitIndexHelper;
+
+  GitIndexHelperTest(@Mock(name = "project") Project project) {
+    this.project = project;
+  }
+
+  @BeforeEach
+  void setUp() throws IOException {
+    given(project.getRootDir()).willReturn(tempDir);
+    repoDir = tempDir.toPath().toRealPath();
+    gitDir = repoDir.resolve(".git");
+    execMetrics = new ExecMetrics();
+    execHelper = new ExecHelper(project, execMetrics);
+    gitBatchHelper = new GitBatchHelper(execHelper);
+    gitIndexHelper = new GitIndexHelper(execHelper, gitBatchHelper);
+
+    execHelper.exec("git", "init");
+    execHelper.exec("git", "config", "user.name", "tester");
+    execHelper.exec("git", "config", "user.email", "tester@example.com");
+  }
+
+  @AfterEach
+  void tearDown() {
+    gitBatchHelper.close();
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"2", "3", "4", "split", "untracked-cache"})
+  void findPaths_ShouldMatchGit(String indexFormat) throws IOException {
+    // Given:
+    write("unchanged.txt", "unchanged");
+    write("staged.txt", "staged");
+    write("unstaged.txt", "unstaged");
+    write("deleted.txt", "deleted");
+    write("touched.txt", "touched");
+    write("executable.sh", "#!/bin/sh");
+    write("dir/file.txt", "file");
+    write("dir/sub/file.txt", "file");
+    write("other/file.txt", "file");
+    Files.createSymbolicLink(repoDir.resolve("link"), Paths.get("unchanged.txt"));
+    execHelper.exec("git", "add", "--all");
+    execHelper.exec("git", "commit", "--message=first");
+
+    switch (indexFormat) {
+      case "split":
+        execHelper.exec("git", "update-index", "--split-index");
+        break;
+      case "untracked-cache":
+        execHelper.exec("git", "update-index", "--untracked-cache");
+        break;
+      default:
+        execHelper.exec("git", "update-index", "--index-version", indexFormat);
+        break;
+    }
+
+    // Make every file old, so that only the files changed below have to be compared by content.
+    FileTime hourAgo = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+    for (String path : git("ls-files", "-z")) {
+      Files.setLastModifiedTime(repoDir.resolve(path), hourAgo);
+    }
+    execHelper.exec("git", "status");
+
+    write("staged.txt", "staged, modified");
+    write("dir/sub/new.txt", "new");
+    execHelper.exec("git", "add", "staged.txt", "dir/sub/new.txt");
+    execHelper.exec("git", "add", "--intent-to-add", write("intended.txt", "intended"));
+    execHelper.exec("git", "rm", "--cached", "--quiet", "other/file.txt");
+
+    write("unstaged.txt", "UNSTAGED"); // same size
+    write("dir/file.txt", "modified");
+    Files.delete(repoDir.resolve("deleted.txt"));
+    Files.setLastModifiedTime(repoDir.resolve("touched.txt"), FileTime.fromMillis(0));
+    Files.setPosixFilePermissions(
+        repoDir.resolve("executable.sh"), PosixFilePermissions.fromString("rwxr-xr-x"));
+    if (indexFormat.equals("3")) {
+      execHelper.exec("git", "update-index", "--skip-worktree", "dir/file.txt");
+    }
+
+    // When:
+    List<String> stagedPaths = gitIndexHelper.findStagedPaths(gitDir);
+    List<String> modifiedPaths = gitIndexHelper.findModifiedPaths(gitDir, repoDir);
+    List<String> deletedPaths = gitIndexHelper.findDeletedPaths(gitDir, repoDir);
+
+    // Then:
+    assertThat(stagedPaths)
+        .isEqualTo(git("diff", "--staged", "--diff-filter=ACMR", "--name-only", "-z"))
+        .containsExactly("dir/sub/new.txt", "staged.txt");
+    assertThat(modifiedPaths).isEqualTo(git("ls-files", "--modified", "-z")).isNotEmpty();
+    assertThat(deletedPaths)
+        .isEqualTo(git("ls-files", "--deleted", "-z"))
+        .containsExactly("deleted.txt");
+  }
+
+  @Test
+  void findModifiedPaths_WhenFileModeIsFalse_ShouldIgnoreExecutableBit() throws IOException {
+    // Given:
+    execHelper.exec("git", "config", "core.fileMode", "false");
+    write("script.sh", "#!/bin/sh");
+    write("modified.sh", "#!/bin/sh");
+    execHelper.exec("git", "add", "--all");
+    execHelper.exec("git", "commit", "--message=first");
+
+    Files.setPosixFilePermissions(
+        repoDir.resolve("script.sh"), PosixFilePermissions.fromString("rwxr-xr-x"));
+    write("modified.sh", "#!/bin/bash");
+
+    // When:
+    List<String> modifiedPaths = gitIndexHelper.findModifiedPaths(gitDir, repoDir);
+
+    // Then:
+    assertThat(modifiedPaths)
+        .isEqualTo(git("ls-files", "--modified", "-z"))
+        .containsExactly("modified.sh");
+  }
+
+  @Test
+  void findStagedPaths_WhenNothingIsStaged_ShouldNotReadTrees() throws IOException {
+    // Given:
+    write("dir/file.txt", "file");
+    execHelper.exec("git", "add", "--all");
+    execHelper.exec("git", "commit", "--message=first");
+
+    // When:
+    List<String> stagedPaths = gitIndexHelper.findStagedPaths(gitDir);
+
+    // Then:
+    assertThat(stagedPaths).isEmpty();
+    assertThat(gitBatchHelper.getAvoidedProcessStarts()).isZero();
+  }
+
+  @Test
+  void findStagedPaths_WhenRepositoryHasNoCommits_ShouldReturnAllFiles() throws IOException {
+    // Given:
+    write("file1", "file1");
+    write("dir/file2", "file2");
+    execHelper.exec("git", "add", "--all");
+
+    // When:
+    List<String> stagedPaths = gitIndexHelper.findStagedPaths(gitDir);
+
+    // Then:
+    assertThat(stagedPaths).containsExactly("dir/file2", "file1");
+  }
+
+  @Test
+  void findStagedPaths_WhenIndexDoesNotExist_ShouldReturnEmptyList() {
+    // When:
+    List<String> stagedPaths = gitIndexHelper.findStagedPaths(gitDir);
+
+    // Then:
+    assertThat(stagedPaths).isEmpty();
+  }
+
+  @Test
+  void findStagedPaths_WhenIndexVersionIsUnknown_ShouldThrow() throws IOException {
+    // Given:
+    ByteBuffer header = ByteBuffer.allocate(12).putInt(0x44495243).putInt(5).putInt(0);
+    Files.write(gitDir.resolve("index"), header.array());
+
+    // When:
+    Throwable exception = catchThrowable(() -> gitIndexHelper.findStagedPaths(gitDir));
+
+    // Then:
+    assertThat(exception)
+        .isInstanceOf(UnsupportedIndexException.class)
+        .hasMessage("Index version 5 is not supported.");
+  }
+
+  @Test
+  void updateIndex_ShouldStageLikeGitAdd() throws IOException {
+    // Given:
+    write("modified.txt", "modified");
+    write("unchanged.txt", "unchanged");
+    write("executable.sh", "#!/bin/sh");
+    write("crlf.txt", "line\n");
+    write("deleted.txt", "deleted");
+    write(".gitattributes", "crlf.txt text eol=lf\n");
+    execHelper.exec("git", "add", "--all");
+    execHelper.exec("git", "commit", "--message=first");
+
+    write("modified.txt", "modified again");
+    write("crlf.txt", "line\r\n");
+    Files.setPosixFilePermissions(
+        repoDir.resolve("executable.sh"), PosixFilePermissions.fromString("rwxr-xr-x"));
+    Files.delete(repoDir.resolve("deleted.txt"));
+    write("untracked.txt", "untracked");
+    List<String> paths =
+        Arrays.asList(
+            "modified.txt",
+            "unchanged.txt",
+            "executable.sh",
+            "crlf.txt",
+            "deleted.txt",
+            "untracked.txt");
+
+    // When:
+    List<String> remainingPaths = gitIndexHelper.updateIndex(gitDir, repoDir, paths);
+
+    // Then:
+    assertThat(remainingPaths).containsExactly("deleted.txt", "untracked.txt");
+    execHelper.exec("git", "add", "--", "deleted.txt", "untracked.txt");
+    List<String> stagedEntries = git("ls-files", "--stage", "-z");
+    execHelper.exec("git", "add", "--all");
+    assertThat(stagedEntries).isEqualTo(git("ls-files", "--stage", "-z"));
+    assertThat(git("diff", "--staged", "--name-only", "-z"))
+        .containsExactly("deleted.txt", "executable.sh", "modified.txt", "untracked.txt");
+  }
+
+  @Test
+  void updateIndex_WhenFileModeIsFalse_ShouldKeepModeInIndex() throws IOException {
+    // Given:
+    execHelper.exec("git", "config", "core.fileMode", "false");
+    write("script.sh", "#!/bin/sh");
+    write("tool.sh", "#!/bin/sh");
+    execHelper.exec("git", "add", "--all");
+    execHelper.exec("git", "update-index", "--chmod=+x", "tool.sh");
+    execHelper.exec("git", "commit", "--message=first");
+
+    write("script.sh", "#!/bin/sh\nexit 0");
+    write("tool.sh", "#!/bin/sh\nexit 0");
+    Files.setPosixFilePermissions(
+        repoDir.resolve("script.sh"), PosixFilePermissions.fromString("rwxr-xr-x"));
+
+    // When:
+    List<String> remainingPaths =
+        gitIndexHelper.updateIndex(gitDir, repoDir, Arrays.asList("script.sh", "tool.sh"));
+
+    // Then:
+    assertThat(remainingPaths).isEmpty();
+    List<String> stagedEntries = git("ls-files", "--stage", "-z");
+    execHelper.exec("git", "add", "--all");
+    assertThat(stagedEntries).isEqualTo(git("ls-files", "--stage", "-z"));
+    assertThat(stagedEntries)
+        .anyMatch(entry -> entry.startsWith("100644") && entry.endsWith("\tscript.sh"));
+    assertThat(stagedEntries)
+        .anyMatch(entry -> entry.startsWith("100755") && entry.endsWith("\ttool.sh"));
+  }
+
+  @Test
+  void updateIndex_WhenNoFilterApplies_ShouldWriteBlobsWithoutGit() throws IOException {
+    // Given:
+    write("first.txt", "first");
+    write("second.txt", "second");
+    write("crlf.txt", "line\n");
+    write(".gitattributes", "crlf.txt text eol=lf\n");
+    execHelper.exec("git", "add", "--all");
+    execHelper.exec("git", "commit", "--message=first");
+
+    write("first.txt", "first, modified");
+    write("second.txt", "second, modified");
+    write("crlf.txt", "line\r\n");
+
+    // When:
+    List<String> remainingPaths =
+        gitIndexHelper.updateIndex(
+            gitDir, repoDir, Arrays.asList("first.txt", "second.txt", "crlf.txt"));
+
+    // Then:
+    assertThat(remainingPaths).isEmpty();
+    assertThat(execMetrics.getSummaries())
+        .filteredOn(summary -> summary.getCommand().equals("git hash-object"))
+        .extracting(ExecSummary::getStdoutBytes)
+        .as("only the object ID of the file with a filter is printed by Git")
+        .containsExactly(41L);
+    assertThat(execHelper.exec("git", "show", ":first.txt")).isEqualTo("first, modified");
+    assertThat(execHelper.exec("git", "show", ":crlf.txt")).isEqualTo("line");
+    execHelper.exec("git", "fsck", "--strict");
+    List<String> stagedEntries = git("ls-files", "--stage", "-z");
+    execHelper.exec("git", "add", "--all");
+    assertThat(stagedEntries).isEqualTo(git("ls-files", "--stage", "-z"));
+  }
+
+  @Test
+  void updateIndex_WhenPathHasLineFeed_ShouldLeaveItToGitAdd() throws IOException {
+    // Given:
+    write("line\nfeed.txt", "line feed");
+    write("other.txt", "other");
+    execHelper.exec("git", "add", "--all");
+    execHelper.exec("git", "commit", "--message=first");
+
+    write("line\nfeed.txt", "line feed, modified");
+    write("other.txt", "other, modified");
+
+    // When:
+    List<String> remainingPaths =
+        gitIndexHelper.updateIndex(gitDir, repoDir, Arrays.asList("line\nfeed.txt", "other.txt"));
+
+    // Then:
+    assertThat(remainingPaths).containsExactly("line\nfeed.txt");
+    assertThat(execHelper.exec("git", "show", ":other.txt")).isEqualTo("other, modified");
+  }
+
+  private String write(String path, String content) throws IOException {
+    Path file = repoDir.resolve(path);
+    Files.createDirectories(file.getParent());
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    return path;
+  }
+
+  private List<String> git(String... args) {
+    String output = execHelper.exec("git", args);
+    return output.isEmpty() ? Collections.emptyList() : Arrays.asList(output.split("\0"));
+  }
+}
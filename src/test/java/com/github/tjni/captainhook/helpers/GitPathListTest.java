@@ -0,0 +1,58 @@
+package com.github.tjni.captainhook.helpers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+final class GitPathListTest {
+  private static final Path GIT_TOP_LEVEL_DIR = Paths.get("/Workspace");
+
+  @Test
+  void build_ShouldResolvePathsAgainstBaseDirectory() {
+    // Given:
+    byte[] output = "dir/file1\0file \"2\"\0file\t3\0".getBytes(StandardCharsets.UTF_8);
+
+    // When:
+    List<Path> paths = parse(output);
+
+    // Then:
+    assertThat(paths)
+        .containsExactly(
+            GIT_TOP_LEVEL_DIR.resolve("dir/file1"),
+            GIT_TOP_LEVEL_DIR.resolve("file \"2\""),
+            GIT_TOP_LEVEL_DIR.resolve("file\t3"));
+  }
+
+  @Test
+  void build_WhenOutputIsEmpty_ShouldReturnEmptyList() {
+    // When:
+    List<Path> paths = parse(new byte[0]);
+
+    // Then:
+    assertThat(paths).isEmpty();
+  }
+
+  @Test
+  void add_ShouldBeUnsupported() {
+    // Given:
+    List<Path> paths = parse("file1\0".getBytes(StandardCharsets.UTF_8));
+
+    // When:
+    Throwable exception = catchThrowable(() -> paths.add(Paths.get("file2")));
+
+    // Then:
+    assertThat(exception).isInstanceOf(UnsupportedOperationException.class);
+  }
+
+  private static List<Path> parse(byte[] output) {
+    GitPathList.Builder builder = new GitPathList.Builder();
+    ExecHelper.readRecords(new ByteArrayInputStream(output), (byte) 0, builder);
+    return builder.build(GIT_TOP_LEVEL_DIR);
+  }
+}
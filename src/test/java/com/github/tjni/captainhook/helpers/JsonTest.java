@@ -0,0 +1,16 @@
+package com.github.tjni.captainhook.helpers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+final class JsonTest {
+  @Test
+  void escape_ShouldEscapeQuotesBackslashesAndControlCharacters() {
+    // When:
+    String escaped = Json.escape("dir\\\"file\"\t\u00e9.txt");
+
+    // Then:
+    assertThat(escaped).isEqualTo("dir\\\\\\\"file\\\"\\u0009\u00e9.txt");
+  }
+}
@@ -0,0 +1,54 @@
+package com.github.tjni.captainhook.helpers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Optional;
+import one.util.streamex.StreamEx;
+import org.junit.jupiter.api.Test;
+
+final class PathTrieTest {
+  private static final Path ROOT_DIR = Paths.get("/Workspace");
+
+  @Test
+  void findLongestPrefix_ShouldFindDeepestContainingDirectory() {
+    // Given:
+    PathTrie<String> trie = new PathTrie<>();
+    trie.put(ROOT_DIR, ":");
+    trie.put(ROOT_DIR.resolve("app"), ":app");
+    trie.put(ROOT_DIR.resolve("libs/core"), ":libs:core");
+
+    // When:
+    List<String> owners =
+        StreamEx.of(
+                "build.gradle",
+                "app/src/A.java",
+                "application/A.java",
+                "libs/core/B.java",
+                "libs/other/C.java",
+                "libs/core")
+            .map(path -> trie.findLongestPrefix(ROOT_DIR.resolve(path)))
+            .map(Optional::get)
+            .toList();
+
+    // Then:
+    assertThat(owners).containsExactly(":", ":app", ":", ":libs:core", ":", ":libs:core");
+  }
+
+  @Test
+  void findLongestPrefix_WhenNoDirectoryContainsPath_ShouldReturnEmpty() {
+    // Given:
+    PathTrie<String> trie = new PathTrie<>();
+    trie.put(ROOT_DIR.resolve("app"), ":app");
+
+    // When:
+    Optional<String> siblingOwner = trie.findLongestPrefix(ROOT_DIR.resolve("lib/A.java"));
+    Optional<String> outsideOwner = trie.findLongestPrefix(Paths.get("/Other/app/A.java"));
+
+    // Then:
+    assertThat(siblingOwner).isEmpty();
+    assertThat(outsideOwner).isEmpty();
+  }
+}
@@ -0,0 +1,102 @@
+package com.github.tjni.captainhook.helpers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+
+import com.github.tjni.captainhook.helpers.SandboxHelper.Sandbox;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import org.gradle.api.Project;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+final class SandboxHelperTest {
+  @TempDir File tempDir;
+
+  private final Project project;
+  private Path repoDir;
+  private ExecHelper execHelper;
+  private GitBatchHelper gitBatchHelper;
+  private SandboxHelper sandboxHelper;
+
+  SandboxHelperTest(@Mock(name = "project") Project project) {
+    this.project = project;
+  }
+
+  @BeforeEach
+  void setUp() throws IOException {
+    given(project.getRootDir()).willReturn(tempDir);
+    repoDir = tempDir.toPath().toRealPath();
+    execHelper = new ExecHelper(project, new ExecMetrics());
+    gitBatchHelper = new GitBatchHelper(execHelper);
+    GitHelper gitHelper =
+        new GitHelper(execHelper, gitBatchHelper, new GitIndexHelper(execHelper, gitBatchHelper));
+    sandboxHelper = new SandboxHelper(gitHelper, new FilesHelper());
+
+    execHelper.exec("git", "init");
+    execHelper.exec("git", "config", "user.name", "Test");
+    execHelper.exec("git", "config", "user.email", "test@example.com");
+    write("committed.txt", "committed");
+    execHelper.exec("git", "add", ".");
+    execHelper.exec("git", "commit", "--message=initial");
+  }
+
+  @AfterEach
+  void tearDown() {
+    gitBatchHelper.close();
+  }
+
+  @Test
+  void applyModifications_ShouldOnlyChangeIndex() throws IOException {
+    // Given:
+    write("dir/formatted.txt", "staged");
+    write("unchanged.txt", "staged");
+    write("deleted.txt", "staged");
+    execHelper.exec("git", "add", ".");
+    write("dir/formatted.txt", "unstaged");
+
+    Path sandboxDir = repoDir.resolve("build/sandbox");
+    Sandbox sandbox = sandboxHelper.exportStagedFiles(sandboxDir);
+
+    Files.write(
+        sandboxDir.resolve("dir/formatted.txt"), "formatted".getBytes(StandardCharsets.UTF_8));
+    Files.delete(sandboxDir.resolve("deleted.txt"));
+
+    // When:
+    List<Path> changedFiles = sandboxHelper.applyModifications(sandbox);
+
+    // Then:
+    assertThat(sandbox.getFiles())
+        .containsExactly(
+            sandboxDir.resolve("deleted.txt"),
+            sandboxDir.resolve("dir/formatted.txt"),
+            sandboxDir.resolve("unchanged.txt"));
+    assertThat(changedFiles)
+        .containsExactlyInAnyOrder(Paths.get("deleted.txt"), Paths.get("dir/formatted.txt"));
+    assertThat(execHelper.exec("git", "show", ":dir/formatted.txt")).isEqualTo("formatted");
+    assertThat(execHelper.exec("git", "ls-files", "deleted.txt")).isEmpty();
+    assertThat(read("dir/formatted.txt")).isEqualTo("unstaged");
+    assertThat(read("deleted.txt")).isEqualTo("staged");
+  }
+
+  private void write(String path, String content) throws IOException {
+    Path file = repoDir.resolve(path);
+    Files.createDirectories(file.getParent());
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private String read(String path) throws IOException {
+    return new String(Files.readAllBytes(repoDir.resolve(path)), StandardCharsets.UTF_8);
+  }
+}
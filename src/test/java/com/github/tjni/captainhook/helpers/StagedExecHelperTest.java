@@ -0,0 +1,202 @@
+package com.github.tjni.captainhook.helpers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.github.tjni.captainhook.helpers.ExecHelper.ExecException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import one.util.streamex.IntStreamEx;
+import org.gradle.api.GradleException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+final class StagedExecHelperTest {
+  private static final List<String> COMMAND_LINE = Arrays.asList("fmt", "--write");
+
+  private final ExecHelper execHelper;
+  private final OperatingSystemHelper operatingSystemHelper;
+  private final StagedExecHelper stagedExecHelper;
+
+  StagedExecHelperTest(
+      @Mock(name = "execHelper") ExecHelper execHelper,
+      @Mock(name = "operatingSystemHelper") OperatingSystemHelper operatingSystemHelper) {
+    this.execHelper = execHelper;
+    this.operatingSystemHelper = operatingSystemHelper;
+    stagedExecHelper = new StagedExecHelper(execHelper, operatingSystemHelper);
+  }
+
+  @Test
+  void chunk_ShouldFitCommandLinesInMaxCommandLength() {
+    // Given:
+    // "fmt --write " is 12 characters long, and each file adds 8 more.
+    given(operatingSystemHelper.getMaxCommandLength()).willReturn(30);
+    List<Path> files = files(5);
+
+    // When:
+    List<List<Path>> chunks = stagedExecHelper.chunk(COMMAND_LINE, files, 1);
+
+    // Then:
+    assertThat(chunks)
+        .containsExactly(files.subList(0, 2), files.subList(2, 4), files.subList(4, 5));
+  }
+
+  @Test
+  void chunk_ShouldSplitIntoAtLeastMinChunks() {
+    // Given:
+    given(operatingSystemHelper.getMaxCommandLength()).willReturn(131072);
+    List<Path> files = files(5);
+
+    // When:
+    List<List<Path>> chunks = stagedExecHelper.chunk(COMMAND_LINE, files, 2);
+
+    // Then:
+    assertThat(chunks).containsExactly(files.subList(0, 3), files.subList(3, 5));
+  }
+
+  @Test
+  void chunk_WhenFileIsTooLong_ShouldRunItAlone() {
+    // Given:
+    given(operatingSystemHelper.getMaxCommandLength()).willReturn(10);
+    List<Path> files = files(2);
+
+    // When:
+    List<List<Path>> chunks = stagedExecHelper.chunk(COMMAND_LINE, files, 1);
+
+    // Then:
+    assertThat(chunks).containsExactly(files.subList(0, 1), files.subList(1, 2));
+  }
+
+  @Test
+  void exec_ShouldPrefixOutputWithChunk() {
+    // Given:
+    given(operatingSystemHelper.getMaxCommandLength()).willReturn(131072);
+    given(execHelper.stream(any(), anyProcessConsumer(), eq("fmt"), eq("--write"), eq("/f0.txt")))
+        .willAnswer(
+            invocation -> {
+              Consumer<String> lineConsumer = invocation.getArgument(0);
+              lineConsumer.accept("formatted");
+              return "";
+            });
+
+    List<String> output = new ArrayList<>();
+
+    // When:
+    stagedExecHelper.exec(COMMAND_LINE, files(1), 4, output::add);
+
+    // Then:
+    assertThat(output).containsExactly("[fmt 1/1] formatted");
+  }
+
+  @Test
+  void exec_WhenChunkSucceeds_ShouldPassOnStandardError() {
+    // Given:
+    given(operatingSystemHelper.getMaxCommandLength()).willReturn(131072);
+    given(execHelper.stream(any(), anyProcessConsumer(), eq("fmt"), eq("--write"), eq("/f0.txt")))
+        .willReturn("deprecated option\nsecond warning");
+
+    List<String> output = new ArrayList<>();
+
+    // When:
+    stagedExecHelper.exec(COMMAND_LINE, files(1), 4, output::add);
+
+    // Then:
+    assertThat(output).containsExactly("[fmt 1/1] deprecated option", "[fmt 1/1] second warning");
+  }
+
+  @Test
+  void exec_WhenChunkFails_ShouldNotStartMoreChunks() {
+    // Given:
+    given(operatingSystemHelper.getMaxCommandLength()).willReturn(20);
+    given(execHelper.stream(any(), anyProcessConsumer(), anyString(), anyString(), anyString()))
+        .willThrow(new ExecException("fmt", 2, "syntax error"));
+
+    List<String> output = Collections.synchronizedList(new ArrayList<>());
+
+    // When:
+    Throwable exception =
+        catchThrowable(() -> stagedExecHelper.exec(COMMAND_LINE, files(3), 1, output::add));
+
+    // Then:
+    assertThat(exception)
+        .isInstanceOf(GradleException.class)
+        .hasMessage("fmt failed with exit code 2 on 1 staged files.");
+    assertThat(output).containsExactly("[fmt 1/3] syntax error");
+    verify(execHelper, times(1)).stream(
+        any(), anyProcessConsumer(), anyString(), anyString(), anyString());
+  }
+
+  @Test
+  void exec_WhenChunkFails_ShouldDestroyRunningCommands(@Mock(name = "process") Process process) {
+    // Given:
+    given(operatingSystemHelper.getMaxCommandLength()).willReturn(131072);
+
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch destroyed = new CountDownLatch(1);
+    willAnswer(
+            invocation -> {
+              destroyed.countDown();
+              return null;
+            })
+        .given(process)
+        .destroy();
+
+    given(execHelper.stream(any(), anyProcessConsumer(), eq("fmt"), eq("--write"), eq("/f0.txt")))
+        .willAnswer(
+            invocation -> {
+              await(started);
+              throw new ExecException("fmt", 2, "syntax error");
+            });
+    given(execHelper.stream(any(), anyProcessConsumer(), eq("fmt"), eq("--write"), eq("/f1.txt")))
+        .willAnswer(
+            invocation -> {
+              Consumer<Process> processConsumer = invocation.getArgument(1);
+              processConsumer.accept(process);
+              started.countDown();
+              await(destroyed);
+              throw new ExecException("fmt", 143, "Terminated");
+            });
+
+    List<String> output = Collections.synchronizedList(new ArrayList<>());
+
+    // When:
+    Throwable exception =
+        catchThrowable(() -> stagedExecHelper.exec(COMMAND_LINE, files(2), 2, output::add));
+
+    // Then:
+    assertThat(exception)
+        .isInstanceOf(GradleException.class)
+        .hasMessage("fmt failed with exit code 2 on 1 staged files.");
+    assertThat(output).containsExactly("[fmt 1/2] syntax error");
+    verify(process).destroy();
+  }
+
+  private static Consumer<Process> anyProcessConsumer() {
+    return any();
+  }
+
+  private static void await(CountDownLatch latch) throws InterruptedException {
+    assertThat(latch.await(10, TimeUnit.SECONDS)).as("latch released").isTrue();
+  }
+
+  private static List<Path> files(int count) {
+    return IntStreamEx.range(count).mapToObj(i -> Paths.get("/f" + i + ".txt")).toList();
+  }
+}
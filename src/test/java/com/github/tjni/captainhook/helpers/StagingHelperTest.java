@@ -5,22 +5,37 @@ import static org.assertj.core.api.ThrowableAssert.catchThrowable;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
 import static org.mockito.BDDMockito.willDoNothing;
 import static org.mockito.BDDMockito.willReturn;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
-import com.github.tjni.captainhook.helpers.GitHelper.GitStatusLine;
+import com.github.tjni.captainhook.helpers.ExecHelper.ExecException;
+import com.github.tjni.captainhook.helpers.FilesHelper.FileFingerprint;
+import com.github.tjni.captainhook.helpers.GitHelper.GitStatus;
 import com.github.tjni.captainhook.helpers.StagingHelper.MergeStatus;
 import com.github.tjni.captainhook.helpers.StagingHelper.Snapshot;
+import com.github.tjni.captainhook.helpers.StagingHelper.SnapshotOptions;
+import com.github.tjni.captainhook.helpers.StagingHelper.SnapshotStrategy;
+import com.github.tjni.captainhook.helpers.StagingHelper.WorkingTreeState;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import one.util.streamex.EntryStream;
+import one.util.streamex.IntStreamEx;
 import one.util.streamex.StreamEx;
+import org.gradle.api.GradleException;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
@@ -29,64 +44,225 @@ import org.mockito.junit.jupiter.MockitoExtension;
 final class StagingHelperTest {
   private static final Path GIT_DIR = Paths.get("/Workspace");
   private static final Path GIT_COMMON_DIR = GIT_DIR.resolve(".git");
+  private static final String STASH_COMMIT = "0123456789abcdef0123456789abcdef01234567";
+  private static final String INDEX_TREE = "1111111111111111111111111111111111111111";
+  private static final String WORKING_TREE_TREE = "2222222222222222222222222222222222222222";
 
+  private final ExecHelper execHelper;
   private final GitHelper gitHelper;
+  private final GitIgnoreHelper gitIgnoreHelper;
   private final FilesHelper filesHelper;
+  private final OperatingSystemHelper operatingSystemHelper;
   private final StagingHelper stagingHelper;
 
   StagingHelperTest(
+      @Mock(name = "execHelper") ExecHelper execHelper,
       @Mock(name = "gitHelper") GitHelper gitHelper,
+      @Mock(name = "gitIgnoreHelper") GitIgnoreHelper gitIgnoreHelper,
       @Mock(name = "filesHelper") FilesHelper filesHelper,
       @Mock(name = "operatingSystemHelper") OperatingSystemHelper operatingSystemHelper) {
+    this.execHelper = execHelper;
     this.gitHelper = gitHelper;
+    this.gitIgnoreHelper = gitIgnoreHelper;
     this.filesHelper = filesHelper;
-    stagingHelper = new StagingHelper(gitHelper, filesHelper, operatingSystemHelper);
+    this.operatingSystemHelper = operatingSystemHelper;
+    stagingHelper =
+        new StagingHelper(
+            execHelper, gitHelper, gitIgnoreHelper, filesHelper, operatingSystemHelper);
   }
 
   @Test
   void saveSnapshot_ShouldSaveState() {
     // Given:
     given(gitHelper.getCommonDirectory()).willReturn(GIT_COMMON_DIR);
+    given(gitHelper.getTopLevelDirectory()).willReturn(GIT_DIR);
 
     List<Path> deletedFiles = Collections.singletonList(GIT_DIR.resolve("deleted.log"));
     given(gitHelper.lsFiles("--deleted")).willReturn(deletedFiles);
 
-    String stashMessage = "message";
     StagingHelper spyStagingHelper = spy(stagingHelper);
     willReturn(true).given(spyStagingHelper).isGradleDirectoryIgnored();
-    willReturn(stashMessage).given(spyStagingHelper).saveSnapshotStash();
-    willReturn("stash{0}").given(spyStagingHelper).findStashName(stashMessage);
+    willReturn(STASH_COMMIT).given(spyStagingHelper).saveSnapshotStash(true);
+    willReturn(status("?? untracked.txt")).given(spyStagingHelper).getWorkingTreeStatus(true);
+    given(gitHelper.resolve(STASH_COMMIT + "^2^{tree}")).willReturn(Optional.of(INDEX_TREE));
+    given(gitHelper.resolve(STASH_COMMIT + "^{tree}")).willReturn(Optional.of(WORKING_TREE_TREE));
 
     List<Path> stagedFiles = Collections.singletonList(GIT_DIR.resolve("staged.log"));
     willReturn(stagedFiles).given(spyStagingHelper).getStagedFiles();
 
+    willAnswer(
+            invocation -> {
+              for (Object task : invocation.getArguments()) {
+                ((Runnable) task).run();
+              }
+              return null;
+            })
+        .given(execHelper)
+        .runConcurrently(any());
+
     // When:
-    Snapshot snapshot = spyStagingHelper.saveSnapshot();
+    Snapshot snapshot = spyStagingHelper.saveSnapshot(ImmutableSnapshotOptions.builder().build());
 
     // Then:
     assertThat(snapshot.getStagedFiles()).isEqualTo(stagedFiles);
-    assertThat(snapshot.getStashMessage()).isEqualTo(stashMessage);
+    assertThat(snapshot.getStashCommit()).hasValue(STASH_COMMIT);
+    assertThat(snapshot.getIndexTree()).isEqualTo(INDEX_TREE);
+    assertThat(snapshot.getWorkingTreeTree()).isEqualTo(WORKING_TREE_TREE);
     assertThat(snapshot.getUnstagedPatchFile())
-        .isEqualTo(GIT_COMMON_DIR.resolve(Snapshot.UNSTAGED_PATCH_FILE_NAME));
+        .hasValue(GIT_COMMON_DIR.resolve(Snapshot.UNSTAGED_PATCH_FILE_NAME));
     assertThat(snapshot.getUntrackedPatchFile())
-        .isEqualTo(GIT_COMMON_DIR.resolve(Snapshot.UNTRACKED_PATCH_FILE_NAME));
+        .hasValue(GIT_COMMON_DIR.resolve(Snapshot.UNTRACKED_PATCH_FILE_NAME));
 
     InOrder inOrder = inOrder(spyStagingHelper, filesHelper, gitHelper);
     inOrder.verify(spyStagingHelper).isGradleDirectoryIgnored();
     inOrder.verify(spyStagingHelper).getStagedFiles();
-    inOrder.verify(spyStagingHelper).saveSnapshotStash();
+    inOrder.verify(spyStagingHelper).saveSnapshotStash(true);
     inOrder.verify(filesHelper).delete(deletedFiles);
-    inOrder.verify(gitHelper).git(eq("diff"), any());
-    inOrder.verify(gitHelper).git(eq("show"), any());
+    inOrder
+        .verify(gitHelper)
+        .git(eq("diff"), any(), any(), any(), any(), any(), any(), eq(STASH_COMMIT), any());
+    inOrder
+        .verify(gitHelper)
+        .git(eq("show"), any(), any(), any(), any(), any(), any(), any(), eq(STASH_COMMIT + "^3"));
   }
 
   @Test
-  void isGradleDirectoryIgnored_ShouldDetectIgnoredGradleDirectory() {
+  void saveSnapshot_WhenPatchesArePiped_ShouldNotWritePatchFiles() {
+    // Given:
+    given(gitHelper.getCommonDirectory()).willReturn(GIT_COMMON_DIR);
+    given(gitHelper.getTopLevelDirectory()).willReturn(GIT_DIR);
+
+    StagingHelper spyStagingHelper = spy(stagingHelper);
+    willReturn(true).given(spyStagingHelper).isGradleDirectoryIgnored();
+    willReturn(STASH_COMMIT).given(spyStagingHelper).saveSnapshotStash(true);
+    willReturn(status("?? untracked.txt")).given(spyStagingHelper).getWorkingTreeStatus(true);
+    willReturn(Collections.emptyList()).given(spyStagingHelper).getStagedFiles();
+    given(gitHelper.resolve(STASH_COMMIT + "^2^{tree}")).willReturn(Optional.of(INDEX_TREE));
+    given(gitHelper.resolve(STASH_COMMIT + "^{tree}")).willReturn(Optional.of(WORKING_TREE_TREE));
+
+    SnapshotOptions options =
+        ImmutableSnapshotOptions.builder()
+            .setStrategy(SnapshotStrategy.STASH)
+            .setIsPipePatches(true)
+            .build();
+
+    // When:
+    Snapshot snapshot = spyStagingHelper.saveSnapshot(options);
+
+    // Then:
+    assertThat(snapshot.getStashCommit()).hasValue(STASH_COMMIT);
+    assertThat(snapshot.getUnstagedPatchFile()).isEmpty();
+    assertThat(snapshot.getUntrackedPatchFile()).isEmpty();
+    verify(gitHelper, never()).git(eq("diff"), any(String[].class));
+    verify(gitHelper, never()).git(eq("show"), any(String[].class));
+  }
+
+  @Test
+  void saveSnapshot_WhenWorkingTreeIsClean_ShouldOnlyRecordIndexTree() {
+    // Given:
+    StagingHelper spyStagingHelper = spy(stagingHelper);
+    willReturn(true).given(spyStagingHelper).isGradleDirectoryIgnored();
+    willReturn(Collections.emptyList()).given(spyStagingHelper).getStagedFiles();
+    willReturn(status()).given(spyStagingHelper).getWorkingTreeStatus(true);
+    given(gitHelper.git("write-tree")).willReturn(INDEX_TREE);
+
+    // When:
+    Snapshot snapshot = spyStagingHelper.saveSnapshot(ImmutableSnapshotOptions.builder().build());
+
+    // Then:
+    assertThat(snapshot.getStashCommit()).isEmpty();
+    assertThat(snapshot.getIndexTree()).isEqualTo(INDEX_TREE);
+    assertThat(snapshot.getWorkingTreeTree()).isEqualTo(INDEX_TREE);
+    assertThat(snapshot.getUnstagedPatchFile()).isEmpty();
+    verify(spyStagingHelper, never()).saveSnapshotStash(any(Boolean.class));
+  }
+
+  @Test
+  void saveSnapshot_WhenThereAreNoUntrackedFiles_ShouldNotSaveThem() {
+    // Given:
+    given(gitHelper.getCommonDirectory()).willReturn(GIT_COMMON_DIR);
+    given(gitHelper.getTopLevelDirectory()).willReturn(GIT_DIR);
+
+    StagingHelper spyStagingHelper = spy(stagingHelper);
+    willReturn(true).given(spyStagingHelper).isGradleDirectoryIgnored();
+    willReturn(Collections.emptyList()).given(spyStagingHelper).getStagedFiles();
+    willReturn(status(" M unstaged.txt")).given(spyStagingHelper).getWorkingTreeStatus(true);
+    willReturn(STASH_COMMIT).given(spyStagingHelper).saveSnapshotStash(false);
+    given(gitHelper.resolve(STASH_COMMIT + "^2^{tree}")).willReturn(Optional.of(INDEX_TREE));
+    given(gitHelper.resolve(STASH_COMMIT + "^{tree}")).willReturn(Optional.of(WORKING_TREE_TREE));
+
+    // When:
+    Snapshot snapshot = spyStagingHelper.saveSnapshot(ImmutableSnapshotOptions.builder().build());
+
+    // Then:
+    assertThat(snapshot.getStashCommit()).hasValue(STASH_COMMIT);
+    assertThat(snapshot.isUntrackedFilesSaved()).isFalse();
+    assertThat(snapshot.getUntrackedPatchFile()).isEmpty();
+    verify(gitHelper, never()).git(eq("show"), any(String[].class));
+
+    // When:
+    stagingHelper.mergeUntrackedPatch(snapshot);
+
+    // Then:
+    verify(gitHelper, never()).gitPipe(any(), any());
+  }
+
+  @Test
+  void workingTreeStateOf_WhenOnlyTrackedFilesChanged_ShouldNotReportUntrackedFiles() {
+    // When:
+    WorkingTreeState state = WorkingTreeState.of(status("M  staged.txt", " D deleted.txt"));
+
+    // Then:
+    assertThat(state).isEqualTo(WorkingTreeState.UNSTAGED_CHANGES);
+  }
+
+  @Test
+  void saveSnapshot_ShouldRestoreTimestampsOfRewrittenFilesWithSameContents() {
     // Given:
-    GitStatusLine statusLine = ImmutableGitStatusLine.of("!! .gradle/");
+    given(gitHelper.getCommonDirectory()).willReturn(GIT_COMMON_DIR);
+    given(gitHelper.getTopLevelDirectory()).willReturn(GIT_DIR);
+
+    Path stagedFile = GIT_DIR.resolve("staged.txt");
+    Path unstagedFile = GIT_DIR.resolve("unstaged.txt");
+    StagingHelper spyStagingHelper = spy(stagingHelper);
+    willReturn(true).given(spyStagingHelper).isGradleDirectoryIgnored();
+    willReturn(Collections.singletonList(stagedFile)).given(spyStagingHelper).getStagedFiles();
+    willReturn(status("M  staged.txt", " M unstaged.txt", " D deleted.txt"))
+        .given(spyStagingHelper)
+        .getWorkingTreeStatus(true);
+    willReturn(STASH_COMMIT).given(spyStagingHelper).saveSnapshotStash(false);
+    given(gitHelper.resolve(STASH_COMMIT + "^2^{tree}")).willReturn(Optional.of(INDEX_TREE));
+    given(gitHelper.resolve(STASH_COMMIT + "^{tree}")).willReturn(Optional.of(WORKING_TREE_TREE));
+
+    // Saving the stash rewrites the staged file with the same contents.
+    given(filesHelper.getFingerprint(stagedFile))
+        .willReturn(Optional.of(fingerprint(10, 1000)))
+        .willReturn(Optional.of(fingerprint(10, 2000)));
+    given(gitHelper.hashBlobs(Collections.singletonList(stagedFile)))
+        .willReturn(Collections.singletonList("staged blob"));
+    given(gitHelper.resolve(WORKING_TREE_TREE + ":staged.txt"))
+        .willReturn(Optional.of("staged blob"));
+    given(filesHelper.getFingerprint(unstagedFile)).willReturn(Optional.of(fingerprint(20, 1000)));
+
+    SnapshotOptions options =
+        ImmutableSnapshotOptions.builder().setStrategy(SnapshotStrategy.STASH).build();
+
+    // When:
+    Snapshot snapshot = spyStagingHelper.saveSnapshot(options);
 
-    given(gitHelper.status("--ignored"))
-        .willReturn(ImmutableGitStatus.of(Collections.singletonList(statusLine)));
+    // Then:
+    assertThat(snapshot.getOriginalFingerprints())
+        .containsOnlyKeys(stagedFile, unstagedFile)
+        .containsEntry(unstagedFile, fingerprint(20, 1000));
+    verify(filesHelper).setLastModifiedNanos(stagedFile, 1000);
+    verify(filesHelper, never()).setLastModifiedNanos(eq(unstagedFile), any(Long.class));
+    verify(filesHelper, never()).hash(any());
+  }
+
+  @Test
+  void isGradleDirectoryIgnored_ShouldDetectIgnoredGradleDirectory() {
+    // Given:
+    given(gitIgnoreHelper.isIgnored(".gradle/")).willReturn(true);
 
     // When:
     boolean isGradleDirectoryIgnored = stagingHelper.isGradleDirectoryIgnored();
@@ -105,12 +281,15 @@ final class StagingHelperTest {
 
     willReturn(mergeStatus).given(spyStagingHelper).saveMergeStatus();
     willDoNothing().given(spyStagingHelper).restoreMergeStatus(any());
+    given(gitHelper.resolve(StagingHelper.STASH_REF))
+        .willReturn(Optional.of("previous stash"))
+        .willReturn(Optional.of(STASH_COMMIT));
 
     // When:
-    String actualStashMessage = spyStagingHelper.saveSnapshotStash();
+    String stashCommit = spyStagingHelper.saveSnapshotStash(true);
 
     // Then:
-    assertThat(actualStashMessage).isEqualTo(StagingHelper.BACKUP_STASH_MESSAGE);
+    assertThat(stashCommit).isEqualTo(STASH_COMMIT);
 
     InOrder inOrder = inOrder(spyStagingHelper, gitHelper);
 
@@ -179,27 +358,401 @@ final class StagingHelperTest {
   }
 
   @Test
-  void findStashName_WhenStashExists_ShouldReturnStash() {
+  void saveSnapshotStash_WhenNoStashIsCreated_ShouldThrowException() {
+    // Given:
+    given(gitHelper.getCommonDirectory()).willReturn(GIT_COMMON_DIR);
+    given(gitHelper.resolve(StagingHelper.STASH_REF)).willReturn(Optional.of("previous stash"));
+
+    // When:
+    Throwable exception = catchThrowable(() -> stagingHelper.saveSnapshotStash(true));
+
+    // Then:
+    assertThat(exception).isInstanceOf(GradleException.class);
+  }
+
+  @Test
+  void saveTreeSnapshot_WhenNothingIsUnstaged_ShouldNotChangeWorkingTree() {
+    // Given:
+    given(gitHelper.getGitDirectory()).willReturn(GIT_COMMON_DIR);
+    given(gitHelper.getCommonDirectory()).willReturn(GIT_COMMON_DIR);
+    given(gitHelper.git("write-tree")).willReturn(INDEX_TREE);
+    Path indexFile = GIT_COMMON_DIR.resolve(Snapshot.INDEX_FILE_NAME);
+    given(gitHelper.gitWithIndexFile(indexFile, "write-tree")).willReturn(INDEX_TREE);
+
+    // When:
+    Snapshot snapshot = stagingHelper.saveTreeSnapshot(Collections.emptyList(), false, true);
+
+    // Then:
+    assertThat(snapshot.getIndexTree()).isEqualTo(INDEX_TREE);
+    assertThat(snapshot.getWorkingTreeTree()).isEqualTo(INDEX_TREE);
+    assertThat(snapshot.getStashCommit()).isEmpty();
+
+    InOrder inOrder = inOrder(filesHelper, gitHelper);
+    inOrder.verify(filesHelper).copy(GIT_COMMON_DIR.resolve("index"), indexFile);
+    inOrder.verify(gitHelper).gitWithIndexFile(indexFile, "add", "--all");
+    inOrder.verify(filesHelper).deleteIfExists(indexFile);
+    verify(gitHelper, never()).diffTrees(any(), any());
+    verify(gitHelper, never()).gitWithPaths(any(), any(), any());
+  }
+
+  @Test
+  void mergeSnapshot_WhenPatchesArePiped_ShouldPipeTreeDiffsIntoApply() {
+    // Given:
+    Snapshot snapshot =
+        ImmutableSnapshot.builder()
+            .setIndexTree(INDEX_TREE)
+            .setWorkingTreeTree(WORKING_TREE_TREE)
+            .setTreesFile(GIT_COMMON_DIR.resolve(Snapshot.TREES_FILE_NAME))
+            .build();
+
+    // When:
+    stagingHelper.mergeSnapshot(snapshot);
+
+    // Then:
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<List<String>> sourceCaptor = ArgumentCaptor.forClass(List.class);
+    verify(gitHelper, times(2)).gitPipe(sourceCaptor.capture(), any());
+    List<List<String>> sources = sourceCaptor.getAllValues();
+    assertThat(sources.get(0))
+        .startsWith("diff")
+        .contains("--diff-filter=MT")
+        .endsWith(INDEX_TREE, WORKING_TREE_TREE);
+    assertThat(sources.get(1))
+        .startsWith("diff")
+        .contains("--diff-filter=A")
+        .endsWith(INDEX_TREE, WORKING_TREE_TREE);
+    verify(filesHelper, never()).isFileEmpty(any());
+  }
+
+  @Test
+  void mergeUnstagedPatch_WhenPipedPatchDoesNotApply_ShouldReturnFalse() {
+    // Given:
+    Snapshot snapshot =
+        ImmutableSnapshot.copyOf(snapshot()).withUnstagedPatchFile(Optional.empty());
+    given(gitHelper.gitPipe(any(), any())).willThrow(new ExecException("git apply", 1, "error"));
+
+    // When:
+    boolean isMerged = stagingHelper.mergeUnstagedPatch(snapshot, false);
+
+    // Then:
+    assertThat(isMerged).isFalse();
+  }
+
+  @Test
+  void findChangedFiles_ShouldCompareFingerprints() {
     // Given:
-    String stashList = StreamEx.of("message 1", "message 2").joining("\n");
-    given(gitHelper.stash("list")).willReturn(stashList);
+    Path unchangedFile = GIT_DIR.resolve("unchanged.txt");
+    Path touchedFile = GIT_DIR.resolve("touched.txt");
+    Path deletedFile = GIT_DIR.resolve("deleted.txt");
+    Path racyFile = GIT_DIR.resolve("racy.txt");
+    Path createdFile = GIT_DIR.resolve("created.txt");
+
+    FileFingerprint fingerprint = fingerprint(10, 1000);
+    given(filesHelper.getFingerprint(unchangedFile)).willReturn(Optional.of(fingerprint));
+    given(filesHelper.getFingerprint(touchedFile)).willReturn(Optional.of(fingerprint(10, 2000)));
+    given(filesHelper.getFingerprint(deletedFile)).willReturn(Optional.empty());
+    given(filesHelper.getFingerprint(racyFile)).willReturn(Optional.of(fingerprint));
+    given(filesHelper.hash(racyFile)).willReturn("new hash");
+    given(filesHelper.getFingerprint(createdFile)).willReturn(Optional.of(fingerprint));
+
+    Snapshot snapshot =
+        ImmutableSnapshot.copyOf(snapshot())
+            .withStagedFiles(unchangedFile, touchedFile, deletedFile, racyFile, createdFile)
+            .withFingerprints(
+                EntryStream.of(
+                        unchangedFile,
+                        fingerprint,
+                        touchedFile,
+                        fingerprint,
+                        deletedFile,
+                        fingerprint,
+                        racyFile,
+                        ImmutableFileFingerprint.copyOf(fingerprint).withContentHash("old hash"))
+                    .toMap());
 
     // When:
-    String stashName = stagingHelper.findStashName("message 2");
+    List<Path> changedFiles = stagingHelper.findChangedFiles(snapshot);
 
     // Then:
-    assertThat(stashName).isEqualTo("stash@{1}");
+    assertThat(changedFiles).containsExactly(touchedFile, deletedFile, racyFile, createdFile);
+    verify(filesHelper, never()).hash(unchangedFile);
   }
 
   @Test
-  void findStashName_WhenStashDoesNotExist_ShouldThrowException() {
+  void fingerprintUntrackedFiles_ShouldRecordBlobsOfFilesThatAreNotExcluded() {
     // Given:
-    given(gitHelper.stash("list")).willReturn("");
+    Path untrackedFile = GIT_DIR.resolve("untracked.txt");
+    Path linkFile = GIT_DIR.resolve("link");
+    given(gitHelper.lsFiles("--others", "--exclude-standard", "--exclude=scratch/"))
+        .willReturn(Arrays.asList(untrackedFile, linkFile));
+    given(filesHelper.isSymbolicLink(linkFile)).willReturn(true);
+    given(filesHelper.getFingerprint(untrackedFile)).willReturn(Optional.of(fingerprint(10, 1000)));
+    given(gitHelper.writeBlobs(Collections.singletonList(untrackedFile)))
+        .willReturn(Collections.singletonList(INDEX_TREE));
 
     // When:
-    Throwable exception = catchThrowable(() -> stagingHelper.findStashName("message"));
+    Snapshot snapshot =
+        stagingHelper.fingerprintUntrackedFiles(snapshot(), Collections.singletonList("scratch/"));
 
     // Then:
-    assertThat(exception).isInstanceOf(RuntimeException.class);
+    assertThat(snapshot.getUntrackedFingerprints())
+        .isEqualTo(Collections.singletonMap(untrackedFile, fingerprint(10, 1000)));
+    assertThat(snapshot.getUntrackedBlobs())
+        .isEqualTo(Collections.singletonMap(untrackedFile, INDEX_TREE));
+  }
+
+  @Test
+  void fingerprintUntrackedFiles_WhenFileIsLarge_ShouldNotRecordIt() {
+    // Given:
+    Path untrackedFile = GIT_DIR.resolve("untracked.txt");
+    Path largeFile = GIT_DIR.resolve("large.dat");
+    given(gitHelper.lsFiles("--others", "--exclude-standard"))
+        .willReturn(Arrays.asList(untrackedFile, largeFile));
+    given(filesHelper.getFingerprint(untrackedFile)).willReturn(Optional.of(fingerprint(10, 1000)));
+    given(filesHelper.getFingerprint(largeFile))
+        .willReturn(Optional.of(fingerprint(StagingHelper.MAX_UNTRACKED_FILE_SIZE + 1, 1000)));
+    given(gitHelper.writeBlobs(Collections.singletonList(untrackedFile)))
+        .willReturn(Collections.singletonList(INDEX_TREE));
+
+    // When:
+    Snapshot snapshot =
+        stagingHelper.fingerprintUntrackedFiles(snapshot(), Collections.emptyList());
+
+    // Then:
+    assertThat(snapshot.getUntrackedFingerprints()).containsOnlyKeys(untrackedFile);
+    assertThat(snapshot.getUntrackedBlobs())
+        .isEqualTo(Collections.singletonMap(untrackedFile, INDEX_TREE));
+  }
+
+  @Test
+  void restoreUntrackedFiles_ShouldOnlyRestoreChangedFiles() {
+    // Given:
+    Path unchangedFile = GIT_DIR.resolve("unchanged.txt");
+    Path deletedFile = GIT_DIR.resolve("dir/deleted.txt");
+    Snapshot snapshot =
+        ImmutableSnapshot.copyOf(snapshot())
+            .withUntrackedFingerprints(
+                EntryStream.of(
+                        unchangedFile, fingerprint(10, 1000), deletedFile, fingerprint(10, 1000))
+                    .toMap())
+            .withUntrackedBlobs(
+                EntryStream.of(unchangedFile, INDEX_TREE, deletedFile, WORKING_TREE_TREE).toMap());
+    given(filesHelper.getFingerprint(unchangedFile)).willReturn(Optional.of(fingerprint(10, 1000)));
+    given(filesHelper.getFingerprint(deletedFile)).willReturn(Optional.empty());
+    byte[] content = "deleted".getBytes(StandardCharsets.UTF_8);
+    given(gitHelper.readBlob(WORKING_TREE_TREE)).willReturn(Optional.of(content));
+
+    // When:
+    stagingHelper.restoreUntrackedFiles(snapshot);
+
+    // Then:
+    verify(filesHelper).createDirectories(GIT_DIR.resolve("dir"));
+    verify(filesHelper).writeBytes(deletedFile, content);
+    verify(gitHelper, never()).readBlob(INDEX_TREE);
+  }
+
+  @Test
+  void applyModifications_WhenNoFileChanged_ShouldOnlyMergeSnapshot() {
+    // Given:
+    Snapshot snapshot =
+        ImmutableSnapshot.copyOf(snapshot())
+            .withStashCommit(Optional.empty())
+            .withWorkingTreeTree(INDEX_TREE)
+            .withStagedFiles(GIT_DIR.resolve("unchanged.txt"))
+            .withFingerprints(
+                Collections.singletonMap(GIT_DIR.resolve("unchanged.txt"), fingerprint(10, 1000)));
+    given(filesHelper.getFingerprint(GIT_DIR.resolve("unchanged.txt")))
+        .willReturn(Optional.of(fingerprint(10, 1000)));
+
+    // When:
+    stagingHelper.applyModifications(snapshot);
+
+    // Then:
+    verify(gitHelper, never()).gitWithPaths(any(), any(), any());
+    verify(gitHelper, never()).status();
+    verify(gitHelper, never()).git(eq("apply"), any(String[].class));
+  }
+
+  @Test
+  void stageModifications_ShouldAddAllPathsWithOneProcess() {
+    // Given:
+    List<Path> stagedFiles = Arrays.asList(GIT_DIR.resolve("a.txt"), GIT_DIR.resolve("b.txt"));
+
+    // When:
+    stagingHelper.stageModifications(stagedFiles);
+
+    // Then:
+    verify(gitHelper)
+        .gitWithPaths(stagedFiles, "add", "--pathspec-from-file=-", "--pathspec-file-nul");
+    verify(gitHelper, never()).git(eq("add"), any(String[].class));
+  }
+
+  @Test
+  void stageModifications_WhenGitDoesNotKnowPathspecFromFile_ShouldAddPathsInChunks() {
+    // Given:
+    List<Path> stagedFiles = Arrays.asList(GIT_DIR.resolve("a.txt"), GIT_DIR.resolve("b.txt"));
+    given(gitHelper.gitWithPaths(any(), eq("add"), any()))
+        .willThrow(
+            new ExecException(
+                "git add",
+                StagingHelper.GIT_USAGE_EXIT_CODE,
+                "unknown option `pathspec-from-file"));
+    given(operatingSystemHelper.getMaxCommandLength()).willReturn(20);
+
+    // When:
+    stagingHelper.stageModifications(stagedFiles);
+
+    // Then:
+    verify(gitHelper).git("add", GIT_DIR.resolve("a.txt").toString());
+    verify(gitHelper).git("add", GIT_DIR.resolve("b.txt").toString());
+  }
+
+  @Test
+  void stageModifications_WhenManyFilesChanged_ShouldOnlyAddFilesNotInIndex() {
+    // Given:
+    List<Path> stagedFiles =
+        IntStreamEx.range(StagingHelper.INDEX_UPDATE_THRESHOLD)
+            .mapToObj(i -> GIT_DIR.resolve(i + ".txt"))
+            .toList();
+    List<Path> remainingFiles = Collections.singletonList(GIT_DIR.resolve("0.txt"));
+    given(gitHelper.updateIndex(stagedFiles)).willReturn(remainingFiles);
+
+    // When:
+    stagingHelper.stageModifications(stagedFiles);
+
+    // Then:
+    verify(gitHelper)
+        .gitWithPaths(remainingFiles, "add", "--pathspec-from-file=-", "--pathspec-file-nul");
+  }
+
+  @Test
+  void restoreSnapshot_WhenIndexIsUnchanged_ShouldOnlyRestoreChangedPaths() {
+    // Given:
+    given(gitHelper.git("write-tree")).willReturn(INDEX_TREE);
+    given(gitHelper.getTopLevelDirectory()).willReturn(GIT_DIR);
+
+    Path unchangedFile = GIT_DIR.resolve("unchanged.txt");
+    Path formattedFile = GIT_DIR.resolve("formatted.txt");
+    Path unstagedFile = GIT_DIR.resolve("unstaged.txt");
+    Path untrackedFile = GIT_DIR.resolve("untracked.txt");
+    Path deletedFile = GIT_DIR.resolve("deleted.txt");
+    Path otherFile = GIT_DIR.resolve("other.txt");
+    given(gitHelper.diffTrees(INDEX_TREE, WORKING_TREE_TREE))
+        .willReturn(
+            EntryStream.of(unstagedFile, 'M', untrackedFile, 'A', deletedFile, 'D').toMap());
+    given(gitHelper.lsFiles("--modified"))
+        .willReturn(Arrays.asList(deletedFile, formattedFile, otherFile));
+    given(filesHelper.getFingerprint(unchangedFile)).willReturn(Optional.of(fingerprint(10, 1000)));
+    given(filesHelper.getFingerprint(formattedFile)).willReturn(Optional.of(fingerprint(10, 2000)));
+    given(filesHelper.deleteIfExists(untrackedFile)).willReturn(true);
+    given(filesHelper.isFileEmpty(GIT_COMMON_DIR.resolve(Snapshot.UNSTAGED_PATCH_FILE_NAME)))
+        .willReturn(true);
+    given(
+            filesHelper.isTrimmedFileEmpty(
+                GIT_COMMON_DIR.resolve(Snapshot.UNTRACKED_PATCH_FILE_NAME)))
+        .willReturn(true);
+
+    Snapshot snapshot =
+        ImmutableSnapshot.copyOf(snapshot())
+            .withStagedFiles(unchangedFile, formattedFile)
+            .withFingerprints(
+                EntryStream.of(
+                        unchangedFile, fingerprint(10, 1000), formattedFile, fingerprint(10, 1000))
+                    .toMap());
+
+    // When:
+    stagingHelper.restoreSnapshot(snapshot);
+
+    // Then:
+    verify(gitHelper)
+        .gitWithPaths(
+            Arrays.asList(formattedFile, unstagedFile, otherFile),
+            "checkout-index",
+            "--force",
+            "-z",
+            "--stdin");
+    verify(filesHelper).deleteIfExists(deletedFile);
+    verify(gitHelper, never()).git(eq("read-tree"), any(String[].class));
+  }
+
+  @Test
+  void restoreSnapshot_WhenIndexIsChanged_ShouldReadTrees() {
+    // Given:
+    given(gitHelper.git("write-tree")).willReturn(WORKING_TREE_TREE);
+    given(
+            filesHelper.isTrimmedFileEmpty(
+                GIT_COMMON_DIR.resolve(Snapshot.UNTRACKED_PATCH_FILE_NAME)))
+        .willReturn(true);
+
+    // When:
+    stagingHelper.restoreSnapshot(snapshot());
+
+    // Then:
+    InOrder inOrder = inOrder(gitHelper);
+    inOrder.verify(gitHelper).git("read-tree", "--reset", "-u", WORKING_TREE_TREE);
+    inOrder.verify(gitHelper).git("read-tree", INDEX_TREE);
+    verify(gitHelper, never()).git(eq("reset"), any(String[].class));
+    verify(gitHelper, never()).stash(eq("apply"), any());
+  }
+
+  @Test
+  void deleteSnapshot_WhenStashIsLatest_ShouldDropIt() {
+    // Given:
+    given(gitHelper.resolve(StagingHelper.LATEST_STASH)).willReturn(Optional.of(STASH_COMMIT));
+
+    // When:
+    stagingHelper.deleteSnapshot(snapshot());
+
+    // Then:
+    verify(gitHelper).stash("drop", "--quiet", StagingHelper.LATEST_STASH);
+  }
+
+  @Test
+  void deleteSnapshot_WhenStashIsNotLatest_ShouldDropItByIndex() {
+    // Given:
+    given(gitHelper.resolve(StagingHelper.LATEST_STASH)).willReturn(Optional.of("other stash"));
+    given(gitHelper.stash("list", "--format=%H"))
+        .willReturn("other stash\n" + STASH_COMMIT + "\nolder stash");
+
+    // When:
+    stagingHelper.deleteSnapshot(snapshot());
+
+    // Then:
+    verify(gitHelper).stash("drop", "--quiet", "stash@{1}");
+  }
+
+  @Test
+  void deleteSnapshot_WhenStashIsNotListed_ShouldKeepStashes() {
+    // Given:
+    given(gitHelper.resolve(StagingHelper.LATEST_STASH)).willReturn(Optional.of("other stash"));
+    given(gitHelper.stash("list", "--format=%H")).willReturn("other stash");
+
+    // When:
+    stagingHelper.deleteSnapshot(snapshot());
+
+    // Then:
+    verify(gitHelper, never()).stash(eq("drop"), any());
+  }
+
+  private static GitStatus status(String... lines) {
+    return ImmutableGitStatus.of(StreamEx.of(lines).map(ImmutableGitStatusLine::of).toList());
+  }
+
+  private static FileFingerprint fingerprint(long size, long lastModifiedNanos) {
+    return ImmutableFileFingerprint.builder()
+        .setSize(size)
+        .setLastModifiedNanos(lastModifiedNanos)
+        .setFileKey(42L)
+        .build();
+  }
+
+  private static Snapshot snapshot() {
+    return ImmutableSnapshot.builder()
+        .setIndexTree(INDEX_TREE)
+        .setWorkingTreeTree(WORKING_TREE_TREE)
+        .setStashCommit(STASH_COMMIT)
+        .setUnstagedPatchFile(GIT_COMMON_DIR.resolve(Snapshot.UNSTAGED_PATCH_FILE_NAME))
+        .setUntrackedPatchFile(GIT_COMMON_DIR.resolve(Snapshot.UNTRACKED_PATCH_FILE_NAME))
+        .build();
   }
 }
@@ -0,0 +1,99 @@
+package com.github.tjni.captainhook.helpers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.BDDMockito.given;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import one.util.streamex.StreamEx;
+import org.gradle.api.Project;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+final class StagingTasksHelperTest {
+  @TempDir File tempDir;
+
+  private final Project project;
+  private final GitHelper gitHelper;
+  private final StagingTasksHelper stagingTasksHelper;
+
+  StagingTasksHelperTest(
+      @Mock(name = "project") Project project, @Mock(name = "gitHelper") GitHelper gitHelper) {
+    this.project = project;
+    this.gitHelper = gitHelper;
+    stagingTasksHelper = new StagingTasksHelper(project, gitHelper);
+  }
+
+  @Test
+  void route_ShouldOnlyRouteMatchingFilesToTasks() throws IOException {
+    // Given:
+    Path topLevelDir = tempDir.toPath().toRealPath();
+    given(gitHelper.getTopLevelDirectory()).willReturn(topLevelDir);
+    given(project.getRootDir()).willReturn(tempDir);
+
+    Map<String, List<String>> stagingTasks = new LinkedHashMap<>();
+    stagingTasks.put("*.java", Arrays.asList("formatJava", "lint"));
+    stagingTasks.put("sql/**/*.sql", Collections.singletonList("formatSql"));
+    stagingTasks.put("*.kt", Arrays.asList("formatKotlin", "lint"));
+    stagingTasks.put("*.md", Collections.singletonList("formatMarkdown"));
+
+    Map<Path, Path> stagingFiles =
+        StreamEx.of("src/B.java", "src/a.kt", "sql/v1/a.sql", "docs/a.sql", "A.java")
+            .map(topLevelDir::resolve)
+            .mapToEntry(file -> file)
+            .toCustomMap(LinkedHashMap::new);
+
+    // When:
+    Map<String, List<Path>> routes = stagingTasksHelper.route(stagingTasks, stagingFiles);
+
+    // Then:
+    assertThat(routes)
+        .containsExactly(
+            entry(
+                "formatJava",
+                Arrays.asList(topLevelDir.resolve("src/B.java"), topLevelDir.resolve("A.java"))),
+            entry(
+                "lint",
+                Arrays.asList(
+                    topLevelDir.resolve("src/B.java"),
+                    topLevelDir.resolve("A.java"),
+                    topLevelDir.resolve("src/a.kt"))),
+            entry("formatSql", Collections.singletonList(topLevelDir.resolve("sql/v1/a.sql"))),
+            entry("formatKotlin", Collections.singletonList(topLevelDir.resolve("src/a.kt"))));
+  }
+
+  @Test
+  void route_WhenRootProjectIsInSubdirectory_ShouldMatchRelativeToIt() throws IOException {
+    // Given:
+    Path topLevelDir = tempDir.toPath().toRealPath();
+    Path rootDir = Files.createDirectories(topLevelDir.resolve("app"));
+    given(gitHelper.getTopLevelDirectory()).willReturn(topLevelDir);
+    given(project.getRootDir()).willReturn(rootDir.toFile());
+
+    Map<Path, Path> stagingFiles = new LinkedHashMap<>();
+    stagingFiles.put(topLevelDir.resolve("app/src/A.java"), rootDir.resolve("copy"));
+    stagingFiles.put(topLevelDir.resolve("src/B.java"), topLevelDir.resolve("src/B.java"));
+
+    // When:
+    Map<String, List<Path>> routes =
+        stagingTasksHelper.route(
+            Collections.singletonMap("/src/*.java", Collections.singletonList("formatJava")),
+            stagingFiles);
+
+    // Then:
+    assertThat(routes)
+        .containsExactly(entry("formatJava", Collections.singletonList(rootDir.resolve("copy"))));
+  }
+}
@@ -0,0 +1,183 @@
+package com.github.tjni.captainhook.helpers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+
+import com.github.tjni.captainhook.helpers.VerifiedCacheHelper.VerifiedCache;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+import org.gradle.api.Project;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+final class VerifiedCacheHelperTest {
+  @TempDir File tempDir;
+
+  private final Project project;
+  private Path repoDir;
+  private ExecHelper execHelper;
+  private GitBatchHelper gitBatchHelper;
+  private VerifiedCacheHelper verifiedCacheHelper;
+
+  VerifiedCacheHelperTest(@Mock(name = "project") Project project) {
+    this.project = project;
+  }
+
+  @BeforeEach
+  void setUp() throws IOException {
+    given(project.getRootDir()).willReturn(tempDir);
+    repoDir = tempDir.toPath().toRealPath();
+    execHelper = new ExecHelper(project, new ExecMetrics());
+    gitBatchHelper = new GitBatchHelper(execHelper);
+    GitHelper gitHelper =
+        new GitHelper(execHelper, gitBatchHelper, new GitIndexHelper(execHelper, gitBatchHelper));
+    verifiedCacheHelper = new VerifiedCacheHelper(gitHelper, new FilesHelper());
+
+    execHelper.exec("git", "init");
+  }
+
+  @AfterEach
+  void tearDown() {
+    gitBatchHelper.close();
+  }
+
+  @Test
+  void removeVerified_WhenStagedContentsWereRecorded_ShouldRemoveThem() {
+    // Given:
+    write("verified.txt", "verified");
+    write("changed.txt", "staged");
+    execHelper.exec("git", "add", ".");
+    String configurationHash = hashConfiguration("spotlessApply");
+    verifiedCacheHelper.recordUnchanged(verifiedCacheHelper.open(configurationHash));
+
+    write("changed.txt", "changed");
+    write("added.txt", "added");
+    execHelper.exec("git", "add", ".");
+    List<Path> stagedFiles =
+        Arrays.asList(
+            repoDir.resolve("added.txt"),
+            repoDir.resolve("changed.txt"),
+            repoDir.resolve("verified.txt"));
+
+    // When:
+    List<Path> unverifiedFiles =
+        verifiedCacheHelper.removeVerified(
+            verifiedCacheHelper.open(configurationHash), stagedFiles);
+
+    // Then:
+    assertThat(unverifiedFiles)
+        .containsExactly(repoDir.resolve("added.txt"), repoDir.resolve("changed.txt"));
+  }
+
+  @Test
+  void removeVerified_WhenConfigurationChanged_ShouldKeepAllFiles() {
+    // Given:
+    write("verified.txt", "verified");
+    execHelper.exec("git", "add", ".");
+    verifiedCacheHelper.recordUnchanged(
+        verifiedCacheHelper.open(hashConfiguration("spotlessApply")));
+
+    List<Path> stagedFiles = Collections.singletonList(repoDir.resolve("verified.txt"));
+
+    // When:
+    List<Path> unverifiedFiles =
+        verifiedCacheHelper.removeVerified(
+            verifiedCacheHelper.open(hashConfiguration("spotlessApply", "spotlessCheck")),
+            stagedFiles);
+
+    // Then:
+    assertThat(unverifiedFiles).isEqualTo(stagedFiles);
+  }
+
+  @Test
+  void removeVerified_WhenContentsWereVerifiedAtAnotherPath_ShouldKeepFile() {
+    // Given:
+    write("verified.txt", "same");
+    execHelper.exec("git", "add", ".");
+    String configurationHash = hashConfiguration("spotlessApply");
+    verifiedCacheHelper.recordUnchanged(verifiedCacheHelper.open(configurationHash));
+
+    write("copy/verified.txt", "same");
+    execHelper.exec("git", "add", ".");
+    List<Path> stagedFiles =
+        Arrays.asList(repoDir.resolve("copy/verified.txt"), repoDir.resolve("verified.txt"));
+
+    // When:
+    List<Path> unverifiedFiles =
+        verifiedCacheHelper.removeVerified(
+            verifiedCacheHelper.open(configurationHash), stagedFiles);
+
+    // Then:
+    assertThat(unverifiedFiles).containsExactly(repoDir.resolve("copy/verified.txt"));
+  }
+
+  @Test
+  void recordUnchanged_ShouldLeaveNoTemporaryFiles() throws IOException {
+    // Given:
+    write("verified.txt", "verified");
+    execHelper.exec("git", "add", ".");
+    VerifiedCache cache = verifiedCacheHelper.open(hashConfiguration("spotlessApply"));
+
+    // When:
+    verifiedCacheHelper.recordUnchanged(cache);
+
+    // Then:
+    try (Stream<Path> files = Files.list(repoDir.resolve(".git"))) {
+      assertThat(files.map(file -> file.getFileName().toString()))
+          .filteredOn(fileName -> fileName.startsWith(VerifiedCacheHelper.CACHE_FILE_NAME))
+          .containsExactly(VerifiedCacheHelper.CACHE_FILE_NAME);
+    }
+  }
+
+  @Test
+  void recordUnchanged_WhenTasksChangedStagedContents_ShouldNotRecordThem() {
+    // Given:
+    write("formatted.txt", "unformatted");
+    write("unchanged.txt", "unchanged");
+    execHelper.exec("git", "add", ".");
+    String configurationHash = hashConfiguration("spotlessApply");
+    VerifiedCache cache = verifiedCacheHelper.open(configurationHash);
+
+    write("formatted.txt", "formatted");
+    execHelper.exec("git", "add", "formatted.txt");
+
+    // When:
+    verifiedCacheHelper.recordUnchanged(cache);
+
+    // Then:
+    List<Path> stagedFiles =
+        Arrays.asList(repoDir.resolve("formatted.txt"), repoDir.resolve("unchanged.txt"));
+    assertThat(
+            verifiedCacheHelper.removeVerified(
+                verifiedCacheHelper.open(configurationHash), stagedFiles))
+        .containsExactly(repoDir.resolve("formatted.txt"));
+  }
+
+  private String hashConfiguration(String... taskNames) {
+    return verifiedCacheHelper.hashConfiguration(
+        Arrays.asList(taskNames), Collections.singletonList(repoDir.resolve("build.gradle")));
+  }
+
+  private void write(String path, String content) {
+    try {
+      Path file = repoDir.resolve(path);
+      Files.createDirectories(file.getParent());
+      Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.github.tjni.captainhook.tasks;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+
+import com.github.tjni.captainhook.dagger.components.PluginComponent;
+import com.github.tjni.captainhook.dagger.components.TestPluginComponent;
+import com.github.tjni.captainhook.helpers.StagedExecHelper;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.Test;
+
+final class StagedExecTaskTest {
+  private final StagedExecHelper stagedExecHelper;
+  private final Project project;
+  private final StagedExecTask stagedExecTask;
+
+  StagedExecTaskTest() {
+    PluginComponent component = new TestPluginComponent();
+    stagedExecHelper = component.getStagedExecHelper();
+    project = ProjectBuilder.builder().build();
+    stagedExecTask = project.getTasks().create("prettier", StagedExecTask.class);
+    stagedExecTask.setStagedExecHelper(stagedExecHelper);
+    stagedExecTask.getCommandLine().set(Arrays.asList("prettier", "--write"));
+    stagedExecTask.getMaxParallelForks().set(2);
+  }
+
+  @Test
+  void exec_ShouldRunCommandOnStagedFilesOfProject() {
+    // Given:
+    List<Path> stagedFiles = Arrays.asList(Paths.get("/a.js"), Paths.get("/b.md"));
+    project.getExtensions().getExtraProperties().set("staging", stagedFiles);
+
+    // When:
+    stagedExecTask.exec();
+
+    // Then:
+    verify(stagedExecHelper)
+        .exec(eq(Arrays.asList("prettier", "--write")), eq(stagedFiles), eq(2), any());
+  }
+
+  @Test
+  void exec_WhenTaskHasStagedFiles_ShouldPreferThem() {
+    // Given:
+    List<Path> taskFiles = Collections.singletonList(Paths.get("/a.js"));
+    project
+        .getExtensions()
+        .getExtraProperties()
+        .set("staging", Arrays.asList(Paths.get("/a.js"), Paths.get("/b.md")));
+    stagedExecTask.getExtensions().getExtraProperties().set("staging", taskFiles);
+
+    // When:
+    stagedExecTask.exec();
+
+    // Then:
+    verify(stagedExecHelper)
+        .exec(eq(Arrays.asList("prettier", "--write")), eq(taskFiles), eq(2), any());
+  }
+
+  @Test
+  void exec_WhenProjectHasFileCollection_ShouldRunCommandOnItsFiles() {
+    // Given:
+    Path stagedFile = project.getProjectDir().toPath().resolve("a.js");
+    project.getExtensions().getExtraProperties().set("staging", project.files(stagedFile));
+
+    // When:
+    stagedExecTask.exec();
+
+    // Then:
+    verify(stagedExecHelper)
+        .exec(
+            eq(Arrays.asList("prettier", "--write")),
+            eq(Collections.singletonList(stagedFile)),
+            eq(2),
+            any());
+  }
+}